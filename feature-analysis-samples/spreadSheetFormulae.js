@@ -15,9 +15,93 @@ function ApplyFormula(cell, formulae) {
 	// Now parse the formula to get the different components
 	for (var i = 0; i < formulas.length; i++) {
 		//alert("formula is " + formulas[i]);
-		evaluateFormula(formulas[i]);
+		evaluateFormula(expandSharedFormula(formulas[i]));
 	}
 }
+
+// A formula written once for a range of cells (ToXML -compact), as
+// [range, formula, cellFormula], from the hidden element of its id
+function sharedFormula(id) {
+	var element = document.getElementById("sharedFormula" + id);
+	return [element.getAttribute("data-range"),
+			element.getAttribute("data-formula"),
+			element.getAttribute("data-cell-formula")];
+}
+
+// Replaces an item [.B5]=#id of a formula attribute with the formula of
+// the cell, if it refers to a shared formula
+function expandSharedFormula(formula) {
+	var m = formula.match(/^\s*\[\.([A-Z]+[0-9]+)\]=#([0-9]+)\s*$/);
+	if (m == null) {
+		return formula;
+	}
+	return shiftSharedFormula(m[2], 1, m[1]);
+}
+
+// The cellFormula of a cell referring to a shared formula, by cell id
+function sharedCellFormula(cellId, id) {
+	return shiftSharedFormula(id, 2, cellId.substring(1));
+}
+
+// Moves a formula of a shared definition to a cell like B5
+function shiftSharedFormula(id, index, cell) {
+	var definition = sharedFormula(id);
+	var first = parseCell(definition[0].split(":")[0].substring(1));
+	var target = parseCell(cell);
+	return shiftFormula(definition[index], target[0] - first[0],
+			target[1] - first[1]);
+}
+
+// Row and column numbers of a cell like B5, from 1
+function parseCell(cell) {
+	var m = cell.match(/^([A-Z]+)([0-9]+)$/);
+	return [parseInt(m[2], 10), columnNumber(m[1])];
+}
+
+function columnNumber(letters) {
+	var n = 0;
+	for (var i = 0; i < letters.length; i++) {
+		n = n * 26 + letters.charCodeAt(i) - 64;
+	}
+	return n;
+}
+
+function columnLetters(n) {
+	var letters = "";
+	while (n > 0) {
+		var digit = (n - 1) % 26;
+		letters = String.fromCharCode(65 + digit) + letters;
+		n = (n - 1 - digit) / 26;
+	}
+	return letters;
+}
+
+// Moves the relative cell references of a formula by rows and columns,
+// skipping quoted strings and sheet names: the same rule as
+// SharedFormulae.shift in the converter
+function shiftFormula(formula, rows, columns) {
+	return formula.replace(
+			/("([^"]|"")*"|'([^']|'')*')|(^|[^A-Za-z0-9_$])(\$?)([A-Z]{1,3})(\$?)([1-9][0-9]{0,6})(?![A-Za-z0-9_(!.])/g,
+			function(match, quoted, q1, q2, before, absoluteColumn, letters,
+					absoluteRow, row) {
+				if (quoted) {
+					return match;
+				}
+				var c = columnNumber(letters);
+				var r = parseInt(row, 10);
+				if (c > 16384 || r > 1048576) {
+					return match;
+				}
+				if (absoluteColumn == "") {
+					c += columns;
+				}
+				if (absoluteRow == "") {
+					r += rows;
+				}
+				return before + absoluteColumn + columnLetters(c)
+						+ absoluteRow + r;
+			});
+}
 // Class of range variables. Since the range is a string we want to
 // pass the instance and manipulate in the function when evaluated
 function RangeVariable() {
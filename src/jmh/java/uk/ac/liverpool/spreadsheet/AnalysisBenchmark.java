@@ -0,0 +1,72 @@
+/* ====================================================================
+   Licensed to the Apache Software Foundation (ASF) under one or more
+   contributor license agreements.  See the NOTICE file distributed with
+   this work for additional information regarding copyright ownership.
+   The ASF licenses this file to You under the Apache License, Version 2.0
+   (the "License"); you may not use this file except in compliance with
+   the License.  You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+==================================================================== */
+package uk.ac.liverpool.spreadsheet;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Feature analysis of whole workbooks, with the usermodel
+ * {@link ExcelFeatureAnalysis} and with the record stream based
+ * {@link HSSFEventFeatureAnalysis}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(2)
+public class AnalysisBenchmark {
+
+    @Param({ BenchmarkInputs.GENERATED_1000, BenchmarkInputs.GENERATED_10000,
+        BenchmarkInputs.GENERATED_10000_XLSX, BenchmarkInputs.CORPUS })
+    public String input;
+
+    private List<File> files;
+
+    @Setup
+    public void setUp() throws Exception {
+        files = BenchmarkInputs.files(input);
+    }
+
+    @Benchmark
+    public void analyse(Blackhole bh) throws Exception {
+        for (File f : files)
+            bh.consume(ExcelFeatureAnalysis.analyse(f));
+    }
+
+    @Benchmark
+    public void analyseEvents(Blackhole bh) throws Exception {
+        for (File f : files)
+            if (f.getName().toLowerCase().endsWith(".xls"))
+                bh.consume(HSSFEventFeatureAnalysis.analyse(f));
+    }
+}
@@ -0,0 +1,133 @@
+/* ====================================================================
+   Licensed to the Apache Software Foundation (ASF) under one or more
+   contributor license agreements.  See the NOTICE file distributed with
+   this work for additional information regarding copyright ownership.
+   The ASF licenses this file to You under the Apache License, Version 2.0
+   (the "License"); you may not use this file except in compliance with
+   the License.  You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+==================================================================== */
+package uk.ac.liverpool.spreadsheet;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The input files of the benchmarks. An input is either a workbook written by
+ * {@link WorkbookGenerator}, named generated-<i>rows</i>.xls or .xlsx, or a
+ * folder, standing for all the workbooks in it. The generated workbooks are
+ * the same from one run to the next, and written once per JVM to a temporary
+ * folder; the paths of the others are relative to the benchmark.basedir system
+ * property, by default the current folder.
+ */
+final class BenchmarkInputs {
+
+    static final String GENERATED_1000 = "generated-1000.xls";
+    static final String GENERATED_10000 = "generated-10000.xls";
+    static final String GENERATED_10000_XLSX = "generated-10000.xlsx";
+    static final String CORPUS = "feature-analysis-samples";
+
+    private static final String GENERATED = "generated-";
+
+    // the generated workbooks of this JVM, by input name
+    private static final Map<String, File> generated =
+            new HashMap<String, File>();
+
+    private BenchmarkInputs() {
+    }
+
+    static List<File> files(String input) throws IOException {
+        if (input.startsWith(GENERATED)) {
+            List<File> files = new ArrayList<File>();
+            files.add(generate(input));
+            return files;
+        }
+        File f = new File(System.getProperty("benchmark.basedir", "."), input);
+        List<File> files = new ArrayList<File>();
+        if (f.isDirectory()) {
+            File[] list = f.listFiles();
+            Arrays.sort(list);
+            for (File c : list) {
+                String name = c.getName().toLowerCase();
+                if (name.endsWith(".xls") || name.endsWith(".xlsx"))
+                    files.add(c);
+            }
+        } else if (f.isFile()) {
+            files.add(f);
+        }
+        if (files.isEmpty())
+            throw new IllegalStateException("no workbook found in " + f
+                    + ", run from the project folder or set benchmark.basedir");
+        return files;
+    }
+
+    /**
+     * Writes a workbook of two sheets of the given rows of 10 columns, a fifth
+     * of the cells being formulae in chains of 10, summing areas of 10 rows,
+     * or referring to the other sheet, with some comments and 20 styles.
+     */
+    private static synchronized File generate(String input) throws IOException {
+        File f = generated.get(input);
+        if (f != null)
+            return f;
+        String rows = input.substring(GENERATED.length(), input.indexOf('.'));
+        WorkbookGenerator g = new WorkbookGenerator();
+        g.setRows(Integer.parseInt(rows));
+        g.setSheets(2);
+        g.setAreaSize(10);
+        g.setCrossSheetDensity(0.05);
+        g.setCommentDensity(0.01);
+        g.setStyles(20);
+        File d = temporaryFolder();
+        d.deleteOnExit();
+        f = new File(d, input);
+        f.deleteOnExit();
+        g.write(f);
+        generated.put(input, f);
+        return f;
+    }
+
+    static byte[] read(File f) throws IOException {
+        byte[] bytes = new byte[(int) f.length()];
+        InputStream in = new FileInputStream(f);
+        try {
+            int off = 0;
+            int n;
+            while (off < bytes.length
+                    && (n = in.read(bytes, off, bytes.length - off)) > 0)
+                off += n;
+        } finally {
+            in.close();
+        }
+        return bytes;
+    }
+
+    static File temporaryFolder() throws IOException {
+        File d = File.createTempFile("benchmark", "");
+        if (!d.delete() || !d.mkdir())
+            throw new IOException("cannot create " + d);
+        return d;
+    }
+
+    static void delete(File f) {
+        File[] files = f.listFiles();
+        if (files != null)
+            for (File c : files)
+                delete(c);
+        f.delete();
+    }
+}
@@ -0,0 +1,71 @@
+/* ====================================================================
+   Licensed to the Apache Software Foundation (ASF) under one or more
+   contributor license agreements.  See the NOTICE file distributed with
+   this work for additional information regarding copyright ownership.
+   The ASF licenses this file to You under the Apache License, Version 2.0
+   (the "License"); you may not use this file except in compliance with
+   the License.  You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+==================================================================== */
+package uk.ac.liverpool.spreadsheet;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.poi.ss.format.CellFormat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Lookup of a format in the {@link CellFormat} cache, and formatting of
+ * numbers and text, for built-in and custom formats.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(2)
+public class CellFormatBenchmark {
+
+    @Param({ "General", "0.00", "#,##0", "m/d/yy", "0.000E+00",
+        "[Red]#,##0.00;[Blue](#,##0.00)", "yyyy-mm-dd hh:mm" })
+    public String format;
+
+    private static final Object[] VALUES = { Double.valueOf(1234.5678),
+        Double.valueOf(-42), Double.valueOf(0), "text" };
+
+    private CellFormat cellFormat;
+
+    @Setup
+    public void setUp() {
+        cellFormat = CellFormat.getInstance(format);
+    }
+
+    @Benchmark
+    public CellFormat getInstance() {
+        return CellFormat.getInstance(format);
+    }
+
+    @Benchmark
+    public void apply(Blackhole bh) {
+        for (Object v : VALUES)
+            bh.consume(cellFormat.apply(v));
+    }
+}
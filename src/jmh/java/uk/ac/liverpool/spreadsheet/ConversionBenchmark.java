@@ -0,0 +1,96 @@
+/* ====================================================================
+   Licensed to the Apache Software Foundation (ASF) under one or more
+   contributor license agreements.  See the NOTICE file distributed with
+   this work for additional information regarding copyright ownership.
+   The ASF licenses this file to You under the Apache License, Version 2.0
+   (the "License"); you may not use this file except in compliance with
+   the License.  You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+==================================================================== */
+package uk.ac.liverpool.spreadsheet;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * {@link ToXML#convert(String)} of whole workbooks, read from memory and
+ * written to a temporary folder, with and without formula evaluation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(2)
+public class ConversionBenchmark {
+
+    @Param({ BenchmarkInputs.GENERATED_1000, BenchmarkInputs.GENERATED_10000,
+        BenchmarkInputs.GENERATED_10000_XLSX, BenchmarkInputs.CORPUS })
+    public String input;
+
+    @Param({ "false", "true" })
+    public boolean evaluateFormulae;
+
+    private final List<String> names = new ArrayList<String>();
+    private final List<byte[]> workbooks = new ArrayList<byte[]>();
+    private File output;
+
+    @Setup
+    public void setUp() throws Exception {
+        for (File f : BenchmarkInputs.files(input)) {
+            names.add(f.getName());
+            workbooks.add(BenchmarkInputs.read(f));
+        }
+        output = BenchmarkInputs.temporaryFolder();
+    }
+
+    @TearDown
+    public void tearDown() {
+        BenchmarkInputs.delete(output);
+    }
+
+    /**
+     * Converts every workbook of the input. Failures, such as user defined
+     * functions met by the evaluation, are counted as the batch runner does.
+     */
+    @Benchmark
+    public int convert(Blackhole bh) {
+        int failures = 0;
+        for (int i = 0; i < workbooks.size(); i++) {
+            try {
+                ToXML toXml = ToXML.create(new ByteArrayInputStream(
+                        workbooks.get(i)));
+                toXml.setEvaluateFormulae(evaluateFormulae);
+                bh.consume(toXml.convert(new File(output, names.get(i)
+                        + ".xml").getPath()));
+            } catch (Exception x) {
+                failures++;
+            }
+        }
+        return failures;
+    }
+}
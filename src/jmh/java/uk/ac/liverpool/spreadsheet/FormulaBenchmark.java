@@ -0,0 +1,145 @@
+/* ====================================================================
+   Licensed to the Apache Software Foundation (ASF) under one or more
+   contributor license agreements.  See the NOTICE file distributed with
+   this work for additional information regarding copyright ownership.
+   The ASF licenses this file to You under the Apache License, Version 2.0
+   (the "License"); you may not use this file except in compliance with
+   the License.  You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+==================================================================== */
+package uk.ac.liverpool.spreadsheet;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.poi.hssf.usermodel.HSSFEvaluationWorkbook;
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.apache.poi.ss.formula.FormulaParser;
+import org.apache.poi.ss.formula.FormulaType;
+import org.apache.poi.ss.formula.ptg.Ptg;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The formula work of the conversion on its own: parsing the formulae and
+ * building their dependency graph, as ToXML.parseFormula does, and rendering
+ * the parsed formulae with {@link FormulaRenderer}, with and without its
+ * templates.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(2)
+public class FormulaBenchmark {
+
+    @Param({ BenchmarkInputs.GENERATED_1000, BenchmarkInputs.GENERATED_10000,
+        BenchmarkInputs.CORPUS })
+    public String input;
+
+    /** The formulae of one workbook. */
+    static class Formulae {
+        final HSSFEvaluationWorkbook book;
+        final List<String> text = new ArrayList<String>();
+        final List<Ptg[]> parsed = new ArrayList<Ptg[]>();
+        final List<long[]> cells = new ArrayList<long[]>();
+
+        Formulae(HSSFWorkbook wb) {
+            book = HSSFEvaluationWorkbook.create(wb);
+        }
+    }
+
+    private final List<Formulae> workbooks = new ArrayList<Formulae>();
+
+    @Setup
+    public void setUp() throws Exception {
+        for (File f : BenchmarkInputs.files(input)) {
+            if (!f.getName().toLowerCase().endsWith(".xls"))
+                continue;
+            HSSFWorkbook wb = new HSSFWorkbook(new ByteArrayInputStream(
+                    BenchmarkInputs.read(f)));
+            Formulae formulae = new Formulae(wb);
+            for (int s = 0; s < wb.getNumberOfSheets(); s++) {
+                Sheet sheet = wb.getSheetAt(s);
+                for (Row row : sheet)
+                    for (Cell cell : row)
+                        if (cell.getCellType() == Cell.CELL_TYPE_FORMULA)
+                            add(formulae, s, cell);
+            }
+            workbooks.add(formulae);
+        }
+    }
+
+    private static void add(Formulae formulae, int sheet, Cell cell) {
+        try {
+            String text = cell.getCellFormula();
+            Ptg[] ptgs = FormulaParser.parse(text, formulae.book,
+                    FormulaType.CELL, sheet);
+            formulae.text.add(text);
+            formulae.parsed.add(ptgs);
+            formulae.cells.add(new long[] { sheet,
+                    DependencyGraph.key(sheet, cell.getRowIndex(),
+                            cell.getColumnIndex()) });
+        } catch (RuntimeException x) {
+            // not parsable by POI, skipped by the conversion too
+        }
+    }
+
+    @Benchmark
+    public void parseDependencies(Blackhole bh) {
+        for (Formulae formulae : workbooks) {
+            DependencyGraph graph = new DependencyGraph();
+            for (int i = 0; i < formulae.text.size(); i++) {
+                long[] cell = formulae.cells.get(i);
+                int sheet = (int) cell[0];
+                Ptg[] ptgs = FormulaParser.parse(formulae.text.get(i),
+                        formulae.book, FormulaType.CELL, sheet);
+                ToXML.addDependencies(graph, cell[1], sheet, ptgs);
+            }
+            bh.consume(graph);
+        }
+    }
+
+    @Benchmark
+    public void render(Blackhole bh) {
+        for (Formulae formulae : workbooks)
+            for (Ptg[] ptgs : formulae.parsed)
+                bh.consume(FormulaRenderer.toFormulaString(formulae.book, ptgs));
+    }
+
+    @Benchmark
+    public void renderTemplates(Blackhole bh) {
+        for (Formulae formulae : workbooks) {
+            FormulaRenderer renderer = new FormulaRenderer(formulae.book);
+            for (int i = 0; i < formulae.parsed.size(); i++) {
+                long cell = formulae.cells.get(i)[1];
+                bh.consume(renderer.toFormulaString(formulae.parsed.get(i),
+                        DependencyGraph.row(cell), DependencyGraph.column(cell)));
+            }
+        }
+    }
+}
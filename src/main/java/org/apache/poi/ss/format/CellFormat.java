@@ -19,13 +19,19 @@
 
 package org.apache.poi.ss.format;
 
+import org.apache.poi.ss.usermodel.BuiltinFormats;
 import org.apache.poi.ss.usermodel.Cell;
 
 import javax.swing.*;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -69,18 +75,30 @@ import java.util.regex.Pattern;
 @SuppressWarnings({"Singleton"})
 public class CellFormat {
     private final String format;
-    private final CellFormatPart posNumFmt;
-    private final CellFormatPart zeroNumFmt;
-    private final CellFormatPart negNumFmt;
-    private final CellFormatPart textFmt;
+    // the format was split once: the format of each distinct part, null if
+    // it is invalid, and the part of the positive, zero, negative and text
+    // values
+    private final String[] partFormats;
+    private final int[] partIndex;
+    /**
+     * The positive, zero, negative and text parts of each thread: the
+     * formatters keep java.text formats, which are not thread safe, and the
+     * instances are shared through the cache.  The thread creating the
+     * instance uses the parts parsed then, the others copies made from the
+     * part formats, without splitting the whole format again.
+     */
+    private final ThreadLocal<CellFormatPart[]> parts =
+            new ThreadLocal<CellFormatPart[]>() {
+                @Override
+                protected CellFormatPart[] initialValue() {
+                    return copyParts();
+                }
+            };
 
     private static final Pattern ONE_PART = Pattern.compile(
             CellFormatPart.FORMAT_PAT.pattern() + "(;|$)",
             Pattern.COMMENTS | Pattern.CASE_INSENSITIVE);
 
-    private static final CellFormatPart DEFAULT_TEXT_FORMAT =
-            new CellFormatPart("@");
-
     /**
      * Format a value as it would be were no format specified.  This is also
      * used when the format specified is <tt>General</tt>.
@@ -92,7 +110,13 @@ public class CellFormat {
             if (value == null) {
                 text = "";
             } else if (value instanceof Number) {
-                text = CellNumberFormatter.SIMPLE_NUMBER.format(value);
+                // as CellNumberFormatter.SIMPLE_NUMBER, which every thread
+                // would share
+                CellFormatter[] f = generalFormatters.get();
+                if (((Number) value).doubleValue() % 1.0 == 0)
+                    text = f[0].format(value);
+                else
+                    text = f[1].format(value);
             } else {
                 text = value.toString();
             }
@@ -100,30 +124,184 @@ public class CellFormat {
         }
     };
 
-    /** Maps a format string to its parsed version for efficiencies sake. */
-    private static final Map<String, CellFormat> formatCache =
-            new WeakHashMap<String, CellFormat>();
+    /** The integer and the decimal formatters of each thread. */
+    private static final ThreadLocal<CellFormatter[]> generalFormatters =
+            new ThreadLocal<CellFormatter[]>() {
+                @Override
+                protected CellFormatter[] initialValue() {
+                    return new CellFormatter[] { new CellNumberFormatter("#"),
+                            new CellNumberFormatter("#.#") };
+                }
+            };
+
+    /** The most formats kept in {@link #formatCache}. */
+    private static final int MAX_CACHE_SIZE = 1024;
+
+    /**
+     * Maps a format string to its parsed version for efficiencies sake.  The
+     * cache is shared by all threads without locking, and bounded: when it is
+     * full, the least recently used formats are evicted.
+     */
+    private static final ConcurrentMap<String, CacheEntry> formatCache =
+            new ConcurrentHashMap<String, CacheEntry>();
+
+    // taken by the thread evicting formats
+    private static final Object evictionLock = new Object();
+
+    /** A cached format, with the time of its last use. */
+    private static class CacheEntry {
+        final CellFormat format;
+        // the hit count serves as the clock of the least recently used order
+        volatile long lastUsed;
+
+        CacheEntry(CellFormat format, long lastUsed) {
+            this.format = format;
+            this.lastUsed = lastUsed;
+        }
+    }
+
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+    private static final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * The built-in formats, parsed once: they are the most used, so they never
+     * go through the parser again, and never get evicted.
+     */
+    private static final Map<String, CellFormat> builtinFormats =
+            parseBuiltinFormats();
+
+    private static Map<String, CellFormat> parseBuiltinFormats() {
+        Map<String, CellFormat> formats = new HashMap<String, CellFormat>();
+        for (String format : BuiltinFormats.getAll()) {
+            if (format.startsWith("reserved-"))
+                continue;
+            if (format.equals("General"))
+                formats.put(format, GENERAL_FORMAT);
+            else
+                formats.put(format, new CellFormat(format));
+        }
+        return Collections.unmodifiableMap(formats);
+    }
 
     /**
      * Returns a {@link CellFormat} that applies the given format.  Two calls
-     * with the same format may or may not return the same object.
+     * with the same format may or may not return the same object.  This method
+     * is thread-safe, and so are the instances returned: they are shared by
+     * the threads calling it.
      *
      * @param format The format.
      *
      * @return A {@link CellFormat} that applies the given format.
      */
     public static CellFormat getInstance(String format) {
-        CellFormat fmt = formatCache.get(format);
-        if (fmt == null) {
-            if (format.equals("General"))
-                fmt = GENERAL_FORMAT;
-            else
-                fmt = new CellFormat(format);
-            formatCache.put(format, fmt);
+        CellFormat fmt = builtinFormats.get(format);
+        if (fmt != null) {
+            hits.incrementAndGet();
+            return fmt;
         }
+        CacheEntry entry = formatCache.get(format);
+        if (entry != null) {
+            entry.lastUsed = hits.incrementAndGet();
+            return entry.format;
+        }
+        misses.incrementAndGet();
+        if (format.equals("General"))
+            fmt = GENERAL_FORMAT;
+        else
+            fmt = new CellFormat(format);
+        // of two threads parsing the same format, the first to store it wins
+        CacheEntry previous = formatCache.putIfAbsent(format, new CacheEntry(
+                fmt, hits.get()));
+        if (previous != null)
+            return previous.format;
+        if (formatCache.size() > MAX_CACHE_SIZE)
+            evict();
         return fmt;
     }
 
+    /**
+     * Evicts the least recently used formats, down to seven eighths of the
+     * most kept, so that the entries are only sorted every few misses.
+     */
+    private static void evict() {
+        synchronized (evictionLock) {
+            int excess = formatCache.size() - MAX_CACHE_SIZE / 8 * 7;
+            if (formatCache.size() <= MAX_CACHE_SIZE)
+                return;
+            List<Map.Entry<String, CacheEntry>> entries =
+                    new ArrayList<Map.Entry<String, CacheEntry>>(
+                            formatCache.entrySet());
+            long[] lastUsed = new long[entries.size()];
+            for (int i = 0; i < lastUsed.length; i++)
+                lastUsed[i] = entries.get(i).getValue().lastUsed;
+            Arrays.sort(lastUsed);
+            long threshold = lastUsed[Math.min(excess, lastUsed.length) - 1];
+            for (Map.Entry<String, CacheEntry> e : entries) {
+                if (excess == 0)
+                    break;
+                // used since the snapshot, or replaced: kept
+                if (e.getValue().lastUsed <= threshold
+                        && formatCache.remove(e.getKey(), e.getValue())) {
+                    evictions.incrementAndGet();
+                    excess--;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the statistics of the format cache, since the class was loaded.
+     *
+     * @return A snapshot of the cache statistics.
+     */
+    public static CacheStats getCacheStats() {
+        return new CacheStats(hits.get(), misses.get(), evictions.get(),
+                builtinFormats.size() + formatCache.size());
+    }
+
+    /**
+     * A snapshot of the statistics of the cache used by {@link
+     * #getInstance(String)}.  A miss is a format that had to be parsed.
+     */
+    public static class CacheStats {
+        private final long hitCount;
+        private final long missCount;
+        private final long evictionCount;
+        private final int size;
+
+        CacheStats(long hitCount, long missCount, long evictionCount, int size) {
+            this.hitCount = hitCount;
+            this.missCount = missCount;
+            this.evictionCount = evictionCount;
+            this.size = size;
+        }
+
+        public long getHitCount() {
+            return hitCount;
+        }
+
+        public long getMissCount() {
+            return missCount;
+        }
+
+        public long getEvictionCount() {
+            return evictionCount;
+        }
+
+        /** @return the number of formats cached, built-in ones included */
+        public int getSize() {
+            return size;
+        }
+
+        @Override
+        public String toString() {
+            return "CellFormat cache: " + hitCount + " hits, " + missCount
+                    + " misses, " + evictionCount + " evictions, " + size
+                    + " formats";
+        }
+    }
+
     /**
      * Creates a new object.
      *
@@ -132,48 +310,66 @@ public class CellFormat {
     private CellFormat(String format) {
         this.format = format;
         Matcher m = ONE_PART.matcher(format);
-        List<CellFormatPart> parts = new ArrayList<CellFormatPart>();
+        List<String> formats = new ArrayList<String>();
+        List<CellFormatPart> parsed = new ArrayList<CellFormatPart>();
 
         while (m.find()) {
+            String valueDesc = m.group();
             try {
-                String valueDesc = m.group();
-
                 // Strip out the semicolon if it's there
                 if (valueDesc.endsWith(";"))
                     valueDesc = valueDesc.substring(0, valueDesc.length() - 1);
 
-                parts.add(new CellFormatPart(valueDesc));
+                parsed.add(new CellFormatPart(valueDesc));
+                formats.add(valueDesc);
             } catch (RuntimeException e) {
                 CellFormatter.logger.log(Level.WARNING,
                         "Invalid format: " + CellFormatter.quote(m.group()), e);
-                parts.add(null);
+                parsed.add(null);
+                formats.add(null);
             }
         }
 
-        switch (parts.size()) {
+        switch (parsed.size()) {
         case 1:
-            posNumFmt = zeroNumFmt = negNumFmt = parts.get(0);
-            textFmt = DEFAULT_TEXT_FORMAT;
+            partIndex = new int[] { 0, 0, 0, 1 };
             break;
         case 2:
-            posNumFmt = zeroNumFmt = parts.get(0);
-            negNumFmt = parts.get(1);
-            textFmt = DEFAULT_TEXT_FORMAT;
+            partIndex = new int[] { 0, 0, 1, 2 };
             break;
         case 3:
-            posNumFmt = parts.get(0);
-            zeroNumFmt = parts.get(1);
-            negNumFmt = parts.get(2);
-            textFmt = DEFAULT_TEXT_FORMAT;
+            partIndex = new int[] { 0, 1, 2, 3 };
             break;
         case 4:
         default:
-            posNumFmt = parts.get(0);
-            zeroNumFmt = parts.get(1);
-            negNumFmt = parts.get(2);
-            textFmt = parts.get(3);
+            partIndex = new int[] { 0, 1, 2, 3 };
             break;
         }
+        if (parsed.size() > 0 && parsed.size() < 4) {
+            // the default text format
+            parsed.add(new CellFormatPart("@"));
+            formats.add("@");
+        }
+        partFormats = formats.toArray(new String[formats.size()]);
+        CellFormatPart[] own = new CellFormatPart[partIndex.length];
+        for (int i = 0; i < own.length; i++)
+            own[i] = parsed.get(partIndex[i]);
+        parts.set(own);
+    }
+
+    /**
+     * @return a copy of the positive, zero, negative and text parts, for
+     *         another thread
+     */
+    private CellFormatPart[] copyParts() {
+        CellFormatPart[] copies = new CellFormatPart[partFormats.length];
+        for (int i = 0; i < copies.length; i++)
+            if (partFormats[i] != null)
+                copies[i] = new CellFormatPart(partFormats[i]);
+        CellFormatPart[] p = new CellFormatPart[partIndex.length];
+        for (int i = 0; i < p.length; i++)
+            p[i] = copies[partIndex[i]];
+        return p;
     }
 
     /**
@@ -186,17 +382,18 @@ public class CellFormat {
      * @return The result, in a {@link CellFormatResult}.
      */
     public CellFormatResult apply(Object value) {
+        CellFormatPart[] p = parts.get();
         if (value instanceof Number) {
             Number num = (Number) value;
             double val = num.doubleValue();
             if (val > 0)
-                return posNumFmt.apply(value);
+                return p[0].apply(value);
             else if (val < 0)
-                return negNumFmt.apply(-val);
+                return p[2].apply(-val);
             else
-                return zeroNumFmt.apply(value);
+                return p[1].apply(value);
         } else {
-            return textFmt.apply(value);
+            return p[3].apply(value);
         }
     }
 
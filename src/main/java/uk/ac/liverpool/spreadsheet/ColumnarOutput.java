@@ -0,0 +1,264 @@
+/* ====================================================================
+   Licensed to the Apache Software Foundation (ASF) under one or more
+   contributor license agreements.  See the NOTICE file distributed with
+   this work for additional information regarding copyright ownership.
+   The ASF licenses this file to You under the Apache License, Version 2.0
+   (the "License"); you may not use this file except in compliance with
+   the License.  You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+==================================================================== */
+package uk.ac.liverpool.spreadsheet;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writer for the columnar binary output of the converters: the cells of a
+ * sheet, column by column, collected during the print pass and written when
+ * the sheet is done. The layout is described in {@link ColumnarSheet}, which
+ * reads it back.
+ *
+ * Rows are numbered from the first row with a cell, and every column holds
+ * one entry per row up to the last. Each column of the sheet gives up to three
+ * columns in the file: the numbers, the text as written in the XML value
+ * attribute, and the formulae; the numbers are only written for a column with
+ * a number, the formulae for a column with a formula.
+ */
+class ColumnarOutput {
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static class Strings {
+        final Map<String, Integer> codes = new HashMap<String, Integer>();
+        final List<String> values = new ArrayList<String>();
+        int[] rows;
+
+        Strings(int size) {
+            rows = new int[Math.max(size, 16)];
+            Arrays.fill(rows, -1);
+        }
+
+        void set(int row, String value) {
+            Integer code = codes.get(value);
+            if (code == null) {
+                code = Integer.valueOf(values.size());
+                codes.put(value, code);
+                values.add(value);
+            }
+            if (row >= rows.length) {
+                int n = rows.length;
+                rows = Arrays.copyOf(rows, Math.max(row + 1, n * 2));
+                Arrays.fill(rows, n, rows.length, -1);
+            }
+            rows[row] = code.intValue();
+        }
+    }
+
+    private static class Column {
+        double[] numbers;
+        byte[] present;
+        int numberCount;
+        Strings text;
+        int textCount;
+        Strings formulae;
+        int formulaCount;
+    }
+
+    private final String sheetName;
+    private final int firstColumn;
+    private final Column[] columns;
+    private int firstRow = -1;
+    private int rowCount;
+
+    /**
+     * @param firstColumn
+     *            the first column written to the XML
+     * @param endColumn
+     *            the column after the last one written to the XML
+     */
+    ColumnarOutput(String sheetName, int firstColumn, int endColumn) {
+        this.sheetName = sheetName;
+        this.firstColumn = firstColumn;
+        columns = new Column[Math.max(0, endColumn - firstColumn)];
+    }
+
+    /**
+     * Adds a cell, after those of the previous rows.
+     *
+     * @param number
+     *            the numeric value or result, null for another type
+     * @param text
+     *            the formatted value
+     * @param formula
+     *            the formula of a formula cell, else null
+     */
+    void cell(int row, int column, Double number, String text, String formula) {
+        int c = column - firstColumn;
+        if (c < 0 || c >= columns.length)
+            return;
+        if (firstRow < 0)
+            firstRow = row;
+        int r = row - firstRow;
+        rowCount = Math.max(rowCount, r + 1);
+        Column col = columns[c];
+        if (col == null)
+            col = columns[c] = new Column();
+        if (number != null) {
+            if (col.numbers == null) {
+                col.numbers = new double[Math.max(rowCount, 16)];
+                col.present = new byte[(col.numbers.length + 7) >> 3];
+            } else if (r >= col.numbers.length) {
+                col.numbers = Arrays.copyOf(col.numbers, Math.max(r + 1,
+                        col.numbers.length * 2));
+                col.present = Arrays.copyOf(col.present,
+                        (col.numbers.length + 7) >> 3);
+            }
+            col.numbers[r] = number.doubleValue();
+            col.present[r >> 3] |= 1 << (r & 7);
+            col.numberCount++;
+        }
+        if (text != null) {
+            if (col.text == null)
+                col.text = new Strings(rowCount);
+            col.text.set(r, text);
+            col.textCount++;
+        }
+        if (formula != null) {
+            if (col.formulae == null)
+                col.formulae = new Strings(rowCount);
+            col.formulae.set(r, formula);
+            col.formulaCount++;
+        }
+    }
+
+    /**
+     * Writes the file: the header, the columns and the index.
+     */
+    void write(String filename) throws IOException {
+        FileChannel channel = new FileOutputStream(filename).getChannel();
+        try {
+            ByteBuffer header = buffer(ColumnarSheet.HEADER_SIZE);
+            header.putInt(ColumnarSheet.MAGIC).putInt(ColumnarSheet.VERSION)
+            .putInt(Math.max(firstRow, 0)).putInt(rowCount);
+            long position = write(channel, header);
+
+            List<long[]> index = new ArrayList<long[]>();
+            for (int c = 0; c < columns.length; c++) {
+                Column col = columns[c];
+                if (col == null)
+                    continue;
+                if (col.numbers != null) {
+                    long length = write(channel, numbers(col));
+                    index.add(new long[] { firstColumn + c,
+                            ColumnarSheet.NUMBERS, position, length,
+                            col.numberCount });
+                    position += length;
+                }
+                if (col.text != null) {
+                    long length = write(channel, strings(col.text));
+                    index.add(new long[] { firstColumn + c,
+                            ColumnarSheet.TEXT, position, length,
+                            col.textCount });
+                    position += length;
+                }
+                if (col.formulae != null) {
+                    long length = write(channel, strings(col.formulae));
+                    index.add(new long[] { firstColumn + c,
+                            ColumnarSheet.FORMULAE, position, length,
+                            col.formulaCount });
+                    position += length;
+                }
+            }
+
+            byte[] name = sheetName.getBytes(UTF8);
+            ByteBuffer footer = buffer(8 + align(name.length, 8) + index.size()
+                    * ColumnarSheet.ENTRY_SIZE + ColumnarSheet.TRAILER_SIZE);
+            footer.putInt(name.length).putInt(index.size()).put(name);
+            footer.position(8 + align(name.length, 8));
+            for (long[] entry : index) {
+                footer.putInt((int) entry[0]).putInt((int) entry[1])
+                .putLong(entry[2]).putLong(entry[3]).putInt((int) entry[4])
+                .putInt(0);
+            }
+            footer.putLong(position).putInt(0).putInt(ColumnarSheet.MAGIC);
+            write(channel, footer);
+        } finally {
+            channel.close();
+        }
+    }
+
+    /** The bitmap of the rows with a number, then the numbers. */
+    private ByteBuffer numbers(Column col) {
+        int bytes = (rowCount + 7) >> 3;
+        int bitmap = align(bytes, 8);
+        ByteBuffer b = buffer(bitmap + 8 * rowCount);
+        b.put(col.present, 0, Math.min(col.present.length, bytes));
+        b.position(bitmap);
+        int n = Math.min(col.numbers.length, rowCount);
+        b.asDoubleBuffer().put(col.numbers, 0, n);
+        return b;
+    }
+
+    /**
+     * The dictionary: the number of strings, the length of their UTF-8 bytes,
+     * the offset of each string and of the end in the bytes, and the bytes;
+     * then the code of each row, -1 for none.
+     */
+    private ByteBuffer strings(Strings s) {
+        int count = s.values.size();
+        byte[][] encoded = new byte[count][];
+        int total = 0;
+        for (int i = 0; i < count; i++) {
+            encoded[i] = s.values.get(i).getBytes(UTF8);
+            total += encoded[i].length;
+        }
+        int codes = 8 + 4 * (count + 1) + align(total, 4);
+        ByteBuffer b = buffer(align(codes + 4 * rowCount, 8));
+        b.putInt(count).putInt(total);
+        int offset = 0;
+        for (int i = 0; i < count; i++) {
+            b.putInt(offset);
+            offset += encoded[i].length;
+        }
+        b.putInt(offset);
+        for (int i = 0; i < count; i++)
+            b.put(encoded[i]);
+        b.position(codes);
+        for (int r = 0; r < rowCount; r++)
+            b.putInt(r < s.rows.length ? s.rows[r] : -1);
+        return b;
+    }
+
+    private static ByteBuffer buffer(int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /** @return the number of bytes written, the whole buffer */
+    private static long write(FileChannel channel, ByteBuffer b)
+    throws IOException {
+        b.clear();
+        while (b.hasRemaining())
+            channel.write(b);
+        return b.capacity();
+    }
+
+    static int align(int n, int to) {
+        return (n + to - 1) / to * to;
+    }
+}
@@ -0,0 +1,273 @@
+/* ====================================================================
+   Licensed to the Apache Software Foundation (ASF) under one or more
+   contributor license agreements.  See the NOTICE file distributed with
+   this work for additional information regarding copyright ownership.
+   The ASF licenses this file to You under the Apache License, Version 2.0
+   (the "License"); you may not use this file except in compliance with
+   the License.  You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+==================================================================== */
+package uk.ac.liverpool.spreadsheet;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Reader for the columnar binary output of {@link ToXML}, one file per sheet.
+ * Only the index is read when opening the file; each column is mapped in
+ * memory when first used, without reading the others.
+ *
+ * All numbers are little endian, and every column starts at a multiple of 8
+ * bytes:
+ *
+ * <pre>
+ * header   int magic "SCOL", int version, int first row, int row count
+ * columns  one after the other, see below
+ * index    int name length, int column count, UTF-8 sheet name padded to 8
+ *          bytes, then for each column: int sheet column, int kind,
+ *          long offset, long length, int cells, int 0
+ * trailer  long offset of the index, int 0, int magic "SCOL"
+ * </pre>
+ *
+ * A column has one entry for each row, from the first row:
+ * <ul>
+ * <li>{@link #NUMBERS}: a bitmap of the rows with a number (bit r % 8 of byte
+ * r / 8), padded to 8 bytes, then a double for each row, 0 when missing;
+ * <li>{@link #TEXT}, the formatted values, and {@link #FORMULAE}: a dictionary
+ * (int count, int byte length, int offset of each string and of the end,
+ * UTF-8 bytes padded to 4), then an int code for each row, -1 when missing.
+ * </ul>
+ */
+public class ColumnarSheet implements Closeable {
+
+    static final int MAGIC = 'S' | 'C' << 8 | 'O' << 16 | 'L' << 24;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 16;
+    static final int ENTRY_SIZE = 32;
+    static final int TRAILER_SIZE = 16;
+
+    /** Kind of a column: numeric values and results */
+    public static final int NUMBERS = 1;
+    /** Kind of a column: the values formatted like the XML output */
+    public static final int TEXT = 2;
+    /** Kind of a column: the formulae */
+    public static final int FORMULAE = 3;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final String sheetName;
+    private final int firstRow;
+    private final int rowCount;
+    // sheet column, kind, cells of each column, and their place in the file
+    private final int[] columns;
+    private final int[] kinds;
+    private final int[] cells;
+    private final long[] offsets;
+    private final long[] lengths;
+    private final ByteBuffer[] mapped;
+
+    public ColumnarSheet(File f) throws IOException {
+        file = new RandomAccessFile(f, "r");
+        try {
+            channel = file.getChannel();
+            ByteBuffer header = read(0, HEADER_SIZE);
+            long size = channel.size();
+            ByteBuffer trailer = read(size - TRAILER_SIZE, TRAILER_SIZE);
+            if (header.getInt(0) != MAGIC || trailer.getInt(12) != MAGIC)
+                throw new IOException(f + " is not a columnar sheet");
+            if (header.getInt(4) != VERSION)
+                throw new IOException("unsupported version "
+                        + header.getInt(4));
+            firstRow = header.getInt(8);
+            rowCount = header.getInt(12);
+
+            long start = trailer.getLong(0);
+            ByteBuffer index = read(start, (int) (size - TRAILER_SIZE - start));
+            int nameLength = index.getInt();
+            int count = index.getInt();
+            byte[] name = new byte[nameLength];
+            index.get(name);
+            sheetName = new String(name, ColumnarOutput.UTF8);
+            index.position(8 + ColumnarOutput.align(nameLength, 8));
+            columns = new int[count];
+            kinds = new int[count];
+            cells = new int[count];
+            offsets = new long[count];
+            lengths = new long[count];
+            mapped = new ByteBuffer[count];
+            for (int i = 0; i < count; i++) {
+                columns[i] = index.getInt();
+                kinds[i] = index.getInt();
+                offsets[i] = index.getLong();
+                lengths[i] = index.getLong();
+                cells[i] = index.getInt();
+                index.getInt();
+            }
+        } catch (IOException x) {
+            file.close();
+            throw x;
+        } catch (RuntimeException x) {
+            file.close();
+            throw new IOException(f + " is not a columnar sheet", x);
+        }
+    }
+
+    private ByteBuffer read(long position, int length) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(length).order(
+                ByteOrder.LITTLE_ENDIAN);
+        while (b.hasRemaining())
+            if (channel.read(b, position + b.position()) < 0)
+                throw new IOException("unexpected end of file");
+        b.flip();
+        return b;
+    }
+
+    public String getSheetName() {
+        return sheetName;
+    }
+
+    /** @return the first row with a cell, from 0 */
+    public int getFirstRow() {
+        return firstRow;
+    }
+
+    /** @return the number of rows, up to the last one with a cell */
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    /** @return the sheet columns with a column of the given kind */
+    public int[] getColumns(int kind) {
+        int[] found = new int[columns.length];
+        int n = 0;
+        for (int i = 0; i < columns.length; i++)
+            if (kinds[i] == kind)
+                found[n++] = columns[i];
+        return Arrays.copyOf(found, n);
+    }
+
+    /**
+     * @return the number of cells in a column of the given kind, -1 if there
+     *         is no such column
+     */
+    public int getCellCount(int column, int kind) {
+        int i = indexOf(column, kind);
+        return i < 0 ? -1 : cells[i];
+    }
+
+    /**
+     * @return the numbers of a column, one per row from the first row, 0 for
+     *         the rows without a number; null if the column has no number
+     */
+    public DoubleBuffer getNumbers(int column) throws IOException {
+        ByteBuffer b = column(column, NUMBERS);
+        if (b == null)
+            return null;
+        b.position(bitmapLength());
+        return b.slice().order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+    }
+
+    /**
+     * @param row
+     *            the row in the sheet, from 0
+     * @return the numeric value or result of a cell, null if it has none
+     */
+    public Double getNumber(int column, int row) throws IOException {
+        ByteBuffer b = column(column, NUMBERS);
+        int r = row - firstRow;
+        if (b == null || r < 0 || r >= rowCount
+                || (b.get(r >> 3) & 1 << (r & 7)) == 0)
+            return null;
+        return Double.valueOf(b.getDouble(bitmapLength() + 8 * r));
+    }
+
+    /** @return the formatted value of a cell, null for a missing cell */
+    public String getText(int column, int row) throws IOException {
+        return string(column(column, TEXT), row);
+    }
+
+    /** @return the formula of a cell, null if it has none */
+    public String getFormula(int column, int row) throws IOException {
+        return string(column(column, FORMULAE), row);
+    }
+
+    private String string(ByteBuffer b, int row) {
+        int r = row - firstRow;
+        if (b == null || r < 0 || r >= rowCount)
+            return null;
+        int count = b.getInt(0);
+        int codes = 8 + 4 * (count + 1)
+        + ColumnarOutput.align(b.getInt(4), 4);
+        int code = b.getInt(codes + 4 * r);
+        if (code < 0)
+            return null;
+        int start = b.getInt(8 + 4 * code);
+        int end = b.getInt(12 + 4 * code);
+        byte[] bytes = new byte[end - start];
+        ByteBuffer s = b.duplicate();
+        s.position(8 + 4 * (count + 1) + start);
+        s.get(bytes);
+        return new String(bytes, ColumnarOutput.UTF8);
+    }
+
+    /**
+     * @return the codes of a string column, one per row, as an int view of
+     *         the mapped file; the strings are read with
+     *         {@link #getText(int, int)} or {@link #getFormula(int, int)}
+     */
+    public IntBuffer getCodes(int column, int kind) throws IOException {
+        ByteBuffer b = column(column, kind);
+        if (b == null || kind == NUMBERS)
+            return null;
+        b.position(8 + 4 * (b.getInt(0) + 1)
+                + ColumnarOutput.align(b.getInt(4), 4));
+        return b.slice().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+    }
+
+    private int bitmapLength() {
+        return ColumnarOutput.align((rowCount + 7) >> 3, 8);
+    }
+
+    private int indexOf(int column, int kind) {
+        for (int i = 0; i < columns.length; i++)
+            if (columns[i] == column && kinds[i] == kind)
+                return i;
+        return -1;
+    }
+
+    /** Maps a column the first time it is used. */
+    private ByteBuffer column(int column, int kind) throws IOException {
+        int i = indexOf(column, kind);
+        if (i < 0)
+            return null;
+        if (mapped[i] == null) {
+            MappedByteBuffer b = channel.map(FileChannel.MapMode.READ_ONLY,
+                    offsets[i], lengths[i]);
+            mapped[i] = b.order(ByteOrder.LITTLE_ENDIAN);
+        }
+        return mapped[i].duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Closes the file; the buffers already returned stay readable.
+     */
+    public void close() throws IOException {
+        file.close();
+    }
+}
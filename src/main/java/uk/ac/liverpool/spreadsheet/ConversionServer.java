@@ -0,0 +1,435 @@
+/* ====================================================================
+   Licensed to the Apache Software Foundation (ASF) under one or more
+   contributor license agreements.  See the NOTICE file distributed with
+   this work for additional information regarding copyright ownership.
+   The ASF licenses this file to You under the Apache License, Version 2.0
+   (the "License"); you may not use this file except in compliance with
+   the License.  You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+==================================================================== */
+package uk.ac.liverpool.spreadsheet;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.poi.openxml4j.exceptions.InvalidFormatException;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Local HTTP service running the feature analysis and the conversion in one
+ * long running JVM, so that a request does not pay for the start of the JVM,
+ * the loading of POI and the warm up of the JIT.
+ *
+ * <pre>
+ * POST /analyse?name=book.xls        the workbook in the body
+ * GET  /analyse?path=/data/book.xls  a file readable by the server
+ * POST /convert?name=book.xlsx
+ * GET  /convert?path=/data/book.xlsx
+ * GET  /status
+ * </pre>
+ *
+ * /analyse answers the XML report of {@link ExcelFeatureAnalysis#analyse(File)}
+ * or, with events=true for an .xls file, of
+ * {@link HSSFEventFeatureAnalysis#analyse(File)}. /convert streams the JSON
+ * lines of {@link ToXML#convertToJSON(OutputStream, SheetVisitor...)}, all the
+ * sheets one after the other, as they are written; the evaluate, compact and
+ * sparse parameters set the options of the same name, and stream=true reads
+ * an .xlsx file with {@link StreamingToXML}. /status answers the counters of
+ * the server, one per line.
+ *
+ * At most {@link #getThreads()} requests are processed at a time, and up to
+ * {@link #getQueueSize()} more wait for a thread, in order. Any other request
+ * is answered at once with 429 Too Many Requests and a Retry-After header,
+ * except /status. The server listens on the loopback interface by default: a
+ * path is read with the rights of the server.
+ */
+public class ConversionServer {
+
+    private static final String FEATURE_TYPE = "application/xml; charset=UTF-8";
+    private static final String JSON_TYPE = "application/x-ndjson";
+    private static final String TEXT_TYPE = "text/plain; charset=UTF-8";
+
+    // set while a request is handled by the dispatcher thread because the
+    // pool and its queue are full
+    private static final ThreadLocal<Boolean> SATURATED =
+        new ThreadLocal<Boolean>();
+
+    private InetSocketAddress address = new InetSocketAddress(
+            InetAddress.getLoopbackAddress(), 8080);
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private int queueSize = 16;
+    private HttpServer server;
+    private ThreadPoolExecutor pool;
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    public InetSocketAddress getAddress() {
+        return server != null ? server.getAddress() : address;
+    }
+
+    /**
+     * Sets the address to listen on, before {@link #start()}; port 0 picks a
+     * free port.
+     */
+    public void setAddress(InetSocketAddress address) {
+        this.address = address;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    /** Sets the number of requests processed at the same time. */
+    public void setThreads(int threads) {
+        if (threads < 1)
+            throw new IllegalArgumentException("threads must be positive");
+        this.threads = threads;
+    }
+
+    public int getQueueSize() {
+        return queueSize;
+    }
+
+    /**
+     * Sets the number of requests waiting for a thread, over which requests
+     * are rejected with 429.
+     */
+    public void setQueueSize(int queueSize) {
+        if (queueSize < 1)
+            throw new IllegalArgumentException(
+            "the queue size must be positive");
+        this.queueSize = queueSize;
+    }
+
+    /**
+     * Starts listening; the requests are processed by threads of the server,
+     * until {@link #stop(int)}.
+     */
+    public void start() throws IOException {
+        if (server != null)
+            throw new IllegalStateException("already started");
+        final AtomicInteger count = new AtomicInteger();
+        pool = new ThreadPoolExecutor(threads, threads, 0,
+                TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(
+                        queueSize), new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "conversion-"
+                        + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        }, new RejectedExecutionHandler() {
+            // runs the exchange in the dispatcher thread, which answers 429
+            public void rejectedExecution(Runnable r, ThreadPoolExecutor e) {
+                SATURATED.set(Boolean.TRUE);
+                try {
+                    r.run();
+                } finally {
+                    SATURATED.remove();
+                }
+            }
+        });
+        server = HttpServer.create(address, threads + queueSize);
+        server.setExecutor(pool);
+        server.createContext("/analyse", new Handler() {
+            void handle(HttpExchange x, Map<String, String> query)
+            throws Exception {
+                analyse(x, query);
+            }
+        });
+        server.createContext("/convert", new Handler() {
+            void handle(HttpExchange x, Map<String, String> query)
+            throws Exception {
+                convert(x, query);
+            }
+        });
+        server.createContext("/status", new Handler() {
+            boolean limited() {
+                return false;
+            }
+
+            void handle(HttpExchange x, Map<String, String> query)
+            throws IOException {
+                send(x, 200, TEXT_TYPE, status());
+            }
+        });
+        server.start();
+    }
+
+    /**
+     * Stops listening, and waits for the requests being processed.
+     *
+     * @param delay
+     *            the longest wait, in seconds
+     */
+    public void stop(int delay) {
+        if (server == null)
+            return;
+        server.stop(delay);
+        pool.shutdown();
+        server = null;
+    }
+
+    /** @return the counters of the server, one "name value" per line */
+    public String status() {
+        ThreadPoolExecutor p = pool;
+        return "threads " + threads + "\nactive "
+        + (p != null ? p.getActiveCount() : 0) + "\nqueued "
+        + (p != null ? p.getQueue().size() : 0) + "\nqueueSize " + queueSize
+        + "\ncompleted " + completed + "\nfailed " + failed + "\nrejected "
+        + rejected + "\n";
+    }
+
+    /**
+     * Parses the query and answers the errors of a request; 429 when the
+     * server is saturated.
+     */
+    private abstract class Handler implements HttpHandler {
+
+        abstract void handle(HttpExchange x, Map<String, String> query)
+        throws Exception;
+
+        /** @return false for a cheap request, answered even when saturated */
+        boolean limited() {
+            return true;
+        }
+
+        public void handle(HttpExchange x) throws IOException {
+            try {
+                if (SATURATED.get() != null && limited()) {
+                    rejected.incrementAndGet();
+                    x.getResponseHeaders().set("Retry-After", "1");
+                    send(x, 429, TEXT_TYPE, "too many requests\n");
+                    return;
+                }
+                try {
+                    handle(x, query(x.getRequestURI().getRawQuery()));
+                    completed.incrementAndGet();
+                } catch (Exception e) {
+                    failed.incrementAndGet();
+                    error(x, e);
+                } catch (StackOverflowError e) {
+                    failed.incrementAndGet();
+                    error(x, e);
+                } catch (OutOfMemoryError e) {
+                    failed.incrementAndGet();
+                    error(x, e);
+                }
+            } finally {
+                x.close();
+            }
+        }
+    }
+
+    private void analyse(HttpExchange x, Map<String, String> query)
+    throws Exception {
+        File in = input(x, query);
+        File upload = query.containsKey("path") ? null : in;
+        try {
+            String s;
+            if ("true".equals(query.get("events"))
+                    && in.getName().toLowerCase().endsWith(".xls"))
+                s = HSSFEventFeatureAnalysis.analyse(in);
+            else
+                s = ExcelFeatureAnalysis.analyse(in);
+            send(x, 200, FEATURE_TYPE, s);
+        } finally {
+            delete(upload);
+        }
+    }
+
+    private void convert(HttpExchange x, Map<String, String> query)
+    throws Exception {
+        boolean stream = "true".equals(query.get("stream"));
+        boolean evaluate = "true".equals(query.get("evaluate"));
+        boolean compact = "true".equals(query.get("compact"));
+        boolean sparse = "true".equals(query.get("sparse"));
+        String path = query.get("path");
+        String name = path != null ? path : query.get("name");
+        if (stream && name != null && name.toLowerCase().endsWith(".xlsx")) {
+            File in = input(x, query);
+            File upload = path != null ? null : in;
+            try {
+                StreamingToXML toXml = StreamingToXML.create(in);
+                try {
+                    toXml.setCompactFormulae(compact);
+                    toXml.setSparseOutput(sparse);
+                    x.getResponseHeaders().set("Content-Type", JSON_TYPE);
+                    x.sendResponseHeaders(200, 0);
+                    toXml.convertToJSON(x.getResponseBody());
+                } finally {
+                    toXml.close();
+                }
+            } finally {
+                delete(upload);
+            }
+            return;
+        }
+        // the whole workbook is read before the first line is written; a
+        // local file is read in place, an upload from the request body
+        ToXML toXml;
+        if (path != null) {
+            toXml = ToXML.create(new File(path));
+        } else {
+            InputStream in = x.getRequestBody();
+            try {
+                toXml = ToXML.create(in);
+            } finally {
+                in.close();
+            }
+        }
+        try {
+            toXml.setEvaluateFormulae(evaluate);
+            toXml.setCompactFormulae(compact);
+            toXml.setSparseOutput(sparse);
+            x.getResponseHeaders().set("Content-Type", JSON_TYPE);
+            x.sendResponseHeaders(200, 0);
+            toXml.convertToJSON(x.getResponseBody());
+        } finally {
+            toXml.close();
+        }
+    }
+
+    /**
+     * @return the file of the path parameter, or else the body of the request
+     *         saved in a temporary directory, under the name parameter
+     */
+    private static File input(HttpExchange x, Map<String, String> query)
+    throws IOException {
+        String path = query.get("path");
+        if (path != null) {
+            File f = new File(path);
+            if (!f.isFile())
+                throw new FileNotFoundException(path);
+            return f;
+        }
+        String name = query.get("name");
+        if (name == null)
+            name = "upload.xls";
+        name = new File(name).getName();
+        File dir = Files.createTempDirectory("conversion").toFile();
+        File f = new File(dir, name.length() > 0 ? name : "upload.xls");
+        InputStream in = x.getRequestBody();
+        try {
+            Files.copy(in, f.toPath());
+        } catch (IOException e) {
+            delete(f);
+            throw e;
+        } finally {
+            in.close();
+        }
+        return f;
+    }
+
+    /** Deletes an uploaded file and its temporary directory. */
+    private static void delete(File upload) {
+        if (upload == null)
+            return;
+        upload.delete();
+        upload.getParentFile().delete();
+    }
+
+    /**
+     * Answers the failure of a request with its message, unless the response
+     * has already started; the stream is then cut short.
+     */
+    private static void error(HttpExchange x, Throwable t) throws IOException {
+        if (x.getResponseCode() != -1)
+            return;
+        int code = 500;
+        if (t instanceof FileNotFoundException)
+            code = 404;
+        else if (t instanceof InvalidFormatException
+                || t instanceof IllegalArgumentException)
+            code = 400;
+        String m = t.getMessage();
+        send(x, code, TEXT_TYPE, t.getClass().getName()
+                + (m != null ? ": " + m : "") + "\n");
+    }
+
+    private static void send(HttpExchange x, int code, String type, String s)
+    throws IOException {
+        byte[] bytes = s.getBytes("UTF-8");
+        x.getResponseHeaders().set("Content-Type", type);
+        x.sendResponseHeaders(code, bytes.length);
+        OutputStream out = x.getResponseBody();
+        out.write(bytes);
+        out.close();
+    }
+
+    private static Map<String, String> query(String rawQuery)
+    throws UnsupportedEncodingException {
+        Map<String, String> query = new HashMap<String, String>();
+        if (rawQuery == null)
+            return query;
+        for (String p : rawQuery.split("&")) {
+            if (p.length() == 0)
+                continue;
+            int i = p.indexOf('=');
+            if (i < 0)
+                query.put(URLDecoder.decode(p, "UTF-8"), "");
+            else
+                query.put(URLDecoder.decode(p.substring(0, i), "UTF-8"),
+                        URLDecoder.decode(p.substring(i + 1), "UTF-8"));
+        }
+        return query;
+    }
+
+    /**
+     * Run this class as a program
+     *
+     * @param args
+     *            [-port n] [-threads n] [-queue n]
+     */
+    public static void main(String[] args) throws IOException {
+        ConversionServer server = new ConversionServer();
+        int port = 8080;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-port") && i + 1 < args.length)
+                port = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-threads") && i + 1 < args.length)
+                server.setThreads(Integer.parseInt(args[++i]));
+            else if (args[i].equals("-queue") && i + 1 < args.length)
+                server.setQueueSize(Integer.parseInt(args[++i]));
+            else {
+                System.err
+                .println("usage: ConversionServer [-port n] [-threads n] [-queue n]");
+                return;
+            }
+        }
+        server.setAddress(new InetSocketAddress(InetAddress
+                .getLoopbackAddress(), port));
+        server.start();
+        System.out.println("listening on http://"
+                + server.getAddress().getHostString() + ":"
+                + server.getAddress().getPort() + "/");
+    }
+}
@@ -0,0 +1,564 @@
+/* ====================================================================
+   Licensed to the Apache Software Foundation (ASF) under one or more
+   contributor license agreements.  See the NOTICE file distributed with
+   this work for additional information regarding copyright ownership.
+   The ASF licenses this file to You under the Apache License, Version 2.0
+   (the "License"); you may not use this file except in compliance with
+   the License.  You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+==================================================================== */
+package uk.ac.liverpool.spreadsheet;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Batch engine running the feature analysis and the XML conversion over a
+ * corpus of Excel files. Files are processed concurrently on a work stealing
+ * pool, largest first to cut the tail of the run, while an in-flight byte
+ * budget keeps a few huge workbooks from exhausting the heap.
+ *
+ * Every file produces one {@link Result} per task; failures are reported with
+ * their message, never with a stack trace. Can be used as a library or run
+ * as a program.
+ *
+ * The outputs are the ones of the former TestFA and TestToML utilities:
+ * file_feature.xml for the analysis, file.[sheetNumber].xml for the
+ * conversion. With a {@link ResultCache}, the outputs of the files already
+ * processed are copied from the cache instead. With both tasks, each workbook
+ * is opened and its sheets traversed once, see {@link WorkbookPipeline}.
+ */
+public class CorpusRunner {
+
+    /** The work to be done on every file. */
+    public enum Task {
+        ANALYSE, CONVERT
+    }
+
+    /** The outcome of one task on one file. */
+    public static class Result {
+        private final File file;
+        private final Task task;
+        private final String error;
+        private final long millis;
+        private final boolean cached;
+
+        Result(File file, Task task, String error, long millis, boolean cached) {
+            this.file = file;
+            this.task = task;
+            this.error = error;
+            this.millis = millis;
+            this.cached = cached;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public Task getTask() {
+            return task;
+        }
+
+        public boolean isSuccess() {
+            return error == null;
+        }
+
+        /** @return the failure message, null on success */
+        public String getError() {
+            return error;
+        }
+
+        public long getMillis() {
+            return millis;
+        }
+
+        /** @return true if the outputs were copied from the result cache */
+        public boolean isCached() {
+            return cached;
+        }
+
+        public String toString() {
+            if (error == null)
+                return "OK     " + task + " " + file + " (" + millis + " ms"
+                + (cached ? ", cached)" : ")");
+            return "FAILED " + task + " " + file + ": " + error;
+        }
+    }
+
+    /** Notified as soon as each task completes, from the worker thread. */
+    public interface Listener {
+        void finished(Result result);
+    }
+
+    private static final String FEATURE_SUFFIX = "_feature.xml";
+
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private long maxInFlightBytes = Runtime.getRuntime().maxMemory() / 8;
+    private boolean recurse;
+    private boolean analyse = true;
+    private boolean convert;
+    private boolean evaluateFormulae;
+    private ResultCache cache;
+    private Listener listener;
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public void setThreads(int threads) {
+        if (threads < 1)
+            throw new IllegalArgumentException("threads must be positive");
+        this.threads = threads;
+    }
+
+    public long getMaxInFlightBytes() {
+        return maxInFlightBytes;
+    }
+
+    /**
+     * Sets the total size of the input files being processed at the same
+     * time. A file bigger than the budget runs alone.
+     */
+    public void setMaxInFlightBytes(long maxInFlightBytes) {
+        if (maxInFlightBytes < 1)
+            throw new IllegalArgumentException(
+            "the byte budget must be positive");
+        this.maxInFlightBytes = maxInFlightBytes;
+    }
+
+    public boolean isRecurse() {
+        return recurse;
+    }
+
+    public void setRecurse(boolean recurse) {
+        this.recurse = recurse;
+    }
+
+    public boolean isAnalyse() {
+        return analyse;
+    }
+
+    public void setAnalyse(boolean analyse) {
+        this.analyse = analyse;
+    }
+
+    public boolean isConvert() {
+        return convert;
+    }
+
+    public void setConvert(boolean convert) {
+        this.convert = convert;
+    }
+
+    public boolean isEvaluateFormulae() {
+        return evaluateFormulae;
+    }
+
+    public void setEvaluateFormulae(boolean evaluateFormulae) {
+        this.evaluateFormulae = evaluateFormulae;
+    }
+
+    public ResultCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Sets the cache where the outputs are looked up before processing a
+     * file, and stored after; null, the default, for no cache.
+     */
+    public void setCache(ResultCache cache) {
+        this.cache = cache;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Processes all the Excel files found in the given files or folders, and
+     * waits for completion.
+     *
+     * @return the results, in completion order
+     */
+    public List<Result> run(File... roots) throws InterruptedException {
+        List<File> files = new ArrayList<File>();
+        for (File root : roots)
+            listFiles(root, files);
+        // largest first, so that the big files do not start last
+        Collections.sort(files, new Comparator<File>() {
+            public int compare(File a, File b) {
+                long la = a.length();
+                long lb = b.length();
+                return la < lb ? 1 : (la == lb ? 0 : -1);
+            }
+        });
+
+        final List<Result> results = Collections
+        .synchronizedList(new ArrayList<Result>());
+        // permits are in KB, so that budgets over 2GB fit in a semaphore
+        final int budget = (int) Math.min(Integer.MAX_VALUE,
+                Math.max(1, maxInFlightBytes / 1024));
+        final Semaphore inFlight = new Semaphore(budget);
+        // bounds the number of queued tasks, independently of their size
+        final Semaphore slots = new Semaphore(threads * 2);
+
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            for (final File f : files) {
+                final int cost = (int) Math.min(budget,
+                        Math.max(1, f.length() / 1024));
+                slots.acquire();
+                inFlight.acquire(cost);
+                pool.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            process(f, results);
+                        } finally {
+                            inFlight.release(cost);
+                            slots.release();
+                        }
+                    }
+                });
+            }
+        } finally {
+            pool.shutdown();
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+        return results;
+    }
+
+    private void listFiles(File d, List<File> files) {
+        if (d.isFile()) {
+            if (isExcel(d))
+                files.add(d);
+            return;
+        }
+        File[] dirList = d.listFiles();
+        if (dirList == null)
+            return;
+        for (File element : dirList) {
+            if (element.isDirectory()) {
+                if (recurse)
+                    listFiles(element, files);
+            } else if (element.canRead() && isExcel(element)) {
+                files.add(element);
+            }
+        }
+    }
+
+    private static boolean isExcel(File f) {
+        String name = f.getName().toLowerCase();
+        return name.endsWith("xls") || name.endsWith("xlsx");
+    }
+
+    private void process(File f, List<Result> results) {
+        String digest = null;
+        if (cache != null)
+            try {
+                digest = ResultCache.digest(f);
+            } catch (IOException x) {
+                // processed without the cache
+            }
+        if (analyse && convert) {
+            runBoth(f, digest, results);
+            return;
+        }
+        if (analyse)
+            report(run(f, Task.ANALYSE, digest), results);
+        if (convert)
+            report(run(f, Task.CONVERT, digest), results);
+    }
+
+    /**
+     * Analyses and converts a file opened once, see {@link WorkbookPipeline}.
+     * The two tasks are still reported and cached separately, the traversal of
+     * the sheets being counted in the conversion. A task whose output is not
+     * cached runs on its own if the other one is cached, if the workbook cannot
+     * be opened, or if the conversion failed before the analysis, so that the
+     * outcome is the same as with two jobs: an encrypted workbook, for
+     * instance, is still analysed. A task that failed is not run again.
+     */
+    private void runBoth(File f, String digest, List<Result> results) {
+        String analyseKey = digest != null ? key(digest, Task.ANALYSE) : null;
+        String convertKey = digest != null ? key(digest, Task.CONVERT) : null;
+        Result analysed = cached(f, Task.ANALYSE, analyseKey);
+        Result converted = cached(f, Task.CONVERT, convertKey);
+        if (analysed == null && converted == null) {
+            Result[] both = runPipeline(f, analyseKey, convertKey);
+            analysed = both[0];
+            converted = both[1];
+        }
+        if (analysed == null)
+            analysed = compute(f, Task.ANALYSE, analyseKey);
+        if (converted == null)
+            converted = compute(f, Task.CONVERT, convertKey);
+        report(analysed, results);
+        report(converted, results);
+    }
+
+    /**
+     * @return the results of the analysis and of the conversion, null for a
+     *         task to run on its own
+     */
+    private Result[] runPipeline(File f, String analyseKey,
+            String convertKey) {
+        Result[] results = new Result[2];
+        long start = System.currentTimeMillis();
+        WorkbookPipeline pipeline;
+        try {
+            pipeline = WorkbookPipeline.open(f);
+        } catch (Exception e) {
+            // encrypted or unreadable: each task reports it in its own way
+            return results;
+        } catch (StackOverflowError e) {
+            return failed(f, results, describe(e), start);
+        } catch (OutOfMemoryError e) {
+            return failed(f, results, describe(e), start);
+        }
+        try {
+            pipeline.getConverter().setEvaluateFormulae(evaluateFormulae);
+            List<String> converted = suffixes(f, pipeline.convert(f
+                    .getAbsolutePath() + ".xml"));
+            if (convertKey != null)
+                store(convertKey, f, converted);
+            long middle = System.currentTimeMillis();
+            results[1] = new Result(f, Task.CONVERT, null, middle - start,
+                    false);
+            start = middle;
+            List<String> analysed = writeFeatures(f, pipeline.analyse());
+            if (analyseKey != null)
+                store(analyseKey, f, analysed);
+            results[0] = new Result(f, Task.ANALYSE, null,
+                    System.currentTimeMillis() - start, false);
+        } catch (Exception e) {
+            // a failed conversion leaves the analysis to run on its own
+            if (results[1] == null)
+                results[1] = new Result(f, Task.CONVERT, describe(e), System
+                        .currentTimeMillis() - start, false);
+            else
+                results[0] = new Result(f, Task.ANALYSE, describe(e), System
+                        .currentTimeMillis() - start, false);
+        } catch (StackOverflowError e) {
+            failed(f, results, describe(e), start);
+        } catch (OutOfMemoryError e) {
+            failed(f, results, describe(e), start);
+        } finally {
+            try {
+                pipeline.close();
+            } catch (IOException x) {
+                // opened read only, nothing is lost
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Gives an error to the tasks without a result, which are not run again.
+     */
+    private static Result[] failed(File f, Result[] results, String error,
+            long start) {
+        long millis = System.currentTimeMillis() - start;
+        if (results[0] == null)
+            results[0] = new Result(f, Task.ANALYSE, error, millis, false);
+        if (results[1] == null)
+            results[1] = new Result(f, Task.CONVERT, error, millis, false);
+        return results;
+    }
+
+    private void report(Result r, List<Result> results) {
+        results.add(r);
+        if (listener != null)
+            listener.finished(r);
+    }
+
+    private Result run(File f, Task task, String digest) {
+        String key = digest != null ? key(digest, task) : null;
+        Result r = cached(f, task, key);
+        return r != null ? r : compute(f, task, key);
+    }
+
+    /**
+     * @return the result of a task whose outputs were copied from the cache,
+     *         null if they are not cached
+     */
+    private Result cached(File f, Task task, String key) {
+        long start = System.currentTimeMillis();
+        if (key == null
+                || !cache.get(key, f.getAbsoluteFile().getParentFile(), f
+                        .getName()))
+            return null;
+        return new Result(f, task, null, System.currentTimeMillis() - start,
+                true);
+    }
+
+    private Result compute(File f, Task task, String key) {
+        long start = System.currentTimeMillis();
+        String error = null;
+        try {
+            List<String> suffixes = task == Task.ANALYSE ? analyse(f)
+                    : convert(f);
+            if (key != null)
+                store(key, f, suffixes);
+        } catch (Exception e) {
+            error = describe(e);
+        } catch (StackOverflowError e) {
+            error = describe(e);
+        } catch (OutOfMemoryError e) {
+            error = describe(e);
+        }
+        return new Result(f, task, error, System.currentTimeMillis() - start,
+                false);
+    }
+
+    /**
+     * Stores the outputs of a task in the cache. A failure, a full disk for
+     * instance, is counted by the cache and leaves the task successful.
+     */
+    private void store(String key, File f, List<String> suffixes) {
+        try {
+            cache.put(key, f.getAbsoluteFile().getParentFile(), f.getName(),
+                    suffixes);
+        } catch (IOException x) {
+            // counted in the cache statistics
+        }
+    }
+
+    // the options that change the output of a task are part of the key
+    private String key(String digest, Task task) {
+        if (task == Task.ANALYSE)
+            return ResultCache.key(digest, "analyse");
+        return ResultCache.key(digest, "convert", "evaluateFormulae="
+                + evaluateFormulae);
+    }
+
+    private static String describe(Throwable t) {
+        String m = t.getMessage();
+        return t.getClass().getName() + (m != null ? ": " + m : "");
+    }
+
+    /**
+     * @return the suffixes of the output file names
+     */
+    private static List<String> analyse(File f) throws Exception {
+        return writeFeatures(f, ExcelFeatureAnalysis.analyse(f));
+    }
+
+    /**
+     * @return the suffixes of the output file names
+     */
+    private static List<String> writeFeatures(File f, String s)
+    throws IOException {
+        FileWriter fileWriter = new FileWriter(f.getAbsolutePath()
+                + FEATURE_SUFFIX);
+        try {
+            fileWriter.write(s);
+        } finally {
+            fileWriter.close();
+        }
+        return Collections.singletonList(FEATURE_SUFFIX);
+    }
+
+    /**
+     * @return the suffixes of the output file names
+     */
+    private List<String> convert(File f) throws Exception {
+        ToXML toMl = ToXML.create(f);
+        try {
+            toMl.setEvaluateFormulae(evaluateFormulae);
+            return suffixes(f, toMl.convert(f.getAbsolutePath() + ".xml"));
+        } finally {
+            toMl.close();
+        }
+    }
+
+    /**
+     * @return the suffixes of the files written, after the name of the input
+     */
+    private static List<String> suffixes(File f, List<File> written) {
+        List<String> suffixes = new ArrayList<String>();
+        for (File w : written)
+            suffixes.add(w.getName().substring(f.getName().length()));
+        return suffixes;
+    }
+
+    /**
+     * Run this class as a program
+     *
+     * @param args
+     *            [-r] [-analyse] [-convert] [-evaluate] [-threads n]
+     *            [-budget megabytes] [-cache folder] [-cacheSize megabytes]
+     *            file or folder...
+     */
+    public static void main(String[] args) throws IOException,
+    InterruptedException {
+        CorpusRunner runner = new CorpusRunner();
+        List<File> roots = new ArrayList<File>();
+        boolean analyse = false;
+        boolean convert = false;
+        File cacheDirectory = null;
+        long cacheSize = 1024;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-r"))
+                runner.setRecurse(true);
+            else if (args[i].equals("-analyse"))
+                analyse = true;
+            else if (args[i].equals("-convert"))
+                convert = true;
+            else if (args[i].equals("-evaluate"))
+                runner.setEvaluateFormulae(true);
+            else if (args[i].equals("-threads") && i + 1 < args.length)
+                runner.setThreads(Integer.parseInt(args[++i]));
+            else if (args[i].equals("-budget") && i + 1 < args.length)
+                runner.setMaxInFlightBytes(Long.parseLong(args[++i]) * 1024 * 1024);
+            else if (args[i].equals("-cache") && i + 1 < args.length)
+                cacheDirectory = new File(args[++i]);
+            else if (args[i].equals("-cacheSize") && i + 1 < args.length)
+                cacheSize = Long.parseLong(args[++i]);
+            else
+                roots.add(new File(args[i]));
+        }
+        if (roots.isEmpty()) {
+            System.err
+            .println("usage: CorpusRunner [-r] [-analyse] [-convert] [-evaluate] [-threads n] [-budget megabytes] [-cache folder] [-cacheSize megabytes] fileOrFolder...");
+            return;
+        }
+        if (cacheDirectory != null)
+            runner.setCache(new ResultCache(cacheDirectory,
+                    cacheSize * 1024 * 1024));
+        if (analyse || convert) {
+            runner.setAnalyse(analyse);
+            runner.setConvert(convert);
+        }
+        runner.setListener(new Listener() {
+            public void finished(Result result) {
+                System.out.println(result);
+            }
+        });
+
+        long start = System.currentTimeMillis();
+        List<Result> results = runner.run(roots.toArray(new File[roots.size()]));
+        int failed = 0;
+        for (Result r : results)
+            if (!r.isSuccess())
+                failed++;
+        System.out.println(results.size() + " tasks, " + failed + " failed, "
+                + (System.currentTimeMillis() - start) + " ms");
+        if (runner.getCache() != null)
+            System.out.println(runner.getCache());
+    }
+}
@@ -0,0 +1,799 @@
+/* ====================================================================
+   Licensed to the Apache Software Foundation (ASF) under one or more
+   contributor license agreements.  See the NOTICE file distributed with
+   this work for additional information regarding copyright ownership.
+   The ASF licenses this file to You under the Apache License, Version 2.0
+   (the "License"); you may not use this file except in compliance with
+   the License.  You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+==================================================================== */
+package uk.ac.liverpool.spreadsheet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Formula dependency graph over spreadsheet cells, stored in primitive arrays.
+ *
+ * Cells are identified by a packed long key (see {@link #key(int, int, int)})
+ * and mapped to dense node numbers with an open addressing hash table. A
+ * formula refers to single cells (its precedents) and to areas. Single cell
+ * references are appended to int arrays while the graph is built, and turned
+ * into compressed sparse row adjacency arrays for both directions the first
+ * time the graph is queried after a change. Areas are never expanded: they are
+ * kept as rectangles in a {@link RangeIndex}, and the formulae depending on a
+ * cell through an area are found with a stabbing query. Memory and build time
+ * depend on the number of references, not on the size of the areas.
+ *
+ * Compacting also ranks the nodes in topological order with Tarjan's strongly
+ * connected components algorithm, which finds the circular references, and
+ * transitive dependents are listed in that order.
+ *
+ * The graph is not thread safe: build it, then query it.
+ */
+public class DependencyGraph {
+
+    private static final long FREE = -1L;
+    // memoized closures, in total number of cells
+    private static final int MAX_MEMO_SIZE = 1 << 22;
+
+    // open addressing table: cell key -> node number
+    private long[] slots;
+    private int[] slotNodes;
+    private int mask;
+
+    // node number -> cell key, formula flag
+    private long[] cells = new long[16];
+    private boolean[] formula = new boolean[16];
+    private int nodes;
+    private int formulae;
+
+    // every reference gets a sequence number, so that cell and area
+    // references can be listed in the order they were added
+    private int references;
+
+    // single cell references: formula node -> precedent node
+    private int[] edgeFormula = new int[16];
+    private int[] edgePrecedent = new int[16];
+    private int[] edgeSequence = new int[16];
+    private int edges;
+
+    // area references: formula node, sequence, and 5 ints of bounds each
+    private int[] areaFormula = new int[16];
+    private int[] areaSequence = new int[16];
+    private int[] areaBounds = new int[16 * 5];
+    private int areaCount;
+
+    // compressed sparse rows, rebuilt when stale
+    private boolean stale = true;
+    private int[] precedentStart;
+    private int[] precedentNodes;
+    private int[] precedentAreaStart;
+    private int[] precedentAreas;
+    // formulae depending on each node, through cells and areas
+    private int[] dependentStart;
+    private int[] dependentNodes;
+    private RangeIndex rangeIndex;
+
+    // topological rank of each node: a formula ranks after its precedents,
+    // the formulae of a circular reference share a rank
+    private int[] rank;
+    private long[][] cycles;
+
+    // closures already computed, by start set; cleared when stale
+    private final Map<Closure, long[]> closures = new HashMap<Closure, long[]>();
+    private int memoSize;
+    private int[] visited;
+    private int visit;
+    // start nodes already taken, stamped like visited
+    private int[] marked;
+    private int mark;
+
+    /**
+     * An area of cells in a sheet, bounds included.
+     */
+    public static class Area {
+        private final int sheet;
+        private final int firstRow;
+        private final int firstColumn;
+        private final int lastRow;
+        private final int lastColumn;
+
+        public Area(int sheet, int firstRow, int firstColumn, int lastRow,
+                int lastColumn) {
+            this.sheet = sheet;
+            this.firstRow = firstRow;
+            this.firstColumn = firstColumn;
+            this.lastRow = lastRow;
+            this.lastColumn = lastColumn;
+        }
+
+        public int getSheet() {
+            return sheet;
+        }
+
+        public int getFirstRow() {
+            return firstRow;
+        }
+
+        public int getFirstColumn() {
+            return firstColumn;
+        }
+
+        public int getLastRow() {
+            return lastRow;
+        }
+
+        public int getLastColumn() {
+            return lastColumn;
+        }
+
+        public boolean contains(long cell) {
+            int r = row(cell);
+            int c = column(cell);
+            return sheet(cell) == sheet && r >= firstRow && r <= lastRow
+                && c >= firstColumn && c <= lastColumn;
+        }
+
+        public String toString() {
+            return sheet + "!R" + (firstRow + 1) + "C" + (firstColumn + 1)
+            + ":R" + (lastRow + 1) + "C" + (lastColumn + 1);
+        }
+    }
+
+    public DependencyGraph() {
+        this(64);
+    }
+
+    /**
+     * @param expectedCells
+     *            a hint on the number of distinct cells
+     */
+    public DependencyGraph(int expectedCells) {
+        int capacity = 16;
+        while (capacity < expectedCells * 2)
+            capacity <<= 1;
+        slots = new long[capacity];
+        Arrays.fill(slots, FREE);
+        slotNodes = new int[capacity];
+        mask = capacity - 1;
+    }
+
+    /**
+     * Packs a cell address: 15 bits of sheet index, 32 bits of row and 16 bits
+     * of column. Keys are never negative.
+     */
+    public static long key(int sheet, int row, int column) {
+        if (sheet < 0 || sheet > 0x7FFF || row < 0 || column < 0
+                || column > 0xFFFF)
+            throw new IllegalArgumentException("invalid cell address: sheet "
+                    + sheet + ", row " + row + ", column " + column);
+        return ((long) sheet << 48) | ((long) row << 16) | column;
+    }
+
+    public static int sheet(long key) {
+        return (int) (key >>> 48);
+    }
+
+    public static int row(long key) {
+        return (int) (key >>> 16);
+    }
+
+    public static int column(long key) {
+        return (int) (key & 0xFFFF);
+    }
+
+    /**
+     * Registers a formula cell, even if it has no precedent.
+     *
+     * @return the node number of the cell
+     */
+    public int addFormula(long cell) {
+        int n = node(cell);
+        if (!formula[n]) {
+            formula[n] = true;
+            formulae++;
+        }
+        return n;
+    }
+
+    /**
+     * Records that the formula in the first cell refers to the second cell.
+     */
+    public void addPrecedent(long formulaCell, long precedentCell) {
+        int f = addFormula(formulaCell);
+        int p = node(precedentCell);
+        if (edges == edgeFormula.length) {
+            edgeFormula = Arrays.copyOf(edgeFormula, edges * 2);
+            edgePrecedent = Arrays.copyOf(edgePrecedent, edges * 2);
+            edgeSequence = Arrays.copyOf(edgeSequence, edges * 2);
+        }
+        edgeFormula[edges] = f;
+        edgePrecedent[edges] = p;
+        edgeSequence[edges] = references++;
+        edges++;
+        stale = true;
+    }
+
+    /**
+     * Records that the formula in the given cell refers to every cell of an
+     * area of the given sheet. The area is not expanded.
+     */
+    public void addPrecedents(long formulaCell, int sheet, int firstRow,
+            int firstColumn, int lastRow, int lastColumn) {
+        // validates the corners
+        key(sheet, firstRow, firstColumn);
+        key(sheet, lastRow, lastColumn);
+        int f = addFormula(formulaCell);
+        if (areaCount == areaFormula.length) {
+            areaFormula = Arrays.copyOf(areaFormula, areaCount * 2);
+            areaSequence = Arrays.copyOf(areaSequence, areaCount * 2);
+            areaBounds = Arrays.copyOf(areaBounds, areaCount * 2 * 5);
+        }
+        areaFormula[areaCount] = f;
+        areaSequence[areaCount] = references++;
+        int b = areaCount * 5;
+        areaBounds[b] = sheet;
+        areaBounds[b + 1] = Math.min(firstRow, lastRow);
+        areaBounds[b + 2] = Math.min(firstColumn, lastColumn);
+        areaBounds[b + 3] = Math.max(firstRow, lastRow);
+        areaBounds[b + 4] = Math.max(firstColumn, lastColumn);
+        areaCount++;
+        stale = true;
+    }
+
+    /**
+     * @return the number of distinct cells in the graph: the formulae and the
+     *         cells they refer to one by one, not the cells inside areas
+     */
+    public int size() {
+        return nodes;
+    }
+
+    /** @return the number of formula cells in the graph */
+    public int formulaCount() {
+        return formulae;
+    }
+
+    /**
+     * @return the number of cell and area references recorded, duplicates
+     *         included
+     */
+    public int edgeCount() {
+        return references;
+    }
+
+    public boolean contains(long cell) {
+        return indexOf(cell) >= 0;
+    }
+
+    public boolean isFormula(long cell) {
+        int n = indexOf(cell);
+        return n >= 0 && formula[n];
+    }
+
+    /**
+     * @return the node number of the cell, or -1 if the cell is not in the
+     *         graph. Node numbers are dense and stable: 0 to size() - 1, in
+     *         order of first appearance.
+     */
+    public int indexOf(long cell) {
+        int i = hash(cell) & mask;
+        long k;
+        while ((k = slots[i]) != FREE) {
+            if (k == cell)
+                return slotNodes[i];
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    /** @return the key of the cell with the given node number */
+    public long cellAt(int node) {
+        if (node < 0 || node >= nodes)
+            throw new IndexOutOfBoundsException("node " + node);
+        return cells[node];
+    }
+
+    /**
+     * @return the single cells the formula in the given cell refers to,
+     *         without duplicates, in formula order; empty for a value cell
+     * @see #precedentAreas(long)
+     */
+    public long[] precedents(long cell) {
+        int n = indexOf(cell);
+        if (n < 0)
+            return new long[0];
+        compact();
+        return toKeys(precedentNodes, precedentStart[n], precedentStart[n + 1]);
+    }
+
+    /**
+     * @return the areas the formula in the given cell refers to, in formula
+     *         order; empty for a value cell
+     */
+    public Area[] precedentAreas(long cell) {
+        int n = indexOf(cell);
+        if (n < 0)
+            return new Area[0];
+        compact();
+        Area[] result = new Area[precedentAreaStart[n + 1]
+                                 - precedentAreaStart[n]];
+        for (int i = 0; i < result.length; i++) {
+            int b = precedentAreas[precedentAreaStart[n] + i] * 5;
+            result[i] = new Area(areaBounds[b], areaBounds[b + 1],
+                    areaBounds[b + 2], areaBounds[b + 3], areaBounds[b + 4]);
+        }
+        return result;
+    }
+
+    /**
+     * @return the formula cells referring to the given cell, on their own or
+     *         through an area, without duplicates, in the order they were
+     *         added
+     */
+    public long[] dependents(long cell) {
+        int[] d = dependentNodes(cell);
+        return toKeys(d, 0, d.length);
+    }
+
+    /**
+     * Finds all the formulae depending on the given cell, directly or through
+     * other formulae. The result is in evaluation order: every formula comes
+     * after the formulae of the result it depends on; the formulae of a
+     * circular reference come together, in node order.
+     *
+     * Results are memoized by set of direct dependents, so the cells of an
+     * area referred to by the same formulae share the work.
+     *
+     * @return the keys of the dependent formula cells
+     */
+    public long[] transitiveDependents(long cell) {
+        int[] start = dependentNodes(cell);
+        if (start.length == 0)
+            return new long[0];
+        Closure key = new Closure(start);
+        long[] result = closures.get(key);
+        if (result == null) {
+            result = closure(start);
+            if (memoSize + result.length <= MAX_MEMO_SIZE) {
+                closures.put(key, result);
+                memoSize += result.length;
+            }
+        }
+        return result.clone();
+    }
+
+    /**
+     * Finds all the formulae depending on any of the given cells, in one
+     * evaluation order, like {@link #transitiveDependents(long)}.
+     *
+     * @return the keys of the dependent formula cells, without duplicates
+     */
+    public long[] transitiveDependents(long[] cells) {
+        if (cells.length == 1)
+            return transitiveDependents(cells[0]);
+        compact();
+        if (++mark == 0) {
+            Arrays.fill(marked, 0);
+            mark = 1;
+        }
+        int[] start = new int[16];
+        int count = 0;
+        for (long cell : cells) {
+            for (int f : dependentNodes(cell)) {
+                if (marked[f] == mark)
+                    continue;
+                marked[f] = mark;
+                if (count == start.length)
+                    start = Arrays.copyOf(start, count * 2);
+                start[count++] = f;
+            }
+        }
+        if (count == 0)
+            return new long[0];
+        return closure(Arrays.copyOf(start, count));
+    }
+
+    /**
+     * @return true if some formulae depend on themselves
+     */
+    public boolean hasCycles() {
+        compact();
+        return cycles.length > 0;
+    }
+
+    /**
+     * @return the circular references: for each strongly connected set of
+     *         formulae (or formula referring to itself), the keys of its
+     *         cells in node order
+     */
+    public long[][] cycles() {
+        compact();
+        long[][] copy = new long[cycles.length][];
+        for (int i = 0; i < cycles.length; i++)
+            copy[i] = cycles[i].clone();
+        return copy;
+    }
+
+    /**
+     * Iterative depth first search from the start nodes, then a sort by
+     * topological rank.
+     */
+    private long[] closure(int[] start) {
+        if (++visit == 0) {
+            Arrays.fill(visited, 0);
+            visit = 1;
+        }
+        int[] stack = new int[Math.max(start.length, 16)];
+        int top = 0;
+        long[] found = new long[16];
+        int count = 0;
+        for (int f : start) {
+            if (visited[f] != visit) {
+                visited[f] = visit;
+                stack[top++] = f;
+            }
+        }
+        while (top > 0) {
+            int f = stack[--top];
+            if (count == found.length)
+                found = Arrays.copyOf(found, count * 2);
+            // rank and node number packed, so that a plain sort orders them
+            found[count++] = ((long) rank[f] << 32) | f;
+            for (int j = dependentStart[f]; j < dependentStart[f + 1]; j++) {
+                int g = dependentNodes[j];
+                if (visited[g] != visit) {
+                    visited[g] = visit;
+                    if (top == stack.length)
+                        stack = Arrays.copyOf(stack, top * 2);
+                    stack[top++] = g;
+                }
+            }
+        }
+        Arrays.sort(found, 0, count);
+        long[] result = new long[count];
+        for (int i = 0; i < count; i++)
+            result[i] = cells[(int) found[i]];
+        return result;
+    }
+
+    /**
+     * The formula nodes depending on a cell; a cell outside the graph can
+     * still be inside areas. The few formulae of the areas hit are sorted
+     * to drop the duplicates, so that the cost does not grow with the graph.
+     */
+    private int[] dependentNodes(long cell) {
+        compact();
+        int n = indexOf(cell);
+        if (n >= 0)
+            return Arrays.copyOfRange(dependentNodes, dependentStart[n],
+                    dependentStart[n + 1]);
+        if (areaCount == 0 || cell < 0)
+            return new int[0];
+        int[] hits = rangeIndex.stab(sheet(cell), row(cell), column(cell));
+        if (hits.length == 0)
+            return hits;
+        int[] result = new int[hits.length];
+        for (int i = 0; i < hits.length; i++)
+            result[i] = areaFormula[hits[i]];
+        Arrays.sort(result);
+        int count = 1;
+        for (int i = 1; i < result.length; i++)
+            if (result[i] != result[count - 1])
+                result[count++] = result[i];
+        return count == result.length ? result : Arrays.copyOf(result, count);
+    }
+
+    /**
+     * A set of start nodes, as memo key.
+     */
+    private static class Closure {
+        private final int[] nodes;
+        private final int hash;
+
+        Closure(int[] nodes) {
+            this.nodes = nodes;
+            this.hash = Arrays.hashCode(nodes);
+        }
+
+        public int hashCode() {
+            return hash;
+        }
+
+        public boolean equals(Object o) {
+            return o instanceof Closure && Arrays.equals(nodes, ((Closure) o).nodes);
+        }
+    }
+
+    private int node(long cell) {
+        if (cell < 0)
+            throw new IllegalArgumentException("invalid cell key " + cell);
+        int i = hash(cell) & mask;
+        long k;
+        while ((k = slots[i]) != FREE) {
+            if (k == cell)
+                return slotNodes[i];
+            i = (i + 1) & mask;
+        }
+        int n = nodes++;
+        if (n == cells.length) {
+            cells = Arrays.copyOf(cells, n * 2);
+            formula = Arrays.copyOf(formula, n * 2);
+        }
+        cells[n] = cell;
+        slots[i] = cell;
+        slotNodes[i] = n;
+        // keep the load factor under one half
+        if (nodes * 2 > slots.length)
+            rehash();
+        stale = true;
+        return n;
+    }
+
+    private void rehash() {
+        long[] oldSlots = slots;
+        int[] oldNodes = slotNodes;
+        slots = new long[oldSlots.length * 2];
+        Arrays.fill(slots, FREE);
+        slotNodes = new int[slots.length];
+        mask = slots.length - 1;
+        for (int j = 0; j < oldSlots.length; j++) {
+            long k = oldSlots[j];
+            if (k == FREE)
+                continue;
+            int i = hash(k) & mask;
+            while (slots[i] != FREE)
+                i = (i + 1) & mask;
+            slots[i] = k;
+            slotNodes[i] = oldNodes[j];
+        }
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private long[] toKeys(int[] adjacency, int from, int to) {
+        long[] keys = new long[to - from];
+        for (int i = from; i < to; i++)
+            keys[i - from] = cells[adjacency[i]];
+        return keys;
+    }
+
+    /**
+     * Builds the adjacency arrays with counting sorts of the reference lists,
+     * which keep the insertion order, and packs the range index. The
+     * dependents of every node merge its cell references with the areas
+     * containing it, by sequence number, dropping duplicates.
+     */
+    private void compact() {
+        if (!stale)
+            return;
+        int[] stamp = new int[nodes];
+
+        // precedents: single cells and areas, by formula
+        int[][] byFormula = groupBy(edgeFormula, edges);
+        precedentStart = new int[nodes + 1];
+        precedentNodes = new int[edges];
+        int count = 0;
+        for (int n = 0; n < nodes; n++) {
+            precedentStart[n] = count;
+            for (int i = byFormula[0][n]; i < byFormula[0][n + 1]; i++) {
+                int p = edgePrecedent[byFormula[1][i]];
+                if (stamp[p] != n + 1) {
+                    stamp[p] = n + 1;
+                    precedentNodes[count++] = p;
+                }
+            }
+        }
+        precedentStart[nodes] = count;
+        precedentNodes = Arrays.copyOf(precedentNodes, count);
+        int[][] areasByFormula = groupBy(areaFormula, areaCount);
+        precedentAreaStart = areasByFormula[0];
+        precedentAreas = areasByFormula[1];
+
+        rangeIndex = new RangeIndex();
+        for (int a = 0; a < areaCount; a++) {
+            int b = a * 5;
+            rangeIndex.add(areaBounds[b], areaBounds[b + 1], areaBounds[b + 2],
+                    areaBounds[b + 3], areaBounds[b + 4], a);
+        }
+        rangeIndex.build();
+
+        // dependents: cell references and area hits, merged by sequence
+        Arrays.fill(stamp, 0);
+        int[][] byPrecedent = groupBy(edgePrecedent, edges);
+        int[] none = new int[0];
+        dependentStart = new int[nodes + 1];
+        dependentNodes = new int[Math.max(16, edges)];
+        count = 0;
+        for (int n = 0; n < nodes; n++) {
+            dependentStart[n] = count;
+            int[] hits = areaCount == 0 ? none : rangeIndex.stab(
+                    sheet(cells[n]), row(cells[n]), column(cells[n]));
+            int i = byPrecedent[0][n];
+            int end = byPrecedent[0][n + 1];
+            int h = 0;
+            while (i < end || h < hits.length) {
+                int f;
+                if (h == hits.length
+                        || (i < end && edgeSequence[byPrecedent[1][i]] < areaSequence[hits[h]]))
+                    f = edgeFormula[byPrecedent[1][i++]];
+                else
+                    f = areaFormula[hits[h++]];
+                if (stamp[f] != n + 1) {
+                    stamp[f] = n + 1;
+                    if (count == dependentNodes.length)
+                        dependentNodes = Arrays.copyOf(dependentNodes,
+                                count * 2);
+                    dependentNodes[count++] = f;
+                }
+            }
+        }
+        dependentStart[nodes] = count;
+        dependentNodes = Arrays.copyOf(dependentNodes, count);
+
+        rankNodes();
+        closures.clear();
+        memoSize = 0;
+        visited = new int[nodes];
+        visit = 0;
+        marked = new int[nodes];
+        mark = 0;
+        stale = false;
+    }
+
+    /**
+     * Iterative Tarjan strongly connected components over the dependents
+     * adjacency; components of more than one node, or with a self reference,
+     * are the circular references. The components are then ranked in
+     * topological order, taking the one with the lowest node number first
+     * when there is a choice, so that formulae keep the order they were
+     * added in unless a dependency says otherwise.
+     */
+    private void rankNodes() {
+        rank = new int[nodes];
+        int[] index = new int[nodes];
+        int[] low = new int[nodes];
+        boolean[] onStack = new boolean[nodes];
+        int[] stack = new int[nodes];
+        int top = 0;
+        // the call stack: node and next adjacency position
+        int[] callNode = new int[nodes];
+        int[] callEdge = new int[nodes];
+        int depth = 0;
+        int counter = 0;
+        int components = 0;
+        int[] componentOf = new int[nodes];
+        List<long[]> found = new ArrayList<long[]>();
+
+        for (int root = 0; root < nodes; root++) {
+            if (index[root] != 0)
+                continue;
+            index[root] = low[root] = ++counter;
+            stack[top++] = root;
+            onStack[root] = true;
+            callNode[0] = root;
+            callEdge[0] = dependentStart[root];
+            depth = 1;
+            while (depth > 0) {
+                int v = callNode[depth - 1];
+                int e = callEdge[depth - 1];
+                if (e < dependentStart[v + 1]) {
+                    callEdge[depth - 1] = e + 1;
+                    int w = dependentNodes[e];
+                    if (index[w] == 0) {
+                        index[w] = low[w] = ++counter;
+                        stack[top++] = w;
+                        onStack[w] = true;
+                        callNode[depth] = w;
+                        callEdge[depth] = dependentStart[w];
+                        depth++;
+                    } else if (onStack[w]) {
+                        low[v] = Math.min(low[v], index[w]);
+                    }
+                    continue;
+                }
+                depth--;
+                if (depth > 0) {
+                    int parent = callNode[depth - 1];
+                    low[parent] = Math.min(low[parent], low[v]);
+                }
+                if (low[v] != index[v])
+                    continue;
+                int from = top;
+                int w;
+                do {
+                    w = stack[--from];
+                    onStack[w] = false;
+                    componentOf[w] = components;
+                } while (w != v);
+                if (top - from > 1 || selfReference(v)) {
+                    int[] members = Arrays.copyOfRange(stack, from, top);
+                    Arrays.sort(members);
+                    long[] keys = new long[members.length];
+                    for (int i = 0; i < members.length; i++)
+                        keys[i] = cells[members[i]];
+                    found.add(keys);
+                }
+                top = from;
+                components++;
+            }
+        }
+        cycles = found.toArray(new long[found.size()][]);
+
+        // Kahn's algorithm on the components, by lowest node number
+        int[] incoming = new int[components];
+        int[] lowest = new int[components];
+        Arrays.fill(lowest, -1);
+        for (int v = 0; v < nodes; v++) {
+            int c = componentOf[v];
+            if (lowest[c] < 0)
+                lowest[c] = v;
+            for (int j = dependentStart[v]; j < dependentStart[v + 1]; j++)
+                if (componentOf[dependentNodes[j]] != c)
+                    incoming[componentOf[dependentNodes[j]]]++;
+        }
+        int[][] members = groupBy(componentOf, nodes, components);
+        PriorityQueue<Integer> ready = new PriorityQueue<Integer>();
+        for (int c = 0; c < components; c++)
+            if (incoming[c] == 0)
+                ready.add(Integer.valueOf(lowest[c]));
+        int next = 0;
+        while (!ready.isEmpty()) {
+            int c = componentOf[ready.poll().intValue()];
+            for (int i = members[0][c]; i < members[0][c + 1]; i++) {
+                int v = members[1][i];
+                rank[v] = next;
+                for (int j = dependentStart[v]; j < dependentStart[v + 1]; j++) {
+                    int d = componentOf[dependentNodes[j]];
+                    if (d != c && --incoming[d] == 0)
+                        ready.add(Integer.valueOf(lowest[d]));
+                }
+            }
+            next++;
+        }
+    }
+
+    private boolean selfReference(int v) {
+        for (int j = dependentStart[v]; j < dependentStart[v + 1]; j++)
+            if (dependentNodes[j] == v)
+                return true;
+        return false;
+    }
+
+    /**
+     * Counting sort of the indexes 0 to count - 1 by node (or component).
+     *
+     * @return the start of each node's run, and the sorted indexes
+     */
+    private int[][] groupBy(int[] node, int count) {
+        return groupBy(node, count, nodes);
+    }
+
+    private static int[][] groupBy(int[] node, int count, int nodes) {
+        int[] start = new int[nodes + 1];
+        for (int e = 0; e < count; e++)
+            start[node[e] + 1]++;
+        for (int n = 0; n < nodes; n++)
+            start[n + 1] += start[n];
+        int[] sorted = new int[count];
+        int[] pos = Arrays.copyOf(start, nodes);
+        for (int e = 0; e < count; e++)
+            sorted[pos[node[e]]++] = e;
+        return new int[][] { start, sorted };
+    }
+}
@@ -25,18 +25,15 @@
 package uk.ac.liverpool.spreadsheet;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
-import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
-import java.util.Set;
 
 import org.apache.poi.EncryptedDocumentException;
 import org.apache.poi.POIXMLProperties;
 import org.apache.poi.hpsf.DocumentSummaryInformation;
+import org.apache.poi.hssf.usermodel.HSSFEvaluationWorkbook;
 import org.apache.poi.hssf.usermodel.HSSFObjectData;
 import org.apache.poi.hssf.usermodel.HSSFSheet;
 import org.apache.poi.hssf.usermodel.HSSFWorkbook;
@@ -44,17 +41,17 @@ import org.apache.poi.hssf.util.PaneInformation;
 import org.apache.poi.openxml4j.exceptions.InvalidFormatException;
 import org.apache.poi.openxml4j.exceptions.OpenXML4JException;
 import org.apache.poi.openxml4j.opc.PackagePart;
-import org.apache.poi.ss.formula.eval.NotImplementedException;
+import org.apache.poi.ss.formula.EvaluationSheet;
+import org.apache.poi.ss.formula.EvaluationWorkbook;
 import org.apache.poi.ss.usermodel.Cell;
 import org.apache.poi.ss.usermodel.Font;
 import org.apache.poi.ss.usermodel.Footer;
-import org.apache.poi.ss.usermodel.FormulaEvaluator;
 import org.apache.poi.ss.usermodel.Header;
 import org.apache.poi.ss.usermodel.PictureData;
 import org.apache.poi.ss.usermodel.Row;
 import org.apache.poi.ss.usermodel.Sheet;
 import org.apache.poi.ss.usermodel.Workbook;
-import org.apache.poi.ss.usermodel.WorkbookFactory;
+import org.apache.poi.xssf.usermodel.XSSFEvaluationWorkbook;
 import org.apache.poi.xssf.usermodel.XSSFSheet;
 import org.apache.poi.xssf.usermodel.XSSFWorkbook;
 import org.jdom.Document;
@@ -93,6 +90,8 @@ public class ExcelFeatureAnalysis {
     HSSFWorkbook hswb;
     XSSFWorkbook xswb;
     File f;
+    // keeps the file open while the workbook is in use
+    WorkbookFile file;
 
     /**
      * 
@@ -100,7 +99,7 @@ public class ExcelFeatureAnalysis {
      * @param f
      */
 
-    private ExcelFeatureAnalysis(Workbook w, File f) {
+    ExcelFeatureAnalysis(Workbook w, File f) {
         wb = w;
         if (wb instanceof HSSFWorkbook) {
             hswb = (HSSFWorkbook) wb;
@@ -114,7 +113,8 @@ public class ExcelFeatureAnalysis {
     /**
      * 
      * This method will instantiate the workbook and return the feature analysis
-     * object.
+     * object. The workbook is read in place from the file, which stays open
+     * until {@link #close()}.
      * 
      * @param in
      * @return
@@ -123,21 +123,36 @@ public class ExcelFeatureAnalysis {
      */
     public static ExcelFeatureAnalysis create(File in) throws IOException,
     InvalidFormatException, EncryptedDocumentException {
-        Workbook wb = WorkbookFactory.create(new FileInputStream(in));
-        return new ExcelFeatureAnalysis(wb, in);
+        WorkbookFile file = WorkbookFile.open(in);
+        ExcelFeatureAnalysis efa = new ExcelFeatureAnalysis(
+                file.getWorkbook(), in);
+        efa.file = file;
+        return efa;
 
     }
 
+    /**
+     * Releases the file of the workbook.
+     */
+    public void close() throws IOException {
+        file.close();
+    }
+
     public static void main(String[] args) throws Exception {
         if (args.length < 1) {
-            System.err.println("usage: ToHtml inputWorkbook");
+            System.err.println("usage: ExcelFeatureAnalysis inputWorkbook [-events]");
 
             return;
         }
 
-        if (args.length > 2 && args[2].equals("-something"))
-            ;
-        String s = analyse(new File(args[0]));
+        File in = new File(args[0]);
+        String s;
+        // -events reads .xls files from the record stream
+        if (args.length > 1 && args[1].equals("-events")
+                && in.getName().toLowerCase().endsWith(".xls"))
+            s = HSSFEventFeatureAnalysis.analyse(in);
+        else
+            s = analyse(in);
         System.out.println(s);
     }
 
@@ -158,28 +173,52 @@ public class ExcelFeatureAnalysis {
             efa  = create(in); 
         }
         catch (EncryptedDocumentException e) {
-            Element r = new Element("featureanalysis", fa);
-            SimpleDateFormat sdt = new SimpleDateFormat(
-            "yyyy-MM-dd'T'HH:mm:ss.SSSZ");
-            r.addContent(new Element("processing_date", fa).addContent(sdt
-                    .format(new Date())));
-            r.addContent(new Element("processingSoftware", fa).setAttribute("name",
-                    SW_ID).setAttribute("version", VERSION));
-            Element da = new Element("object", fa);
-            r.addContent(da);
-            da.setAttribute("filename", in.getName());
-            da.setAttribute("lastModified", sdt.format(new Date(in.lastModified())));
-            da.setAttribute("mimeType", MIME);
-            da.addContent(new Element("encrypted", fa));
-            Document d = new Document();
-            d.setRootElement(r);
-            XMLOutputter o = new XMLOutputter(Format.getPrettyFormat());
-            String res = o.outputString(d);
-
-            return res;
+            return encrypted(in);
         }
         
+        try {
+            return analyse(in, efa, null);
+        } finally {
+            efa.close();
+        }
+    }
+
+    /**
+     * The analysis of an open workbook.
+     * 
+     * @param collected
+     *            the cell features of the sheets already traversed, for
+     *            instance by a conversion, or null; the other sheets are
+     *            traversed here
+     */
+    static String analyse(File in, ExcelFeatureAnalysis efa,
+            SheetFeatures collected) {
+        Element r = new Element("featureanalysis", fa);
+        Element da = objectElement(r, in);
+
+        // end of the generic part, beginning of the file specific
+        analyseSpreadsheet(da, efa, collected);
+
+        // finishing up, formatting and return string
+        return outputString(r);
+    }
+
+    /**
+     * The report for a file that could not be analysed because it is
+     * encrypted.
+     */
+    static String encrypted(File in) {
         Element r = new Element("featureanalysis", fa);
+        Element da = objectElement(r, in);
+        da.addContent(new Element("encrypted", fa));
+        return outputString(r);
+    }
+
+    /**
+     * Adds the generic part of the report (processing date and software) to
+     * the root element, and returns the element describing the analysed file.
+     */
+    static Element objectElement(Element r, File in) {
         SimpleDateFormat sdt = new SimpleDateFormat(
         "yyyy-MM-dd'T'HH:mm:ss.SSSZ");
         r.addContent(new Element("processing_date", fa).addContent(sdt
@@ -191,21 +230,19 @@ public class ExcelFeatureAnalysis {
         da.setAttribute("filename", in.getName());
         da.setAttribute("lastModified", sdt.format(new Date(in.lastModified())));
         da.setAttribute("mimeType", MIME);
+        return da;
+    }
 
-        // end of the generic part, beginning of the file specific
-        analyseSpreadsheet(da, efa);
-
-        // finishing up, formatting and return string
+    static String outputString(Element r) {
         Document d = new Document();
         d.setRootElement(r);
         XMLOutputter o = new XMLOutputter(Format.getPrettyFormat());
-        String res = o.outputString(d);
-
-        return res;
+        return o.outputString(d);
     }
 
     // Analysis at the file level
-    private static void analyseSpreadsheet(Element da, ExcelFeatureAnalysis efa) {
+    private static void analyseSpreadsheet(Element da,
+            ExcelFeatureAnalysis efa, SheetFeatures collected) {
 
         Element s = new Element("spreadsheets", sn);
         da.addContent(s);
@@ -291,23 +328,15 @@ public class ExcelFeatureAnalysis {
             Sheet sheet = efa.wb.getSheetAt(c);
             Element single = new Element("sheet", sn);
             s.addContent(single);
-            analyseSheet(sheet, single, sn, efa);
+            analyseSheet(sheet, c, single, sn, collected);
         }
     }
 
     // Analysis at the sheet level
 
-    private static void analyseSheet(Sheet ss, Element s, Namespace n,
-            ExcelFeatureAnalysis efa) {
+    private static void analyseSheet(Sheet ss, int index, Element s,
+            Namespace n, SheetFeatures collected) {
         // generic part
-        boolean costumFormatting = false;
-        boolean formulae = false;
-        boolean UDF = false;
-        boolean hasComments = false;
-
-        Set<String> udfs = new HashSet<String>();
-        FormulaEvaluator evaluator = ss.getWorkbook().getCreationHelper()
-        .createFormulaEvaluator();
 
         s.setAttribute("name", ss.getSheetName());
         s.setAttribute("firstRow", "" + ss.getFirstRowNum());
@@ -358,95 +387,135 @@ public class ExcelFeatureAnalysis {
          
 
         }
-        Iterator<Row> rows = ss.rowIterator();
-
-        int firstColumn = (rows.hasNext() ? Integer.MAX_VALUE : 0);
-        int endColumn = 0;
-        while (rows.hasNext()) {
-            Row row = rows.next();
-            short firstCell = row.getFirstCellNum();
-            if (firstCell >= 0) {
-                firstColumn = Math.min(firstColumn, firstCell);
-                endColumn = Math.max(endColumn, row.getLastCellNum());
-            }
+        SheetTraversal.ColumnBounds bounds;
+        CellFeatures features;
+        if (collected != null && collected.features[index] != null) {
+            bounds = collected.bounds[index];
+            features = collected.features[index];
+        } else {
+            bounds = new SheetTraversal.ColumnBounds();
+            features = new CellFeatures();
+            SheetTraversal.traverse(ss, index, bounds, features);
         }
-        s.setAttribute("firstColumn", "" + firstColumn);
-        s.setAttribute("lastColumn", "" + endColumn);
-        rows = ss.rowIterator();
-        while (rows.hasNext()) {
-            Row row = rows.next();
-            for (Cell cell : row)
-                if (cell != null) {
-                    try {
-                        if (!cell.getCellStyle().getDataFormatString()
-                                .equals("GENERAL"))
-                            costumFormatting = true;
-                    } catch (Throwable t) {}
-
-                    if (cell.getCellComment()!=null)
-                        hasComments = true;
-                    switch (cell.getCellType()) {
-                    case Cell.CELL_TYPE_STRING:
-                        // System.out.println(cell.getRichStringCellValue().getString());
-                        break;
-                    case Cell.CELL_TYPE_NUMERIC:
-                        //                        if (DateUtil.isCellDateFormatted(cell)) {
-                        //                            // System.out.println(cell.getDateCellValue());
-                        //                        } else {
-                        //                            // System.out.println(cell.getNumericCellValue());
-                        //                        }
-                        break;
-                    case Cell.CELL_TYPE_BOOLEAN:
-                        // System.out.println(cell.getBooleanCellValue());
-                        break;
-                    case Cell.CELL_TYPE_FORMULA:
-                        // System.out.println(cell.getCellFormula());
-                        formulae = true;
-                        if (!UDF)
-                            try {
-                                evaluator.evaluate(cell);
-                            } catch (Exception x) {
-                                if (x instanceof NotImplementedException) {
-                                    Throwable e = x;
-
-                                    //e.printStackTrace();
-                                    while (e!=null) {
-                                        for (StackTraceElement c : e.getStackTrace()) {
-                                            if (c.getClassName().contains(
-                                            "UserDefinedFunction")) {
-                                                UDF = true;
-                                                System.out.println("UDF " + e.getMessage());
-                                                udfs.add(e.getMessage());
-                                            }
-                                        }
-                                        e = e.getCause();
-                                    }
-
-                                }
-                            }
-                            break;
-                    default:
-                    }
+        s.setAttribute("firstColumn", "" + bounds.getFirstColumn());
+        s.setAttribute("lastColumn", "" + bounds.getEndColumn());
+        features.report(s);
+    }
 
-                }
+    /**
+     * The column bounds and cell level features of every sheet of a workbook,
+     * collected from another traversal of the sheets, like the first pass of
+     * {@link ToXML}. Different sheets can be visited at the same time, each by
+     * one thread; the results must be read after all the traversals end.
+     */
+    static class SheetFeatures extends SheetVisitor {
+        final SheetTraversal.ColumnBounds[] bounds;
+        final CellFeatures[] features;
+        // the visitors of the sheet being traversed by the current thread
+        private final ThreadLocal<SheetVisitor[]> current =
+            new ThreadLocal<SheetVisitor[]>();
+
+        SheetFeatures(int sheets) {
+            bounds = new SheetTraversal.ColumnBounds[sheets];
+            features = new CellFeatures[sheets];
         }
-        if (costumFormatting) {
-            Element cf = new Element("customisedFormatting", sn);
-            s.addContent(cf);
+
+        public void startSheet(Sheet sheet, int sheetIndex) {
+            SheetTraversal.ColumnBounds b = new SheetTraversal.ColumnBounds();
+            CellFeatures f = new CellFeatures();
+            bounds[sheetIndex] = b;
+            features[sheetIndex] = f;
+            current.set(new SheetVisitor[] { b, f });
+            b.startSheet(sheet, sheetIndex);
+            f.startSheet(sheet, sheetIndex);
         }
-        if (formulae) {
-            Element cf = new Element("formulae", sn);
-            s.addContent(cf);
+
+        public void startRow(Row row) {
+            for (SheetVisitor v : current.get())
+                v.startRow(row);
         }
-        if (UDF) {
-            Element cf = new Element("userDefinedFunctions", sn);
-            for (String sss: udfs)
-                cf.addContent(new Element("userDefinedFunction",sn).setAttribute("functionName",sss));
-            s.addContent(cf);
+
+        public void cell(Cell cell) {
+            for (SheetVisitor v : current.get())
+                v.cell(cell);
         }
-        if (hasComments) {
-            Element cf = new Element("cellComments", sn);
-            s.addContent(cf);
+
+        public void endRow(Row row) {
+            for (SheetVisitor v : current.get())
+                v.endRow(row);
+        }
+
+        public void endSheet(Sheet sheet) {
+            for (SheetVisitor v : current.get())
+                v.endSheet(sheet);
+            current.remove();
+        }
+    }
+
+    /**
+     * The cell level features of a sheet, collected in one traversal.
+     */
+    static class CellFeatures extends SheetVisitor {
+        boolean costumFormatting = false;
+        boolean formulae = false;
+        boolean hasComments = false;
+        final FormulaFunctionAnalysis functions = new FormulaFunctionAnalysis();
+        private EvaluationWorkbook book;
+        private EvaluationSheet evaluationSheet;
+        private FormulaFunctionAnalysis.Names names;
+
+        public void startSheet(Sheet sheet, int sheetIndex) {
+            Workbook wb = sheet.getWorkbook();
+            if (wb instanceof HSSFWorkbook)
+                book = HSSFEvaluationWorkbook.create((HSSFWorkbook) wb);
+            else if (wb instanceof XSSFWorkbook)
+                book = XSSFEvaluationWorkbook.create((XSSFWorkbook) wb);
+            if (book != null) {
+                evaluationSheet = book.getSheet(sheetIndex);
+                names = FormulaFunctionAnalysis.names(book);
+            }
+        }
+
+        public void cell(Cell cell) {
+            try {
+                if (!cell.getCellStyle().getDataFormatString()
+                        .equals("GENERAL"))
+                    costumFormatting = true;
+            } catch (Throwable t) {}
+
+            if (cell.getCellComment()!=null)
+                hasComments = true;
+            if (cell.getCellType() == Cell.CELL_TYPE_FORMULA) {
+                formulae = true;
+                if (book != null) {
+                    try {
+                        functions.analyse(book.getFormulaTokens(evaluationSheet
+                                .getCell(cell.getRowIndex(), cell
+                                        .getColumnIndex())), names);
+                    } catch (RuntimeException x) {
+                        // unparsable formula: nothing to classify
+                    }
+                }
+            }
+        }
+
+        /**
+         * Adds the elements for the features found to the sheet element.
+         */
+        void report(Element s) {
+            if (costumFormatting) {
+                Element cf = new Element("customisedFormatting", sn);
+                s.addContent(cf);
+            }
+            if (formulae) {
+                Element cf = new Element("formulae", sn);
+                s.addContent(cf);
+            }
+            functions.report(s);
+            if (hasComments) {
+                Element cf = new Element("cellComments", sn);
+                s.addContent(cf);
+            }
         }
     }
 }
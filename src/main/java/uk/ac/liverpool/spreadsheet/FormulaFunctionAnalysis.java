@@ -0,0 +1,192 @@
+/* ====================================================================
+   Licensed to the Apache Software Foundation (ASF) under one or more
+   contributor license agreements.  See the NOTICE file distributed with
+   this work for additional information regarding copyright ownership.
+   The ASF licenses this file to You under the Apache License, Version 2.0
+   (the "License"); you may not use this file except in compliance with
+   the License.  You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+==================================================================== */
+package uk.ac.liverpool.spreadsheet;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.poi.ss.formula.EvaluationName;
+import org.apache.poi.ss.formula.EvaluationWorkbook;
+import org.apache.poi.ss.formula.atp.AnalysisToolPak;
+import org.apache.poi.ss.formula.eval.FunctionEval;
+import org.apache.poi.ss.formula.eval.NotImplementedException;
+import org.apache.poi.ss.formula.eval.ValueEval;
+import org.apache.poi.ss.formula.function.FunctionMetadata;
+import org.apache.poi.ss.formula.function.FunctionMetadataRegistry;
+import org.apache.poi.ss.formula.functions.FreeRefFunction;
+import org.apache.poi.ss.formula.functions.NotImplementedFunction;
+import org.apache.poi.ss.formula.ptg.AbstractFunctionPtg;
+import org.apache.poi.ss.formula.ptg.NamePtg;
+import org.apache.poi.ss.formula.ptg.NameXPtg;
+import org.apache.poi.ss.formula.ptg.Ptg;
+import org.jdom.Element;
+
+/**
+ * Finds the functions of a set of formulae that POI cannot evaluate, from the
+ * formula tokens alone, without evaluating anything:
+ * <ul>
+ * <li>user defined functions: calls to a function name (a VBA macro) or to an
+ * external name that is not part of the Analysis ToolPak;</li>
+ * <li>unsupported functions: built-in or Analysis ToolPak functions that POI
+ * does not implement.</li>
+ * </ul>
+ * Every function is counted once per call, in order of first appearance.
+ */
+public class FormulaFunctionAnalysis {
+
+    /** Resolves the names referenced by the formula tokens. */
+    public interface Names {
+        /**
+         * @return the name text if the name is a function name, null
+         *         otherwise
+         */
+        String functionName(NamePtg ptg);
+
+        /** @return the text of the external name, null if unknown */
+        String externalName(NameXPtg ptg);
+    }
+
+    private final Map<String, Integer> userDefined = new LinkedHashMap<String, Integer>();
+    private final Map<String, Integer> unsupported = new LinkedHashMap<String, Integer>();
+
+    /**
+     * @return the names of an evaluation workbook, as seen by its formulae
+     */
+    public static Names names(final EvaluationWorkbook book) {
+        return new Names() {
+            public String functionName(NamePtg ptg) {
+                try {
+                    EvaluationName n = book.getName(ptg);
+                    return n != null && n.isFunctionName() ? n.getNameText()
+                            : null;
+                } catch (RuntimeException x) {
+                    return null;
+                }
+            }
+
+            public String externalName(NameXPtg ptg) {
+                try {
+                    return book.resolveNameXText(ptg);
+                } catch (RuntimeException x) {
+                    return null;
+                }
+            }
+        };
+    }
+
+    /**
+     * Classifies the functions called by a parsed formula.
+     */
+    public void analyse(Ptg[] ptgs, Names names) {
+        if (ptgs == null)
+            return;
+        for (Ptg p : ptgs) {
+            if (p instanceof NamePtg) {
+                String name = names.functionName((NamePtg) p);
+                if (name != null)
+                    count(userDefined, name);
+            } else if (p instanceof NameXPtg) {
+                String name = names.externalName((NameXPtg) p);
+                if (name == null)
+                    continue;
+                FreeRefFunction f = AnalysisToolPak.instance.findFunction(name);
+                if (f == null)
+                    count(userDefined, name);
+                else if (isNotImplemented(f))
+                    count(unsupported, name);
+            } else if (p instanceof AbstractFunctionPtg) {
+                // external calls are named by the name token before them
+                int index = ((AbstractFunctionPtg) p).getFunctionIndex();
+                if (index != FunctionMetadataRegistry.FUNCTION_INDEX_EXTERNAL
+                        && !isBuiltIn(index))
+                    count(unsupported, functionName(index));
+            }
+        }
+    }
+
+    private static boolean isBuiltIn(int index) {
+        try {
+            // null for INDIRECT, which the evaluator handles itself
+            return !(FunctionEval.getBasicFunction(index) instanceof NotImplementedFunction);
+        } catch (NotImplementedException x) {
+            return false;
+        } catch (ArrayIndexOutOfBoundsException x) {
+            return false;
+        }
+    }
+
+    /**
+     * Calls the function without arguments: the Analysis ToolPak placeholders
+     * for the functions POI lacks throw NotImplementedException whatever the
+     * arguments, while the others answer with an error value, or fail on the
+     * missing evaluation context.
+     */
+    private static boolean isNotImplemented(FreeRefFunction f) {
+        try {
+            f.evaluate(new ValueEval[0], null);
+            return false;
+        } catch (NotImplementedException x) {
+            return true;
+        } catch (RuntimeException x) {
+            return false;
+        }
+    }
+
+    private static String functionName(int index) {
+        FunctionMetadata m = FunctionMetadataRegistry.getFunctionByIndex(index);
+        return m != null ? m.getName() : "FuncIx=" + index;
+    }
+
+    private static void count(Map<String, Integer> counts, String name) {
+        Integer n = counts.get(name);
+        counts.put(name, Integer.valueOf(n == null ? 1 : n.intValue() + 1));
+    }
+
+    /** @return the user defined functions, with their number of calls */
+    public Map<String, Integer> getUserDefinedFunctions() {
+        return Collections.unmodifiableMap(userDefined);
+    }
+
+    /** @return the unsupported functions, with their number of calls */
+    public Map<String, Integer> getUnsupportedFunctions() {
+        return Collections.unmodifiableMap(unsupported);
+    }
+
+    /**
+     * Adds the userDefinedFunctions and unsupportedFunctions elements to a
+     * sheet element, when there is something to report.
+     */
+    public void report(Element sheet) {
+        report(sheet, "userDefinedFunctions", "userDefinedFunction",
+                userDefined);
+        report(sheet, "unsupportedFunctions", "unsupportedFunction",
+                unsupported);
+    }
+
+    private static void report(Element sheet, String listName, String name,
+            Map<String, Integer> counts) {
+        if (counts.isEmpty())
+            return;
+        Element e = new Element(listName, ExcelFeatureAnalysis.sn);
+        for (Map.Entry<String, Integer> f : counts.entrySet())
+            e.addContent(new Element(name, ExcelFeatureAnalysis.sn)
+            .setAttribute("functionName", f.getKey())
+            .setAttribute("count", f.getValue().toString()));
+        sheet.addContent(e);
+    }
+}
@@ -19,14 +19,21 @@
 
 package uk.ac.liverpool.spreadsheet;
 
-import java.util.Stack;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import org.apache.poi.hssf.util.AreaReference;
 import org.apache.poi.hssf.util.CellReference;
+import org.apache.poi.ss.SpreadsheetVersion;
 import org.apache.poi.ss.formula.FormulaRenderingWorkbook;
 import org.apache.poi.ss.formula.WorkbookDependentFormula;
 import org.apache.poi.ss.formula.ptg.AbstractFunctionPtg;
+import org.apache.poi.ss.formula.ptg.Area3DPtg;
 import org.apache.poi.ss.formula.ptg.AreaPtg;
+import org.apache.poi.ss.formula.ptg.ArrayPtg;
 import org.apache.poi.ss.formula.ptg.AttrPtg;
 import org.apache.poi.ss.formula.ptg.MemAreaPtg;
 import org.apache.poi.ss.formula.ptg.MemErrPtg;
@@ -34,19 +41,88 @@ import org.apache.poi.ss.formula.ptg.MemFuncPtg;
 import org.apache.poi.ss.formula.ptg.OperationPtg;
 import org.apache.poi.ss.formula.ptg.ParenthesisPtg;
 import org.apache.poi.ss.formula.ptg.Ptg;
+import org.apache.poi.ss.formula.ptg.Ref3DPtg;
 import org.apache.poi.ss.formula.ptg.RefPtg;
+import org.apache.poi.ss.formula.ptg.StringPtg;
+import org.apache.poi.util.LittleEndianByteArrayOutputStream;
 
 /**
  * Common logic for rendering formulas.<br/>
  *
  * Modified to render formulas in the XML format specified in SHAMAN WP9. Fabio Corubolo
  *
+ * An instance also keeps templates of the formulae it renders: the formulae
+ * of a column usually repeat the same relative formula row after row, so a
+ * formula is rendered once for each shape (its tokens, with the relative
+ * references as offsets from the formula cell, like R1C1), and the other
+ * formulae of the same shape only fill in their references.
+ *
  * @author Josh Micich
  * 
  *  @author modifications Fabio Corubolo
  */
 public class FormulaRenderer {
 
+    private static final int MAX_TEMPLATES = 4096;
+    private static final int LAST_ROW_97 = SpreadsheetVersion.EXCEL97
+    .getLastRowIndex();
+    // in the text of a template, followed by the number of the reference
+    private static final char HOLE = '\u0000';
+
+    private final FormulaRenderingWorkbook book;
+    private final Map<Shape, Template> templates = new HashMap<Shape, Template>();
+    private final StringBuilder buffer = new StringBuilder();
+    private byte[] shape = new byte[256];
+    private int shapeLength;
+    private int hits;
+    private int misses;
+
+    /**
+     * A renderer with a template cache, which is not thread safe.
+     * 
+     * @param book  used for defined names and 3D references
+     */
+    public FormulaRenderer(FormulaRenderingWorkbook book) {
+        this.book = book;
+    }
+
+    /**
+     * Renders the formula of the cell at the given row and column, from the
+     * template of its shape when there is one.
+     * @param ptgs  must not be <code>null</code>
+     * @return the same text as {@link #toFormulaString(FormulaRenderingWorkbook, Ptg[])}
+     */
+    public String toFormulaString(Ptg[] ptgs, int row, int column) {
+        int length = shape(ptgs, row, column);
+        if (length < 0)
+            return toFormulaString(book, ptgs);
+        Shape key = new Shape(shape, length);
+        Template template = templates.get(key);
+        if (template != null) {
+            hits++;
+        } else {
+            misses++;
+            List<int[]> references = new ArrayList<int[]>();
+            String text = render(book, ptgs, references);
+            template = new Template(text, references, row, column);
+            if (templates.size() == MAX_TEMPLATES)
+                templates.clear();
+            templates.put(new Shape(Arrays.copyOf(shape, length), length),
+                    template);
+        }
+        return template.render(buffer, row, column);
+    }
+
+    /** @return the number of formulae rendered from an existing template */
+    public int getTemplateHits() {
+        return hits;
+    }
+
+    /** @return the number of formulae that made a new template */
+    public int getTemplateMisses() {
+        return misses;
+    }
+
     /**
      * Static method to convert an array of {@link Ptg}s in RPN order
      * to a human readable string format in infix mode.
@@ -55,10 +131,20 @@ public class FormulaRenderer {
      * @return a human readable String
      */
     public static String toFormulaString(FormulaRenderingWorkbook book, Ptg[] ptgs) {
+        return render(book, ptgs, null);
+    }
+
+    /**
+     * @param references if not null, the references to cells are left out of
+     * the text, replaced by a HOLE and their number in this list
+     */
+    private static String render(FormulaRenderingWorkbook book, Ptg[] ptgs,
+            List<int[]> references) {
         if (ptgs == null || ptgs.length == 0) {
             throw new IllegalArgumentException("ptgs must not be null");
         }
-        Stack<String> stack = new Stack<String>();
+        OperandStack stack = new OperandStack(ptgs.length);
+        StringBuilder buf = new StringBuilder();
 
         for (int i=0 ; i < ptgs.length; i++) {
             Ptg ptg = ptgs[i];
@@ -71,7 +157,8 @@ public class FormulaRenderer {
             }
             if (ptg instanceof ParenthesisPtg) {
                 String contents = stack.pop();
-                stack.push ("(" + contents + ")");
+                buf.setLength(0);
+                stack.push(buf.append('(').append(contents).append(')').toString());
                 continue;
             }
             if (ptg instanceof AttrPtg) {
@@ -91,7 +178,7 @@ public class FormulaRenderer {
                     continue;
                 }
                 if (attrPtg.isSum()) {
-                    String[] operands = getOperands(stack, attrPtg.getNumberOfOperands());
+                    String[] operands = stack.pop(attrPtg.getNumberOfOperands());
                     stack.push(attrPtg.toFormulaString(operands));
                     continue;
                 }
@@ -104,14 +191,17 @@ public class FormulaRenderer {
                 continue;
             }
             if (! (ptg instanceof OperationPtg)) {
-                String s = "";
+                String s;
                 if (ptg instanceof AreaPtg) {
                     AreaPtg a = (AreaPtg) ptg;
-                    s = formatReferenceAsString(a);
+                    s = formatReferenceAsString(a, buf, references);
                 } else if (ptg instanceof RefPtg) {
                     RefPtg a = (RefPtg) ptg;
-                    CellReference cr = new CellReference(a.getRow(), a.getColumn(), !a.isRowRelative(), !a.isColRelative());
-                   s = "[." + cr.formatAsString() + "]";
+                    buf.setLength(0);
+                    buf.append("[.");
+                    appendCell(buf, a.getRow(), a.getColumn(), !a.isRowRelative(),
+                            !a.isColRelative(), references);
+                    s = buf.append(']').toString();
                 }   
                 
                 else s = ptg.toFormulaString();
@@ -121,10 +211,12 @@ public class FormulaRenderer {
 
             OperationPtg o = (OperationPtg) ptg;
             
-            String[] operands = getOperands(stack, o.getNumberOfOperands());
+            String[] operands = stack.pop(o.getNumberOfOperands());
             if (o instanceof AbstractFunctionPtg) {
                 AbstractFunctionPtg a = (AbstractFunctionPtg) o;
-                stack.push(toFormulaString(a,operands));
+                buf.setLength(0);
+                appendFormulaString(buf, a, operands);
+                stack.push(buf.toString());
             }else 
                 stack.push(o.toFormulaString(operands));
         }
@@ -143,7 +235,12 @@ public class FormulaRenderer {
     }
     public static String toFormulaString(AbstractFunctionPtg a, String[] operands) {
         StringBuilder buf = new StringBuilder();
+        appendFormulaString(buf, a, operands);
+        return buf.toString();
+    }
 
+    private static void appendFormulaString(StringBuilder buf,
+            AbstractFunctionPtg a, String[] operands) {
         if(a.isExternalFunction()) {
             buf.append(operands[0]); // first operand is actually the function name
             appendArgs(buf, 1, operands);
@@ -151,7 +248,6 @@ public class FormulaRenderer {
             buf.append(a.getName());
             appendArgs(buf, 0, operands);
         }
-        return buf.toString();
     }
 
     private static void appendArgs(StringBuilder buf, int firstArgIx, String[] operands) {
@@ -166,25 +262,271 @@ public class FormulaRenderer {
     }
     
     protected static String formatReferenceAsString(AreaPtg a) {
-        CellReference topLeft = new CellReference(a.getFirstRow(),a.getFirstColumn(),!a.isFirstRowRelative(),!a.isFirstColRelative());
-        CellReference botRight = new CellReference(a.getLastRow(),a.getLastColumn(),!a.isLastRowRelative(),!a.isLastColRelative());
+        return formatReferenceAsString(a, new StringBuilder(), null);
+    }
 
-        if(AreaReference.isWholeColumnReference(topLeft, botRight)) {
-                return (new AreaReference(topLeft, botRight)).formatAsString();
+    private static String formatReferenceAsString(AreaPtg a, StringBuilder buf,
+            List<int[]> references) {
+        // whole columns are written out, without holes, see shape()
+        if (isWholeColumn(a)) {
+            CellReference topLeft = new CellReference(a.getFirstRow(),a.getFirstColumn(),!a.isFirstRowRelative(),!a.isFirstColRelative());
+            CellReference botRight = new CellReference(a.getLastRow(),a.getLastColumn(),!a.isLastRowRelative(),!a.isLastColRelative());
+            return (new AreaReference(topLeft, botRight)).formatAsString();
         }
-        return "[." + topLeft.formatAsString() + ":" + "."+botRight.formatAsString()+"]";
-}
-    private static String[] getOperands(Stack<String> stack, int nOperands) {
-        String[] operands = new String[nOperands];
-
-        for (int j = nOperands-1; j >= 0; j--) { // reverse iteration because args were pushed in-order
-            if(stack.isEmpty()) {
-               String msg = "Too few arguments supplied to operation. Expected (" + nOperands
-                    + ") operands but got (" + (nOperands - j - 1) + ")";
-                throw new IllegalStateException(msg);
+        buf.setLength(0);
+        buf.append("[.");
+        appendCell(buf, a.getFirstRow(), a.getFirstColumn(),
+                !a.isFirstRowRelative(), !a.isFirstColRelative(), references);
+        buf.append(":.");
+        appendCell(buf, a.getLastRow(), a.getLastColumn(),
+                !a.isLastRowRelative(), !a.isLastColRelative(), references);
+        return buf.append(']').toString();
+    }
+
+    /** @return true for an area of whole columns, like A:B */
+    private static boolean isWholeColumn(AreaPtg a) {
+        return a.getFirstRow() == 0 && !a.isFirstRowRelative()
+                && a.getLastRow() == LAST_ROW_97 && !a.isLastRowRelative();
+    }
+
+    /**
+     * Appends a cell reference like {@link CellReference#formatAsString()},
+     * or a hole for it if the references are collected.
+     */
+    private static void appendCell(StringBuilder buf, int row, int column,
+            boolean absoluteRow, boolean absoluteColumn, List<int[]> references) {
+        if (references != null) {
+            buf.append(HOLE).append((char) references.size());
+            references.add(new int[] { row, absoluteRow ? 1 : 0, column,
+                    absoluteColumn ? 1 : 0 });
+            return;
+        }
+        if (absoluteColumn)
+            buf.append('$');
+        appendColumn(buf, column);
+        if (absoluteRow)
+            buf.append('$');
+        buf.append(row + 1);
+    }
+
+    /** Appends the letters of a column, like CellReference.convertNumToColString. */
+    private static void appendColumn(StringBuilder buf, int column) {
+        char[] letters = new char[8];
+        int start = letters.length;
+        for (int n = column + 1; n > 0;) {
+            int digit = n % 26;
+            if (digit == 0)
+                digit = 26;
+            n = (n - digit) / 26;
+            letters[--start] = (char) ('@' + digit);
+        }
+        buf.append(letters, start, letters.length - start);
+    }
+
+    /**
+     * Encodes the shape of a formula in the shape buffer: the bytes of its
+     * tokens, with the relative parts of the references made relative to the
+     * formula cell.
+     *
+     * @return the length of the shape, or -1 if the formula cannot be
+     *         rendered from a template
+     */
+    private int shape(Ptg[] ptgs, int row, int column) {
+        shapeLength = 0;
+        for (Ptg ptg : ptgs) {
+            if (ptg instanceof RefPtg) {
+                RefPtg r = (RefPtg) ptg;
+                put(1);
+                putCoordinate(r.getRow(), r.isRowRelative(), row);
+                putCoordinate(r.getColumn(), r.isColRelative(), column);
+            } else if (ptg instanceof AreaPtg) {
+                AreaPtg a = (AreaPtg) ptg;
+                // whole columns are rendered without holes, so their columns
+                // are kept absolute: A:A and B:B are different shapes
+                int origin = isWholeColumn(a) ? -1 : column;
+                put(2);
+                putCoordinate(a.getFirstRow(), a.isFirstRowRelative(), row);
+                putCoordinate(a.getFirstColumn(), a.isFirstColRelative(), origin);
+                putCoordinate(a.getLastRow(), a.isLastRowRelative(), row);
+                putCoordinate(a.getLastColumn(), a.isLastColRelative(), origin);
+            } else if (ptg instanceof Ref3DPtg) {
+                // written out whole: the rows do not all fit in the tokens
+                Ref3DPtg r = (Ref3DPtg) ptg;
+                put(3);
+                putInt(r.getExternSheetIndex());
+                putCoordinate(r.getRow(), r.isRowRelative(), -1);
+                putCoordinate(r.getColumn(), r.isColRelative(), -1);
+            } else if (ptg instanceof Area3DPtg) {
+                Area3DPtg a = (Area3DPtg) ptg;
+                put(4);
+                putInt(a.getExternSheetIndex());
+                putCoordinate(a.getFirstRow(), a.isFirstRowRelative(), -1);
+                putCoordinate(a.getFirstColumn(), a.isFirstColRelative(), -1);
+                putCoordinate(a.getLastRow(), a.isLastRowRelative(), -1);
+                putCoordinate(a.getLastColumn(), a.isLastColRelative(), -1);
+            } else if (ptg instanceof ArrayPtg) {
+                // the constants are not part of the token bytes
+                return -1;
+            } else if (ptg instanceof StringPtg) {
+                String value = ((StringPtg) ptg).getValue();
+                if (value.indexOf(HOLE) >= 0)
+                    return -1;
+                put(5);
+                putInt(value.length());
+                for (int i = 0; i < value.length(); i++)
+                    putInt(value.charAt(i));
+            } else {
+                ensure(ptg.getSize());
+                LittleEndianByteArrayOutputStream out = new LittleEndianByteArrayOutputStream(
+                        shape, shapeLength);
+                ptg.write(out);
+                shapeLength = out.getWriteIndex();
+            }
+        }
+        return shapeLength;
+    }
+
+    private void putCoordinate(int value, boolean relative, int origin) {
+        if (relative && origin >= 0) {
+            put(1);
+            putInt(value - origin);
+        } else {
+            put(relative ? 2 : 0);
+            putInt(value);
+        }
+    }
+
+    private void put(int b) {
+        ensure(1);
+        shape[shapeLength++] = (byte) b;
+    }
+
+    private void putInt(int v) {
+        ensure(4);
+        shape[shapeLength++] = (byte) v;
+        shape[shapeLength++] = (byte) (v >> 8);
+        shape[shapeLength++] = (byte) (v >> 16);
+        shape[shapeLength++] = (byte) (v >> 24);
+    }
+
+    private void ensure(int n) {
+        if (shapeLength + n > shape.length)
+            shape = Arrays.copyOf(shape, Math.max(shape.length * 2, shapeLength
+                    + n));
+    }
+
+    /** The shape of a formula, as a map key. */
+    private static class Shape {
+        private final byte[] bytes;
+        private final int length;
+        private final int hash;
+
+        Shape(byte[] bytes, int length) {
+            this.bytes = bytes;
+            this.length = length;
+            int h = 1;
+            for (int i = 0; i < length; i++)
+                h = 31 * h + bytes[i];
+            this.hash = h;
+        }
+
+        public int hashCode() {
+            return hash;
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof Shape))
+                return false;
+            Shape s = (Shape) o;
+            if (s.length != length || s.hash != hash)
+                return false;
+            for (int i = 0; i < length; i++)
+                if (s.bytes[i] != bytes[i])
+                    return false;
+            return true;
+        }
+    }
+
+    /**
+     * The text of a formula, split at its cell references, which are kept
+     * relative to the formula cell.
+     */
+    private static class Template {
+        private final String[] text;
+        // row, absolute row flag, column, absolute column flag
+        private final int[][] references;
+
+        Template(String rendered, List<int[]> cells, int row, int column) {
+            text = new String[cells.size() + 1];
+            references = new int[cells.size()][];
+            int from = 0;
+            int n = 0;
+            for (int i = rendered.indexOf(HOLE); i >= 0; i = rendered.indexOf(
+                    HOLE, from)) {
+                text[n] = rendered.substring(from, i);
+                int[] r = cells.get(rendered.charAt(i + 1)).clone();
+                if (r[1] == 0)
+                    r[0] -= row;
+                if (r[3] == 0)
+                    r[2] -= column;
+                references[n++] = r;
+                from = i + 2;
+            }
+            text[n] = rendered.substring(from);
+        }
+
+        String render(StringBuilder buf, int row, int column) {
+            buf.setLength(0);
+            for (int i = 0; i < references.length; i++) {
+                buf.append(text[i]);
+                int[] r = references[i];
+                boolean absoluteRow = r[1] != 0;
+                boolean absoluteColumn = r[3] != 0;
+                appendCell(buf, absoluteRow ? r[0] : r[0] + row,
+                        absoluteColumn ? r[2] : r[2] + column, absoluteRow,
+                        absoluteColumn, null);
+            }
+            return buf.append(text[references.length]).toString();
+        }
+    }
+
+    /**
+     * An unsynchronized stack of operands, as large as the number of tokens.
+     */
+    private static class OperandStack {
+        private final String[] items;
+        private int size;
+
+        OperandStack(int capacity) {
+            items = new String[capacity];
+        }
+
+        void push(String s) {
+            items[size++] = s;
+        }
+
+        String pop() {
+            if (size == 0)
+                throw new IllegalStateException("Stack underflow");
+            return items[--size];
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        String[] pop(int nOperands) {
+            String[] operands = new String[nOperands];
+
+            for (int j = nOperands-1; j >= 0; j--) { // reverse iteration because args were pushed in-order
+                if(size == 0) {
+                   String msg = "Too few arguments supplied to operation. Expected (" + nOperands
+                        + ") operands but got (" + (nOperands - j - 1) + ")";
+                    throw new IllegalStateException(msg);
+                }
+                operands[j] = items[--size];
             }
-            operands[j] = stack.pop();
+            return operands;
         }
-        return operands;
     }
 }
@@ -0,0 +1,441 @@
+/* ====================================================================
+   Licensed to the Apache Software Foundation (ASF) under one or more
+   contributor license agreements.  See the NOTICE file distributed with
+   this work for additional information regarding copyright ownership.
+   The ASF licenses this file to You under the Apache License, Version 2.0
+   (the "License"); you may not use this file except in compliance with
+   the License.  You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+==================================================================== */
+package uk.ac.liverpool.spreadsheet;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.poi.EncryptedDocumentException;
+import org.apache.poi.ddf.EscherBSERecord;
+import org.apache.poi.ddf.EscherBlipRecord;
+import org.apache.poi.ddf.EscherRecord;
+import org.apache.poi.hpsf.DocumentSummaryInformation;
+import org.apache.poi.hpsf.PropertySetFactory;
+import org.apache.poi.hssf.eventusermodel.FormatTrackingHSSFListener;
+import org.apache.poi.hssf.eventusermodel.HSSFEventFactory;
+import org.apache.poi.hssf.eventusermodel.HSSFListener;
+import org.apache.poi.hssf.eventusermodel.HSSFRequest;
+import org.apache.poi.hssf.record.BOFRecord;
+import org.apache.poi.hssf.record.BoundSheetRecord;
+import org.apache.poi.hssf.record.CFHeaderRecord;
+import org.apache.poi.hssf.record.CellValueRecordInterface;
+import org.apache.poi.hssf.record.CommonObjectDataSubRecord;
+import org.apache.poi.hssf.record.DrawingGroupRecord;
+import org.apache.poi.hssf.record.EOFRecord;
+import org.apache.poi.hssf.record.EmbeddedObjectRefSubRecord;
+import org.apache.poi.hssf.record.ExternSheetRecord;
+import org.apache.poi.hssf.record.ExternalNameRecord;
+import org.apache.poi.hssf.record.FontRecord;
+import org.apache.poi.hssf.record.FormulaRecord;
+import org.apache.poi.hssf.record.NameRecord;
+import org.apache.poi.hssf.record.NoteRecord;
+import org.apache.poi.hssf.record.ObjRecord;
+import org.apache.poi.hssf.record.PaneRecord;
+import org.apache.poi.hssf.record.Record;
+import org.apache.poi.hssf.record.RowRecord;
+import org.apache.poi.hssf.record.SharedFormulaRecord;
+import org.apache.poi.hssf.record.SupBookRecord;
+import org.apache.poi.hssf.record.UncalcedRecord;
+import org.apache.poi.hssf.usermodel.HSSFPictureData;
+import org.apache.poi.poifs.filesystem.DirectoryNode;
+import org.apache.poi.poifs.filesystem.DocumentInputStream;
+import org.apache.poi.poifs.filesystem.NPOIFSFileSystem;
+import org.apache.poi.ss.formula.ptg.NamePtg;
+import org.apache.poi.ss.formula.ptg.NameXPtg;
+import org.apache.poi.ss.formula.ptg.Ptg;
+import org.jdom.Element;
+
+/**
+ * Feature analysis of binary (.xls) files from the BIFF record stream. This
+ * produces the same featureanalysis XML as {@link ExcelFeatureAnalysis}, but
+ * reads the workbook in a single pass with the HSSF event model instead of
+ * building an HSSFWorkbook, so memory use stays nearly constant whatever the
+ * size of the file.
+ *
+ * Formulae are not evaluated: user defined and unsupported functions are
+ * recognised from the formula tokens by {@link FormulaFunctionAnalysis}.
+ */
+public class HSSFEventFeatureAnalysis implements HSSFListener {
+
+    private final FormatTrackingHSSFListener formats;
+
+    // workbook globals
+    private final List<BoundSheetRecord> boundSheets = new ArrayList<BoundSheetRecord>();
+    private final List<FontRecord> fonts = new ArrayList<FontRecord>();
+    private final List<NameRecord> names = new ArrayList<NameRecord>();
+    private final List<List<String>> externalNames = new ArrayList<List<String>>();
+    private final List<DrawingGroupRecord> drawingGroups = new ArrayList<DrawingGroupRecord>();
+    private final List<String> embeddedObjects = new ArrayList<String>();
+    private ExternSheetRecord externSheet;
+    private FormulaRecord lastFormula;
+
+    private final List<SheetFeatures> sheets = new ArrayList<SheetFeatures>();
+    private SheetFeatures current;
+    // substream nesting: 1 for the globals and the sheets, 2 for embedded
+    // charts
+    private int depth;
+
+    /** Features of one sheet, as seen in its substream. */
+    private static class SheetFeatures {
+        boolean rows;
+        int firstRow = -1;
+        int lastRow = -1;
+        int firstColumn = Integer.MAX_VALUE;
+        int endColumn = 0;
+        boolean forceFormulaRecalc;
+        boolean panels;
+        boolean charts;
+        boolean shapes;
+        boolean conditionalFormatting;
+        boolean customisedFormatting;
+        boolean formulae;
+        boolean comments;
+        final FormulaFunctionAnalysis functions = new FormulaFunctionAnalysis();
+
+        void row(int r) {
+            rows = true;
+            if (firstRow == -1 || r < firstRow)
+                firstRow = r;
+            if (r > lastRow)
+                lastRow = r;
+        }
+    }
+
+    private HSSFEventFeatureAnalysis() {
+        formats = new FormatTrackingHSSFListener(this);
+    }
+
+    /**
+     * The main analysis method. The returned string will be a properly formed
+     * XML enlisting the file features, in the same format as
+     * {@link ExcelFeatureAnalysis#analyse(File)}.
+     *
+     * @param in
+     *            a binary (.xls) Excel file
+     * @return XML string listing the features used in the file.
+     * @throws IOException
+     */
+    public static String analyse(File in) throws IOException {
+        NPOIFSFileSystem fs = new NPOIFSFileSystem(in);
+        try {
+            DirectoryNode root = fs.getRoot();
+            HSSFEventFeatureAnalysis efa = new HSSFEventFeatureAnalysis();
+            HSSFRequest req = new HSSFRequest();
+            req.addListenerForAllRecords(efa.formats);
+            try {
+                new HSSFEventFactory().processWorkbookEvents(req, root);
+            } catch (EncryptedDocumentException e) {
+                return ExcelFeatureAnalysis.encrypted(in);
+            }
+
+            Element r = new Element("featureanalysis", ExcelFeatureAnalysis.fa);
+            Element da = ExcelFeatureAnalysis.objectElement(r, in);
+            efa.analyseSpreadsheet(da, root);
+            return ExcelFeatureAnalysis.outputString(r);
+        } finally {
+            fs.close();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("usage: HSSFEventFeatureAnalysis inputWorkbook.xls");
+            return;
+        }
+        System.out.println(analyse(new File(args[0])));
+    }
+
+    public void processRecord(Record record) {
+        switch (record.getSid()) {
+        case BOFRecord.sid:
+            depth++;
+            BOFRecord bof = (BOFRecord) record;
+            if (depth == 1 && bof.getType() != BOFRecord.TYPE_WORKBOOK) {
+                current = new SheetFeatures();
+                sheets.add(current);
+            } else if (depth > 1 && current != null
+                    && bof.getType() == BOFRecord.TYPE_CHART) {
+                current.charts = true;
+            }
+            break;
+        case EOFRecord.sid:
+            depth--;
+            if (depth == 0)
+                current = null;
+            break;
+        case BoundSheetRecord.sid:
+            boundSheets.add((BoundSheetRecord) record);
+            break;
+        case FontRecord.sid:
+            fonts.add((FontRecord) record);
+            break;
+        case NameRecord.sid:
+            names.add((NameRecord) record);
+            break;
+        case SupBookRecord.sid:
+            externalNames.add(new ArrayList<String>());
+            break;
+        case ExternalNameRecord.sid:
+            if (!externalNames.isEmpty())
+                externalNames.get(externalNames.size() - 1).add(
+                        ((ExternalNameRecord) record).getText());
+            break;
+        case ExternSheetRecord.sid:
+            externSheet = (ExternSheetRecord) record;
+            break;
+        case DrawingGroupRecord.sid:
+            // continue records are appended to this instance while reading,
+            // so it is decoded only at the end
+            drawingGroups.add((DrawingGroupRecord) record);
+            break;
+        default:
+            if (current != null && depth == 1)
+                sheetRecord(record);
+        }
+    }
+
+    private void sheetRecord(Record record) {
+        switch (record.getSid()) {
+        case RowRecord.sid:
+            current.row(((RowRecord) record).getRowNumber());
+            break;
+        case UncalcedRecord.sid:
+            current.forceFormulaRecalc = true;
+            break;
+        case PaneRecord.sid:
+            current.panels = true;
+            break;
+        case CFHeaderRecord.sid:
+            current.conditionalFormatting = true;
+            break;
+        case NoteRecord.sid:
+            current.comments = true;
+            break;
+        case ObjRecord.sid:
+            for (Object sub : ((ObjRecord) record).getSubRecords()) {
+                if (sub instanceof CommonObjectDataSubRecord) {
+                    // embedded charts come with their own substream
+                    if (((CommonObjectDataSubRecord) sub).getObjectType() != CommonObjectDataSubRecord.OBJECT_TYPE_CHART)
+                        current.shapes = true;
+                } else if (sub instanceof EmbeddedObjectRefSubRecord) {
+                    embeddedObjects.add(((EmbeddedObjectRefSubRecord) sub)
+                            .getOLEClassName());
+                }
+            }
+            break;
+        case SharedFormulaRecord.sid:
+            // follows the first formula record of the group, which only holds
+            // a reference to it
+            if (lastFormula != null)
+                findUDFs(((SharedFormulaRecord) record)
+                        .getFormulaTokens(lastFormula));
+            break;
+        default:
+            if (record instanceof CellValueRecordInterface)
+                cell((CellValueRecordInterface) record);
+        }
+    }
+
+    private void cell(CellValueRecordInterface cell) {
+        current.row(cell.getRow());
+        int col = cell.getColumn();
+        current.firstColumn = Math.min(current.firstColumn, col);
+        current.endColumn = Math.max(current.endColumn, col + 1);
+        try {
+            if (!formats.getFormatString(cell).equals("GENERAL"))
+                current.customisedFormatting = true;
+        } catch (RuntimeException x) {
+        }
+        if (cell instanceof FormulaRecord) {
+            current.formulae = true;
+            lastFormula = (FormulaRecord) cell;
+            findUDFs(lastFormula.getParsedExpression());
+        }
+    }
+
+    private void findUDFs(Ptg[] ptgs) {
+        current.functions.analyse(ptgs, workbookNames);
+    }
+
+    private final FormulaFunctionAnalysis.Names workbookNames = new FormulaFunctionAnalysis.Names() {
+        public String functionName(NamePtg p) {
+            return HSSFEventFeatureAnalysis.this.functionName(p);
+        }
+
+        public String externalName(NameXPtg p) {
+            return HSSFEventFeatureAnalysis.this.externalName(p);
+        }
+    };
+
+    private String functionName(NamePtg p) {
+        int i = p.getIndex();
+        if (i < names.size() && names.get(i).isFunctionName())
+            return names.get(i).getNameText();
+        return null;
+    }
+
+    private String externalName(NameXPtg p) {
+        if (externSheet == null)
+            return null;
+        try {
+            int book = externSheet.getExtbookIndexFromRefIndex(p
+                    .getSheetRefIndex());
+            return externalNames.get(book).get(p.getNameIndex());
+        } catch (RuntimeException x) {
+            return null;
+        }
+    }
+
+    // Analysis at the file level, mirrors ExcelFeatureAnalysis
+    private void analyseSpreadsheet(Element da, DirectoryNode root) {
+        Element s = new Element("spreadsheets", ExcelFeatureAnalysis.sn);
+        da.addContent(s);
+        s.setAttribute("numberOfSheets", "" + boundSheets.size());
+
+        List<String> pictures = pictures();
+        if (pictures.size() > 0) {
+            Element oo = new Element("Pictures", ExcelFeatureAnalysis.sn);
+            s.addContent(oo);
+            for (String mime : pictures) {
+                Element ob = new Element("Picture", ExcelFeatureAnalysis.sn);
+                ob.setAttribute("mimeType", mime);
+                oo.addContent(ob);
+            }
+        }
+
+        int numfonts = fonts.size();
+        if (numfonts > 0) {
+            Element oo = new Element("Fonts", ExcelFeatureAnalysis.sn);
+            s.addContent(oo);
+            for (int i = 0; i < numfonts; i++) {
+                // same indexing as HSSFWorkbook.getFontAt: there is no font 4
+                FontRecord cs = fonts.get(i > 4 ? i - 1 : i);
+                Element ob = new Element("Font", ExcelFeatureAnalysis.sn);
+                ob.setAttribute("Name", cs.getFontName());
+                ob.setAttribute("Charset", "" + (cs.getCharset() & 0xff));
+                oo.addContent(ob);
+            }
+        }
+
+        DocumentSummaryInformation dsi = documentSummaryInformation(root);
+        if (dsi != null)
+            s.setAttribute("OSVersion", "" + dsi.getOSVersion());
+
+        if (embeddedObjects.size() > 0) {
+            Element oo = new Element("EmbeddedObjects", ExcelFeatureAnalysis.sn);
+            s.addContent(oo);
+            for (String name : embeddedObjects) {
+                Element ob = new Element("EmbeddedObject", ExcelFeatureAnalysis.sn);
+                ob.setAttribute("name", name);
+                oo.addContent(ob);
+            }
+        }
+
+        if (names.size() > 0) {
+            Element oo = new Element("NamedCells", ExcelFeatureAnalysis.sn);
+            s.addContent(oo);
+        }
+
+        List<BoundSheetRecord> ordered = Arrays.asList(BoundSheetRecord
+                .orderByBofPosition(boundSheets));
+        for (int c = 0; c < ordered.size() && c < sheets.size(); c++) {
+            Element single = new Element("sheet", ExcelFeatureAnalysis.sn);
+            s.addContent(single);
+            analyseSheet(ordered.get(c).getSheetname(), sheets.get(c), single);
+        }
+    }
+
+    // Analysis at the sheet level, mirrors ExcelFeatureAnalysis
+    private static void analyseSheet(String name, SheetFeatures f, Element s) {
+        Element e;
+        s.setAttribute("name", name);
+        s.setAttribute("firstRow", "" + Math.max(f.firstRow, 0));
+        s.setAttribute("lastRow", "" + Math.max(f.lastRow, 0));
+        s.setAttribute("forceFormulaRecalc", "" + f.forceFormulaRecalc);
+        // HSSF sheets always have a header and a footer
+        s.setAttribute("footer", "true");
+        s.setAttribute("header", "true");
+        if (f.panels)
+            s.setAttribute("panels", "true");
+        if (f.charts)
+            s.addContent(new Element("charts", ExcelFeatureAnalysis.sn));
+        if (f.shapes)
+            s.addContent(new Element("shapes", ExcelFeatureAnalysis.sn));
+        if (f.conditionalFormatting)
+            s.setAttribute("conditionalFormatting", "true");
+        s.setAttribute("firstColumn", "" + (f.rows ? f.firstColumn : 0));
+        s.setAttribute("lastColumn", "" + f.endColumn);
+
+        if (f.customisedFormatting) {
+            e = new Element("customisedFormatting", ExcelFeatureAnalysis.sn);
+            s.addContent(e);
+        }
+        if (f.formulae) {
+            e = new Element("formulae", ExcelFeatureAnalysis.sn);
+            s.addContent(e);
+        }
+        f.functions.report(s);
+        if (f.comments) {
+            e = new Element("cellComments", ExcelFeatureAnalysis.sn);
+            s.addContent(e);
+        }
+    }
+
+    private List<String> pictures() {
+        List<String> mimes = new ArrayList<String>();
+        for (DrawingGroupRecord dg : drawingGroups) {
+            try {
+                dg.decode();
+                searchForPictures(dg.getEscherRecords(), mimes);
+            } catch (RuntimeException x) {
+            }
+        }
+        return mimes;
+    }
+
+    private static void searchForPictures(List<EscherRecord> escherRecords,
+            List<String> mimes) {
+        for (EscherRecord escherRecord : escherRecords) {
+            if (escherRecord instanceof EscherBSERecord) {
+                EscherBlipRecord blip = ((EscherBSERecord) escherRecord)
+                .getBlipRecord();
+                if (blip != null)
+                    mimes.add(new HSSFPictureData(blip).getMimeType());
+            }
+            searchForPictures(escherRecord.getChildRecords(), mimes);
+        }
+    }
+
+    private static DocumentSummaryInformation documentSummaryInformation(
+            DirectoryNode root) {
+        try {
+            DocumentInputStream in = root
+            .createDocumentInputStream(DocumentSummaryInformation.DEFAULT_STREAM_NAME);
+            try {
+                return (DocumentSummaryInformation) PropertySetFactory
+                .create(in);
+            } finally {
+                in.close();
+            }
+        } catch (Exception x) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,203 @@
+/* ====================================================================
+   Licensed to the Apache Software Foundation (ASF) under one or more
+   contributor license agreements.  See the NOTICE file distributed with
+   this work for additional information regarding copyright ownership.
+   The ASF licenses this file to You under the Apache License, Version 2.0
+   (the "License"); you may not use this file except in compliance with
+   the License.  You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+==================================================================== */
+package uk.ac.liverpool.spreadsheet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.FormulaEvaluator;
+import org.apache.poi.ss.usermodel.Workbook;
+
+/**
+ * Evaluates every formula of a workbook, in parallel, storing the results in
+ * the cells like {@link FormulaEvaluator#evaluateFormulaCell(Cell)}.
+ *
+ * The formula cells are split into the weakly connected components of their
+ * dependency graph (see {@link WorkbookDependencies}): two formulae are in
+ * the same component when one refers to the other. A POI evaluator caches
+ * the intermediate results of a recalculation, and cannot be shared between
+ * threads; components share no formula, so each group of components is
+ * evaluated by its own evaluator without computing any cell twice. Within a
+ * component the cells are evaluated in sheet, row and column order, as a
+ * sequential evaluation would.
+ *
+ * References that are only known when evaluating, like INDIRECT or OFFSET,
+ * are not followed: their targets are still computed correctly, by the
+ * evaluator that needs them, but possibly a second time.
+ *
+ * Evaluators only read the workbook, apart from the results they store in
+ * their own cells, so separate evaluators can run at the same time.
+ */
+public class ParallelEvaluation {
+
+    // smallest number of formula cells worth a task of its own
+    private static final int MIN_TASK_SIZE = 256;
+
+    private final Workbook wb;
+    // formula cells, in sheet, row and column order
+    private final List<Cell> cells;
+    // component number of each formula cell, numbered in cell order
+    private int[] componentOf;
+    private int components;
+
+    /**
+     * Finds the formula cells of the workbook and their components.
+     */
+    public ParallelEvaluation(Workbook wb) {
+        this.wb = wb;
+        WorkbookDependencies dependencies = new WorkbookDependencies(wb);
+        DependencyGraph graph = dependencies.getGraph();
+        cells = dependencies.getFormulaCells();
+
+        // union find, linking every formula to the formulae depending on it
+        int[] parent = new int[graph.size()];
+        for (int n = 0; n < parent.length; n++)
+            parent[n] = n;
+        for (int i = 0; i < cells.size(); i++) {
+            long key = dependencies.getFormulaKey(i);
+            int f = graph.indexOf(key);
+            for (long d : graph.dependents(key)) {
+                int a = root(parent, f);
+                int b = root(parent, graph.indexOf(d));
+                if (a != b)
+                    parent[Math.max(a, b)] = Math.min(a, b);
+            }
+        }
+        componentOf = new int[cells.size()];
+        int[] number = new int[parent.length];
+        Arrays.fill(number, -1);
+        for (int i = 0; i < cells.size(); i++) {
+            int r = root(parent, graph.indexOf(dependencies.getFormulaKey(i)));
+            if (number[r] < 0)
+                number[r] = components++;
+            componentOf[i] = number[r];
+        }
+    }
+
+    private static int root(int[] parent, int n) {
+        while (parent[n] != n) {
+            parent[n] = parent[parent[n]];
+            n = parent[n];
+        }
+        return n;
+    }
+
+    /** @return the number of formula cells in the workbook */
+    public int getFormulaCount() {
+        return cells.size();
+    }
+
+    /** @return the number of independent groups of formulae */
+    public int getComponentCount() {
+        return components;
+    }
+
+    /**
+     * Evaluates all the formulae, in tasks of whole components.
+     *
+     * @param executor
+     *            runs the tasks; null evaluates in the calling thread
+     * @throws InterruptedException
+     *             if interrupted while waiting for the tasks, which are
+     *             then cancelled
+     */
+    public void evaluate(ExecutorService executor) throws InterruptedException {
+        List<Evaluation> tasks = tasks();
+        if (executor == null) {
+            for (Evaluation t : tasks)
+                t.call();
+            return;
+        }
+        List<Future<Void>> results = new ArrayList<Future<Void>>();
+        for (Evaluation t : tasks)
+            results.add(executor.submit(t));
+        // waits for every task, and reports the failure of the first one
+        Throwable failure = null;
+        for (Future<Void> r : results) {
+            try {
+                r.get();
+            } catch (ExecutionException x) {
+                if (failure == null)
+                    failure = x.getCause();
+            } catch (InterruptedException x) {
+                for (Future<Void> f : results)
+                    f.cancel(true);
+                throw x;
+            }
+        }
+        if (failure instanceof Error)
+            throw (Error) failure;
+        if (failure != null)
+            throw (RuntimeException) failure;
+    }
+
+    /**
+     * Groups consecutive components into tasks of a few times fewer cells
+     * than there are processors, so that uneven tasks still balance.
+     */
+    private List<Evaluation> tasks() {
+        int total = cells.size();
+        // the cells of each component, in cell order
+        int[] start = new int[components + 1];
+        for (int i = 0; i < total; i++)
+            start[componentOf[i] + 1]++;
+        for (int c = 0; c < components; c++)
+            start[c + 1] += start[c];
+        int[] order = new int[total];
+        int[] pos = Arrays.copyOf(start, components);
+        for (int i = 0; i < total; i++)
+            order[pos[componentOf[i]]++] = i;
+
+        int size = Math.max(MIN_TASK_SIZE, total
+                / (4 * Runtime.getRuntime().availableProcessors()));
+        List<Evaluation> tasks = new ArrayList<Evaluation>();
+        int from = 0;
+        for (int c = 0; c < components; c++) {
+            if (start[c + 1] - from >= size || c == components - 1) {
+                tasks.add(new Evaluation(Arrays.copyOfRange(order, from,
+                        start[c + 1])));
+                from = start[c + 1];
+            }
+        }
+        return tasks;
+    }
+
+    /**
+     * Evaluates some whole components with an evaluator of its own.
+     */
+    private class Evaluation implements Callable<Void> {
+        private final int[] cellIndexes;
+
+        Evaluation(int[] cellIndexes) {
+            this.cellIndexes = cellIndexes;
+        }
+
+        public Void call() {
+            FormulaEvaluator evaluator = wb.getCreationHelper()
+            .createFormulaEvaluator();
+            for (int i : cellIndexes)
+                evaluator.evaluateFormulaCell(cells.get(i));
+            return null;
+        }
+    }
+}
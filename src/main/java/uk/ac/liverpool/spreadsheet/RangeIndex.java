@@ -0,0 +1,238 @@
+/* ====================================================================
+   Licensed to the Apache Software Foundation (ASF) under one or more
+   contributor license agreements.  See the NOTICE file distributed with
+   this work for additional information regarding copyright ownership.
+   The ASF licenses this file to You under the Apache License, Version 2.0
+   (the "License"); you may not use this file except in compliance with
+   the License.  You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+==================================================================== */
+package uk.ac.liverpool.spreadsheet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Static R-tree over cell areas (sheet, rows, columns), answering stabbing
+ * queries: which areas contain a given cell. The tree is packed with the
+ * Sort-Tile-Recursive algorithm when {@link #build()} is called; areas can only
+ * be added before that.
+ *
+ * Every area carries an int value, returned by the queries.
+ */
+class RangeIndex {
+
+    private static final int FANOUT = 16;
+
+    private final Boxes areas = new Boxes(16);
+    // tree levels, leaves' parents first; empty until built
+    private final List<Boxes> levels = new ArrayList<Boxes>();
+    private boolean built;
+
+    /**
+     * Adds an area, with the value to return when it contains the queried
+     * cell.
+     */
+    void add(int sheet, int firstRow, int firstColumn, int lastRow,
+            int lastColumn, int value) {
+        if (built)
+            throw new IllegalStateException("index already built");
+        areas.add(sheet, sheet, firstRow, lastRow, firstColumn, lastColumn,
+                value, value);
+    }
+
+    int size() {
+        return areas.size;
+    }
+
+    /**
+     * Packs the tree. Must be called once, after all the areas have been
+     * added and before the first query.
+     */
+    void build() {
+        if (built)
+            return;
+        built = true;
+        Boxes level = areas;
+        sortTileRecursive(level);
+        while (level.size > FANOUT || levels.isEmpty()) {
+            Boxes parents = new Boxes((level.size + FANOUT - 1) / FANOUT);
+            for (int i = 0; i < level.size; i += FANOUT) {
+                int end = Math.min(i + FANOUT, level.size);
+                int s1 = Integer.MAX_VALUE, s2 = Integer.MIN_VALUE;
+                int r1 = Integer.MAX_VALUE, r2 = Integer.MIN_VALUE;
+                int c1 = Integer.MAX_VALUE, c2 = Integer.MIN_VALUE;
+                for (int k = i; k < end; k++) {
+                    s1 = Math.min(s1, level.s1[k]);
+                    s2 = Math.max(s2, level.s2[k]);
+                    r1 = Math.min(r1, level.r1[k]);
+                    r2 = Math.max(r2, level.r2[k]);
+                    c1 = Math.min(c1, level.c1[k]);
+                    c2 = Math.max(c2, level.c2[k]);
+                }
+                parents.add(s1, s2, r1, r2, c1, c2, i, end);
+            }
+            if (parents.size > 1)
+                sortTileRecursive(parents);
+            levels.add(parents);
+            level = parents;
+        }
+    }
+
+    /**
+     * @return the values of the areas containing the cell, in increasing
+     *         order
+     */
+    int[] stab(int sheet, int row, int column) {
+        if (!built)
+            throw new IllegalStateException("index not built");
+        Result result = new Result();
+        Boxes top = levels.get(levels.size() - 1);
+        for (int i = 0; i < top.size; i++)
+            search(levels.size() - 1, i, sheet, row, column, result);
+        int[] values = new int[result.size];
+        System.arraycopy(result.values, 0, values, 0, result.size);
+        Arrays.sort(values);
+        return values;
+    }
+
+    private void search(int level, int node, int sheet, int row, int column,
+            Result result) {
+        Boxes b = levels.get(level);
+        if (!b.contains(node, sheet, row, column))
+            return;
+        if (level == 0) {
+            for (int i = b.start[node]; i < b.end[node]; i++)
+                if (areas.contains(i, sheet, row, column))
+                    result.add(areas.start[i]);
+        } else {
+            for (int i = b.start[node]; i < b.end[node]; i++)
+                search(level - 1, i, sheet, row, column, result);
+        }
+    }
+
+    /**
+     * Orders the boxes so that consecutive runs of FANOUT boxes are close:
+     * by sheet and row centre, then by sheet and column centre within
+     * vertical slices.
+     */
+    private static void sortTileRecursive(final Boxes b) {
+        Integer[] order = new Integer[b.size];
+        for (int i = 0; i < b.size; i++)
+            order[i] = Integer.valueOf(i);
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer x, Integer y) {
+                return compareBy(b.s1, b.r1, b.r2, x.intValue(), y.intValue());
+            }
+        });
+        int leaves = (b.size + FANOUT - 1) / FANOUT;
+        int slice = FANOUT * (int) Math.ceil(Math.sqrt(leaves));
+        for (int i = 0; i < b.size; i += slice)
+            Arrays.sort(order, i, Math.min(i + slice, b.size),
+                    new Comparator<Integer>() {
+                public int compare(Integer x, Integer y) {
+                    return compareBy(b.s1, b.c1, b.c2, x.intValue(),
+                            y.intValue());
+                }
+            });
+        b.permute(order);
+    }
+
+    private static int compareBy(int[] sheet, int[] low, int[] high, int x,
+            int y) {
+        if (sheet[x] != sheet[y])
+            return sheet[x] < sheet[y] ? -1 : 1;
+        long cx = (long) low[x] + high[x];
+        long cy = (long) low[y] + high[y];
+        return cx < cy ? -1 : (cx == cy ? 0 : 1);
+    }
+
+    /**
+     * Bounding boxes in parallel arrays. For the areas, start and end both hold
+     * the value; for the tree nodes, they delimit the children in the level
+     * below.
+     */
+    private static class Boxes {
+        int size;
+        int[] s1, s2, r1, r2, c1, c2, start, end;
+
+        Boxes(int capacity) {
+            capacity = Math.max(capacity, 1);
+            s1 = new int[capacity];
+            s2 = new int[capacity];
+            r1 = new int[capacity];
+            r2 = new int[capacity];
+            c1 = new int[capacity];
+            c2 = new int[capacity];
+            start = new int[capacity];
+            end = new int[capacity];
+        }
+
+        void add(int sheet1, int sheet2, int row1, int row2, int col1,
+                int col2, int from, int to) {
+            if (size == s1.length) {
+                int n = size * 2;
+                s1 = Arrays.copyOf(s1, n);
+                s2 = Arrays.copyOf(s2, n);
+                r1 = Arrays.copyOf(r1, n);
+                r2 = Arrays.copyOf(r2, n);
+                c1 = Arrays.copyOf(c1, n);
+                c2 = Arrays.copyOf(c2, n);
+                start = Arrays.copyOf(start, n);
+                end = Arrays.copyOf(end, n);
+            }
+            s1[size] = sheet1;
+            s2[size] = sheet2;
+            r1[size] = row1;
+            r2[size] = row2;
+            c1[size] = col1;
+            c2[size] = col2;
+            start[size] = from;
+            end[size] = to;
+            size++;
+        }
+
+        boolean contains(int i, int sheet, int row, int column) {
+            return sheet >= s1[i] && sheet <= s2[i] && row >= r1[i]
+                && row <= r2[i] && column >= c1[i] && column <= c2[i];
+        }
+
+        void permute(Integer[] order) {
+            s1 = permute(s1, order);
+            s2 = permute(s2, order);
+            r1 = permute(r1, order);
+            r2 = permute(r2, order);
+            c1 = permute(c1, order);
+            c2 = permute(c2, order);
+            start = permute(start, order);
+            end = permute(end, order);
+        }
+
+        private int[] permute(int[] a, Integer[] order) {
+            int[] p = new int[a.length];
+            for (int i = 0; i < size; i++)
+                p[i] = a[order[i].intValue()];
+            return p;
+        }
+    }
+
+    private static class Result {
+        int size;
+        int[] values = new int[16];
+
+        void add(int v) {
+            if (size == values.length)
+                values = Arrays.copyOf(values, size * 2);
+            values[size++] = v;
+        }
+    }
+}
@@ -0,0 +1,227 @@
+/* ====================================================================
+   Licensed to the Apache Software Foundation (ASF) under one or more
+   contributor license agreements.  See the NOTICE file distributed with
+   this work for additional information regarding copyright ownership.
+   The ASF licenses this file to You under the Apache License, Version 2.0
+   (the "License"); you may not use this file except in compliance with
+   the License.  You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+==================================================================== */
+package uk.ac.liverpool.spreadsheet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.FormulaEvaluator;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.ss.util.CellReference;
+
+/**
+ * Incremental recalculation of a workbook: after a change of some input
+ * cells, only the formulae depending on them are evaluated again, in
+ * topological order, and the cells whose value changed are returned.
+ *
+ * The dependency graph of the workbook is built once, and one evaluator is
+ * kept between updates: POI invalidates the cached results depending on the
+ * changed cells, and keeps the others. The first update evaluates the
+ * precedents of the formulae it needs; after that the cost of an update is
+ * proportional to the number of formulae it affects.
+ *
+ * The formulae whose precedents are not all known in advance (INDIRECT,
+ * OFFSET, volatile functions...) are evaluated again at every update, with
+ * their dependents. Formulae are not edited through this class: an input
+ * cell holding a formula becomes a value cell, which the graph still lists as
+ * a dependent of its former precedents, and which is then skipped.
+ *
+ * Not thread safe.
+ */
+public class Recalculation {
+
+    /**
+     * The value of a cell: a Double, a String, a Boolean, a Date (for input
+     * only), a Byte error code, or null for a blank cell.
+     */
+    public static class Change {
+        private final CellReference cell;
+        private final Object value;
+
+        /**
+         * @param cell
+         *            the cell, with its sheet name
+         */
+        public Change(CellReference cell, Object value) {
+            if (cell.getSheetName() == null)
+                throw new IllegalArgumentException("no sheet in "
+                        + cell.formatAsString());
+            this.cell = cell;
+            this.value = value;
+        }
+
+        public CellReference getCell() {
+            return cell;
+        }
+
+        public Object getValue() {
+            return value;
+        }
+
+        public String toString() {
+            return cell.formatAsString() + "=" + value;
+        }
+    }
+
+    private final Workbook wb;
+    private final DependencyGraph graph;
+    // in key order, which is cell order
+    private final long[] dynamic;
+    private final FormulaEvaluator evaluator;
+
+    /**
+     * Builds the dependency graph of the workbook. The values in the cells
+     * are taken as up to date.
+     */
+    public Recalculation(Workbook wb) {
+        this.wb = wb;
+        WorkbookDependencies dependencies = new WorkbookDependencies(wb);
+        graph = dependencies.getGraph();
+        dynamic = dependencies.getDynamicFormulae();
+        evaluator = wb.getCreationHelper().createFormulaEvaluator();
+    }
+
+    /**
+     * Sets the new values of the input cells, and evaluates the formulae
+     * depending on them.
+     *
+     * @return the cells whose value changed: the inputs first, in the given
+     *         order, then the formulae in evaluation order
+     */
+    public List<Change> update(Collection<Change> inputs) {
+        List<Change> delta = new ArrayList<Change>();
+        long[] changed = new long[inputs.size() + dynamic.length];
+        int count = 0;
+        for (Change input : inputs) {
+            CellReference ref = input.getCell();
+            int s = wb.getSheetIndex(ref.getSheetName());
+            if (s < 0)
+                throw new IllegalArgumentException("no sheet "
+                        + ref.getSheetName());
+            Cell cell = cell(wb.getSheetAt(s), ref.getRow(), ref.getCol());
+            Object old = value(cell);
+            setValue(cell, input.getValue());
+            evaluator.notifyUpdateCell(cell);
+            Object value = value(cell);
+            if (!equal(old, value)) {
+                delta.add(new Change(ref, value));
+                changed[count++] = DependencyGraph.key(s, ref.getRow(), ref
+                        .getCol());
+            }
+        }
+        if (count == 0 && dynamic.length == 0)
+            return delta;
+
+        // the dynamic formulae and their dependents, in the same order
+        System.arraycopy(dynamic, 0, changed, count, dynamic.length);
+        count += dynamic.length;
+        long[] formulae = graph.transitiveDependents(Arrays.copyOf(changed,
+                count));
+        long[] all = dynamic.length == 0 ? formulae : mergeDynamic(formulae);
+        for (long key : all) {
+            Sheet sheet = wb.getSheetAt(DependencyGraph.sheet(key));
+            Row row = sheet.getRow(DependencyGraph.row(key));
+            Cell cell = row == null ? null : row.getCell(DependencyGraph
+                    .column(key));
+            if (cell == null || cell.getCellType() != Cell.CELL_TYPE_FORMULA)
+                continue;
+            Object old = value(cell);
+            // POI only knows the cached results of the others are stale
+            if (Arrays.binarySearch(dynamic, key) >= 0)
+                evaluator.notifyUpdateCell(cell);
+            evaluator.evaluateFormulaCell(cell);
+            Object value = value(cell);
+            if (!equal(old, value))
+                delta.add(new Change(new CellReference(sheet.getSheetName(),
+                        cell.getRowIndex(), cell.getColumnIndex(), false, false),
+                        value));
+        }
+        return delta;
+    }
+
+    /**
+     * Puts the dynamic formulae that are not among the dependents first, since
+     * nothing in the graph depends on them being evaluated later.
+     */
+    private long[] mergeDynamic(long[] formulae) {
+        long[] sorted = formulae.clone();
+        Arrays.sort(sorted);
+        long[] all = new long[formulae.length + dynamic.length];
+        int count = 0;
+        for (long d : dynamic)
+            if (Arrays.binarySearch(sorted, d) < 0)
+                all[count++] = d;
+        System.arraycopy(formulae, 0, all, count, formulae.length);
+        return Arrays.copyOf(all, count + formulae.length);
+    }
+
+    private static Cell cell(Sheet sheet, int r, int c) {
+        Row row = sheet.getRow(r);
+        if (row == null)
+            row = sheet.createRow(r);
+        Cell cell = row.getCell(c);
+        if (cell == null)
+            cell = row.createCell(c);
+        return cell;
+    }
+
+    private static void setValue(Cell cell, Object value) {
+        // drops the formula of the cell, if any
+        cell.setCellType(Cell.CELL_TYPE_BLANK);
+        if (value instanceof Number)
+            cell.setCellValue(((Number) value).doubleValue());
+        else if (value instanceof Boolean)
+            cell.setCellValue(((Boolean) value).booleanValue());
+        else if (value instanceof Date)
+            cell.setCellValue((Date) value);
+        else if (value instanceof Byte)
+            cell.setCellErrorValue(((Byte) value).byteValue());
+        else if (value != null)
+            cell.setCellValue(value.toString());
+    }
+
+    /**
+     * @return the value of a cell, the cached result for a formula
+     */
+    static Object value(Cell cell) {
+        int type = cell.getCellType();
+        if (type == Cell.CELL_TYPE_FORMULA)
+            type = cell.getCachedFormulaResultType();
+        switch (type) {
+        case Cell.CELL_TYPE_NUMERIC:
+            return Double.valueOf(cell.getNumericCellValue());
+        case Cell.CELL_TYPE_STRING:
+            return cell.getStringCellValue();
+        case Cell.CELL_TYPE_BOOLEAN:
+            return Boolean.valueOf(cell.getBooleanCellValue());
+        case Cell.CELL_TYPE_ERROR:
+            return Byte.valueOf(cell.getErrorCellValue());
+        default:
+            return null;
+        }
+    }
+
+    private static boolean equal(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
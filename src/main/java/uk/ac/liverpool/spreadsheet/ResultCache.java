@@ -0,0 +1,351 @@
+/* ====================================================================
+   Licensed to the Apache Software Foundation (ASF) under one or more
+   contributor license agreements.  See the NOTICE file distributed with
+   this work for additional information regarding copyright ownership.
+   The ASF licenses this file to You under the Apache License, Version 2.0
+   (the "License"); you may not use this file except in compliance with
+   the License.  You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+==================================================================== */
+package uk.ac.liverpool.spreadsheet;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * On disk cache of the analysis and conversion outputs, addressed by the
+ * content of the input file. The key of an entry is a digest of the input
+ * bytes, of {@link ExcelFeatureAnalysis#VERSION} and of the options that
+ * change the output, so a file is only processed again when it, the tools or
+ * the options have changed.
+ *
+ * An entry is a directory holding the output files of one task. The outputs
+ * of a task are all named after the input file, in the same directory: the
+ * entry keeps the suffix of each name, e.g. "_feature.xml" or "0.xml".
+ *
+ * Entries are written in a temporary directory and renamed into place, so
+ * several threads or processes can share the cache: readers never see a
+ * partial entry, and when two writers race the first one wins. When the
+ * cache grows over its size limit, the least recently used entries are
+ * removed.
+ */
+public class ResultCache {
+
+    private static final String TEMP_PREFIX = "tmp-";
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final File directory;
+    private final long maxBytes;
+    // approximate size of the entries, rescanned on eviction
+    private final AtomicLong size = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong storeFailures = new AtomicLong();
+
+    /**
+     * @param directory
+     *            where the entries are kept, created if needed
+     * @param maxBytes
+     *            the size over which the least recently used entries are
+     *            removed
+     */
+    public ResultCache(File directory, long maxBytes) throws IOException {
+        if (maxBytes < 1)
+            throw new IllegalArgumentException("the cache size must be positive");
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("cannot create the cache directory "
+                    + directory);
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        long total = 0;
+        for (Entry e : entries())
+            total += e.bytes;
+        size.set(total);
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * @return the SHA-1 digest of the file content, in hexadecimal
+     */
+    public static String digest(File f) throws IOException {
+        MessageDigest md = sha1();
+        byte[] buffer = new byte[1 << 16];
+        InputStream in = new FileInputStream(f);
+        try {
+            int n;
+            while ((n = in.read(buffer)) > 0)
+                md.update(buffer, 0, n);
+        } finally {
+            in.close();
+        }
+        return hex(md.digest());
+    }
+
+    /**
+     * @param digest
+     *            the digest of the input file, see {@link #digest(File)}
+     * @param options
+     *            the task and every option that changes its output
+     * @return the key of the entry for the given input, tools version and
+     *         options
+     */
+    public static String key(String digest, String... options) {
+        MessageDigest md = sha1();
+        update(md, digest);
+        update(md, ExcelFeatureAnalysis.VERSION);
+        for (String o : options)
+            update(md, o);
+        return hex(md.digest());
+    }
+
+    /**
+     * Copies the files of an entry to the given directory, each named prefix
+     * followed by its suffix.
+     *
+     * @return false if there is no such entry
+     */
+    public boolean get(String key, File target, String prefix) {
+        File entry = entry(key);
+        File[] files = entry.listFiles();
+        if (files == null) {
+            misses.incrementAndGet();
+            return false;
+        }
+        try {
+            for (File f : files)
+                Files.copy(f.toPath(), new File(target, prefix + f.getName())
+                .toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException x) {
+            // evicted while being read
+            misses.incrementAndGet();
+            return false;
+        }
+        entry.setLastModified(System.currentTimeMillis());
+        hits.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Stores the files named prefix followed by each suffix, found in the
+     * given directory, as an entry. Does nothing if the entry exists already.
+     * The failures are counted, see {@link #getStoreFailureCount()}.
+     */
+    public void put(String key, File source, String prefix,
+            Collection<String> suffixes) throws IOException {
+        try {
+            store(key, source, prefix, suffixes);
+        } catch (IOException x) {
+            storeFailures.incrementAndGet();
+            throw x;
+        }
+    }
+
+    private void store(String key, File source, String prefix,
+            Collection<String> suffixes) throws IOException {
+        File entry = entry(key);
+        if (entry.isDirectory())
+            return;
+        File temp = new File(directory, TEMP_PREFIX + UUID.randomUUID());
+        if (!temp.mkdir())
+            throw new IOException("cannot create " + temp);
+        long bytes = 0;
+        try {
+            for (String suffix : suffixes) {
+                File f = new File(source, prefix + suffix);
+                Files.copy(f.toPath(), new File(temp, suffix).toPath());
+                bytes += f.length();
+            }
+            entry.getParentFile().mkdirs();
+            if (!moveAtomically(temp, entry))
+                return;
+        } finally {
+            if (temp.exists())
+                delete(temp);
+        }
+        if (size.addAndGet(bytes) > maxBytes)
+            evict();
+    }
+
+    private static boolean moveAtomically(File from, File to)
+    throws IOException {
+        try {
+            Files.move(from.toPath(), to.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        } catch (FileAlreadyExistsException x) {
+            return false;
+        } catch (IOException x) {
+            // a non empty directory cannot be replaced: another writer won
+            if (to.isDirectory())
+                return false;
+            throw x;
+        }
+    }
+
+    /**
+     * Removes the least recently used entries until the cache is under its
+     * size limit.
+     */
+    private synchronized void evict() {
+        if (size.get() <= maxBytes)
+            return;
+        List<Entry> entries = entries();
+        long total = 0;
+        for (Entry e : entries)
+            total += e.bytes;
+        Collections.sort(entries, new Comparator<Entry>() {
+            public int compare(Entry a, Entry b) {
+                return a.lastUsed < b.lastUsed ? -1
+                        : (a.lastUsed == b.lastUsed ? 0 : 1);
+            }
+        });
+        for (Entry e : entries) {
+            if (total <= maxBytes)
+                break;
+            // renamed first, so that readers miss it rather than read half
+            File doomed = new File(directory, TEMP_PREFIX + UUID.randomUUID());
+            if (e.directory.renameTo(doomed)) {
+                delete(doomed);
+                evictions.incrementAndGet();
+            }
+            total -= e.bytes;
+        }
+        size.set(total);
+    }
+
+    private File entry(String key) {
+        return new File(new File(directory, key.substring(0, 2)), key);
+    }
+
+    private List<Entry> entries() {
+        List<Entry> entries = new ArrayList<Entry>();
+        File[] buckets = directory.listFiles();
+        if (buckets == null)
+            return entries;
+        for (File bucket : buckets) {
+            if (bucket.getName().startsWith(TEMP_PREFIX))
+                continue;
+            File[] dirs = bucket.listFiles();
+            if (dirs == null)
+                continue;
+            for (File d : dirs) {
+                File[] files = d.listFiles();
+                if (files == null)
+                    continue;
+                long bytes = 0;
+                for (File f : files)
+                    bytes += f.length();
+                entries.add(new Entry(d, bytes, d.lastModified()));
+            }
+        }
+        return entries;
+    }
+
+    private static void delete(File f) {
+        File[] files = f.listFiles();
+        if (files != null)
+            for (File c : files)
+                delete(c);
+        f.delete();
+    }
+
+    private static MessageDigest sha1() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException x) {
+            // every Java platform has SHA-1
+            throw new IllegalStateException(x);
+        }
+    }
+
+    private static void update(MessageDigest md, String s) {
+        try {
+            md.update(s.getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException x) {
+            throw new IllegalStateException(x);
+        }
+        md.update((byte) 0);
+    }
+
+    private static String hex(byte[] bytes) {
+        char[] c = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            c[2 * i] = HEX[(bytes[i] >> 4) & 0xf];
+            c[2 * i + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(c);
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    /** @return the number of entries that could not be stored */
+    public long getStoreFailureCount() {
+        return storeFailures.get();
+    }
+
+    /** @return the fraction of the lookups that found their entry */
+    public double getHitRate() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    public String toString() {
+        return "Result cache " + directory + ": " + hits.get() + " hits, "
+        + misses.get() + " misses (" + Math.round(getHitRate() * 100)
+        + "% hit rate), " + evictions.get() + " evictions, "
+        + storeFailures.get() + " failed stores, " + size.get() + " bytes";
+    }
+
+    private static class Entry {
+        final File directory;
+        final long bytes;
+        final long lastUsed;
+
+        Entry(File directory, long bytes, long lastUsed) {
+            this.directory = directory;
+            this.bytes = bytes;
+            this.lastUsed = lastUsed;
+        }
+    }
+}
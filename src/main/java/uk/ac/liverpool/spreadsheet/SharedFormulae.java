@@ -0,0 +1,262 @@
+/* ====================================================================
+   Licensed to the Apache Software Foundation (ASF) under one or more
+   contributor license agreements.  See the NOTICE file distributed with
+   this work for additional information regarding copyright ownership.
+   The ASF licenses this file to You under the Apache License, Version 2.0
+   (the "License"); you may not use this file except in compliance with
+   the License.  You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+==================================================================== */
+package uk.ac.liverpool.spreadsheet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.poi.ss.util.CellReference;
+
+/**
+ * The runs of equivalent formulae of a sheet, written once each by the
+ * compact output of {@link ToXML} as a SharedFormula element:
+ *
+ * <pre>
+ * &lt;SharedFormula id="0" range=".B2:.B9" cellFormula="A2*2" formula="[.B2]=[.A2]*2"/&gt;
+ * </pre>
+ *
+ * A run is a range of adjacent formula cells, in one column or else in one
+ * row, whose formulae only differ by the position of their relative
+ * references: the cells of a copied formula, or of an XSSF shared formula.
+ * The definition holds the formulae of the first cell of the range; those of
+ * another cell are given by {@link #shift(String, int, int)}, with the offset
+ * of the cell from the first one. Every cell is only added to a run if this
+ * gives back its own formulae exactly.
+ *
+ * The cells are added during the first pass over a sheet, in row order, and
+ * looked up by their node in the dependency graph of the sheet.
+ */
+public class SharedFormulae {
+
+    private static final int MAX_ROW = 1048576;
+    private static final int MAX_COLUMN = 16384;
+
+    /**
+     * A quoted string or sheet name, skipped, or a cell reference: an optional
+     * "$", 1 to 3 column letters, an optional "$" and the row number, not part
+     * of a longer name or number, and not followed by "(" (a function name
+     * like LOG10), "!" or "." (a sheet name).
+     */
+    private static final Pattern REFERENCE = Pattern.compile(
+            "\"(?:[^\"]|\"\")*\"|'(?:[^']|'')*'"
+            + "|(?<![A-Za-z0-9_$])(\\$?)([A-Z]{1,3})(\\$?)([1-9][0-9]{0,6})(?![A-Za-z0-9_(!.])");
+
+    private static class Run {
+        final int index;
+        final int node;
+        final int firstRow;
+        final int firstColumn;
+        int lastRow;
+        int lastColumn;
+        final String cellFormula;
+        final String formula;
+        // joined to the run of its left neighbour
+        boolean joined;
+        int id = -1;
+
+        Run(int index, int node, int row, int column, String cellFormula,
+                String formula) {
+            this.index = index;
+            this.node = node;
+            firstRow = lastRow = row;
+            firstColumn = lastColumn = column;
+            this.cellFormula = cellFormula;
+            this.formula = formula;
+        }
+
+        boolean single() {
+            return firstRow == lastRow && firstColumn == lastColumn;
+        }
+
+        /** @return true if the formulae of a cell are those of the run */
+        boolean matches(int row, int column, String cellFormula, String formula) {
+            int rows = row - firstRow;
+            int columns = column - firstColumn;
+            return formula.equals(shift(this.formula, rows, columns))
+            && cellFormula.equals(shift(this.cellFormula, rows, columns));
+        }
+    }
+
+    // in the order of their first cell
+    private final List<Run> runs = new ArrayList<Run>();
+    // the run of each node, -1 for a cell that was not added
+    private int[] runOf = new int[16];
+    // the last run of each column
+    private int[] columnRun = new int[16];
+    // the runs of more than one cell, by id
+    private final List<Run> shared = new ArrayList<Run>();
+
+    SharedFormulae() {
+        Arrays.fill(runOf, -1);
+        Arrays.fill(columnRun, -1);
+    }
+
+    /**
+     * Adds a formula cell, after those of the previous rows and of the
+     * previous columns of its row.
+     *
+     * @param node
+     *            the node of the cell in the dependency graph
+     * @param cellFormula
+     *            the formula, as written in the cellFormula attribute
+     * @param formula
+     *            the converted formula, as written in the formula attribute
+     */
+    void add(int node, int row, int column, String cellFormula, String formula) {
+        if (node >= runOf.length) {
+            int n = runOf.length;
+            runOf = Arrays.copyOf(runOf, Math.max(node + 1, n * 2));
+            Arrays.fill(runOf, n, runOf.length, -1);
+        }
+        if (column >= columnRun.length) {
+            int n = columnRun.length;
+            columnRun = Arrays.copyOf(columnRun, Math.max(column + 1, n * 2));
+            Arrays.fill(columnRun, n, columnRun.length, -1);
+        }
+        int r = columnRun[column];
+        if (r >= 0) {
+            Run above = runs.get(r);
+            if (above.lastRow == row - 1
+                    && above.matches(row, column, cellFormula, formula)) {
+                above.lastRow = row;
+                runOf[node] = r;
+                return;
+            }
+        }
+        Run run = new Run(runs.size(), node, row, column, cellFormula, formula);
+        runs.add(run);
+        runOf[node] = run.index;
+        columnRun[column] = run.index;
+    }
+
+    /**
+     * Joins the cells left alone in their column into runs along their row,
+     * and numbers the runs of more than one cell. Called once, after the last
+     * cell.
+     */
+    void close() {
+        Run current = null;
+        for (Run run : runs) {
+            if (!run.single())
+                continue;
+            if (current != null && current.firstRow == run.firstRow
+                    && current.lastColumn == run.firstColumn - 1
+                    && current.matches(run.firstRow, run.firstColumn,
+                            run.cellFormula, run.formula)) {
+                current.lastColumn = run.firstColumn;
+                run.joined = true;
+                runOf[run.node] = current.index;
+            } else {
+                current = run;
+            }
+        }
+        for (Run run : runs) {
+            if (!run.joined && !run.single()) {
+                run.id = shared.size();
+                shared.add(run);
+            }
+        }
+    }
+
+    /** @return the number of shared definitions */
+    int size() {
+        return shared.size();
+    }
+
+    /**
+     * @return the definition shared by a formula cell, -1 if the cell is
+     *         alone or was not added
+     */
+    int idOf(int node) {
+        if (node < 0 || node >= runOf.length || runOf[node] < 0)
+            return -1;
+        return runs.get(runOf[node]).id;
+    }
+
+    /** @return the range of a definition, like .B2:.B9 */
+    String getRange(int id) {
+        Run run = shared.get(id);
+        return "." + new CellReference(run.firstRow, run.firstColumn)
+        .formatAsString() + ":."
+        + new CellReference(run.lastRow, run.lastColumn).formatAsString();
+    }
+
+    /** @return the formula of the first cell of a definition */
+    String getCellFormula(int id) {
+        return shared.get(id).cellFormula;
+    }
+
+    /** @return the converted formula of the first cell of a definition */
+    String getFormula(int id) {
+        return shared.get(id).formula;
+    }
+
+    /**
+     * Moves the relative cell references of a formula, in the syntax of
+     * either the cellFormula or the formula attribute. Outside quoted strings
+     * and sheet names, every cell reference like A1, $A1, A$1 or $A$1 has its
+     * column moved by the given number of columns unless it is preceded by
+     * "$", and its row by the given number of rows unless it is preceded by
+     * "$". Whole rows or columns, names and the rest of the text are left as
+     * they are.
+     *
+     * @return the moved formula, null if a reference would leave the sheet
+     */
+    public static String shift(String formula, int rows, int columns) {
+        if (rows == 0 && columns == 0)
+            return formula;
+        Matcher m = REFERENCE.matcher(formula);
+        StringBuilder buf = null;
+        int last = 0;
+        while (m.find()) {
+            if (m.group(2) == null)
+                continue;
+            int column = 0;
+            String letters = m.group(2);
+            for (int i = 0; i < letters.length(); i++)
+                column = column * 26 + letters.charAt(i) - 'A' + 1;
+            int row = Integer.parseInt(m.group(4));
+            // like XFD1 or A1048576, the last cell of a sheet
+            if (column > MAX_COLUMN || row > MAX_ROW)
+                continue;
+            boolean absoluteColumn = m.group(1).length() > 0;
+            boolean absoluteRow = m.group(3).length() > 0;
+            if (!absoluteColumn)
+                column += columns;
+            if (!absoluteRow)
+                row += rows;
+            if (column < 1 || column > MAX_COLUMN || row < 1 || row > MAX_ROW)
+                return null;
+            if (buf == null)
+                buf = new StringBuilder(formula.length() + 8);
+            buf.append(formula, last, m.start());
+            if (absoluteColumn)
+                buf.append('$');
+            buf.append(CellReference.convertNumToColString(column - 1));
+            if (absoluteRow)
+                buf.append('$');
+            buf.append(row);
+            last = m.end();
+        }
+        if (buf == null)
+            return formula;
+        return buf.append(formula, last, formula.length()).toString();
+    }
+}
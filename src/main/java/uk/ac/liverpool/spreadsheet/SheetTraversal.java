@@ -0,0 +1,91 @@
+/* ====================================================================
+   Licensed to the Apache Software Foundation (ASF) under one or more
+   contributor license agreements.  See the NOTICE file distributed with
+   this work for additional information regarding copyright ownership.
+   The ASF licenses this file to You under the Apache License, Version 2.0
+   (the "License"); you may not use this file except in compliance with
+   the License.  You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+==================================================================== */
+package uk.ac.liverpool.spreadsheet;
+
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+
+/**
+ * Walks the rows and cells of a sheet once, feeding every {@link SheetVisitor}
+ * in turn.
+ */
+public class SheetTraversal {
+
+    private SheetTraversal() {
+    }
+
+    /**
+     * Visits every row and every cell of the sheet.
+     *
+     * @param sheetIndex
+     *            the index of the sheet in its workbook
+     */
+    public static void traverse(Sheet sheet, int sheetIndex,
+            SheetVisitor... visitors) {
+        for (SheetVisitor v : visitors)
+            v.startSheet(sheet, sheetIndex);
+        for (Row row : sheet) {
+            for (SheetVisitor v : visitors)
+                v.startRow(row);
+            for (Cell cell : row)
+                for (SheetVisitor v : visitors)
+                    v.cell(cell);
+            for (SheetVisitor v : visitors)
+                v.endRow(row);
+        }
+        for (SheetVisitor v : visitors)
+            v.endSheet(sheet);
+    }
+
+    /**
+     * Finds the columns used by a sheet, from the first and last cell numbers
+     * of each row. The DIMENSION record (or &lt;dimension ref&gt; element) is
+     * not used: POI does not maintain the XML one and does not expose the
+     * binary one.
+     */
+    public static class ColumnBounds extends SheetVisitor {
+        private boolean rows;
+        private int firstColumn;
+        private int endColumn;
+
+        public void startSheet(Sheet sheet, int sheetIndex) {
+            rows = false;
+            firstColumn = Integer.MAX_VALUE;
+            endColumn = 0;
+        }
+
+        public void startRow(Row row) {
+            rows = true;
+            short firstCell = row.getFirstCellNum();
+            if (firstCell >= 0) {
+                firstColumn = Math.min(firstColumn, firstCell);
+                endColumn = Math.max(endColumn, row.getLastCellNum());
+            }
+        }
+
+        /** @return the first column used, 0 for a sheet without rows */
+        public int getFirstColumn() {
+            return rows ? firstColumn : 0;
+        }
+
+        /** @return the column after the last one used */
+        public int getEndColumn() {
+            return endColumn;
+        }
+    }
+}
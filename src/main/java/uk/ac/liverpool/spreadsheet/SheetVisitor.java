@@ -0,0 +1,50 @@
+/* ====================================================================
+   Licensed to the Apache Software Foundation (ASF) under one or more
+   contributor license agreements.  See the NOTICE file distributed with
+   this work for additional information regarding copyright ownership.
+   The ASF licenses this file to You under the Apache License, Version 2.0
+   (the "License"); you may not use this file except in compliance with
+   the License.  You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+==================================================================== */
+package uk.ac.liverpool.spreadsheet;
+
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+
+/**
+ * Receives the rows and cells of a sheet from a {@link SheetTraversal}. Several
+ * visitors (column bounds, feature flags, formula parsing, output) can share
+ * one traversal, so that each cell is read once. All the methods do nothing by
+ * default.
+ */
+public abstract class SheetVisitor {
+
+    /** Called before the first row of the sheet. */
+    public void startSheet(Sheet sheet, int sheetIndex) {
+    }
+
+    /** Called for every row present in the sheet, in row order. */
+    public void startRow(Row row) {
+    }
+
+    /** Called for every cell present in the row, in column order. */
+    public void cell(Cell cell) {
+    }
+
+    /** Called after the last cell of the row. */
+    public void endRow(Row row) {
+    }
+
+    /** Called after the last row of the sheet. */
+    public void endSheet(Sheet sheet) {
+    }
+}
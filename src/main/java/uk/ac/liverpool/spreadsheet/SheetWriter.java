@@ -0,0 +1,488 @@
+/* ====================================================================
+   Licensed to the Apache Software Foundation (ASF) under one or more
+   contributor license agreements.  See the NOTICE file distributed with
+   this work for additional information regarding copyright ownership.
+   The ASF licenses this file to You under the Apache License, Version 2.0
+   (the "License"); you may not use this file except in compliance with
+   the License.  You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+==================================================================== */
+package uk.ac.liverpool.spreadsheet;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.poi.ss.util.CellReference;
+
+/**
+ * Writes the converted rows of a sheet, as they are traversed: the XML
+ * document of {@link ToXML}, or JSON lines.
+ *
+ * The writer of a sheet holds what the cells refer to: the dependency graph
+ * of the sheet, the converted formulae and, in compact mode, the shared
+ * formulae.
+ *
+ * The missing cells of a row, between the column bounds of the sheet, are
+ * given to {@link #missing(int, int, int)}. By default each of them is
+ * written like a cell with the value "0". In sparse mode only those in the
+ * dependency graph, the cells a formula refers to one by one, are written;
+ * the others are left out, in runs, so that the output grows with the
+ * number of cells instead of the width of the sheet.
+ */
+abstract class SheetWriter {
+
+    final XMLOutput out;
+    final int sheet;
+    final DependencyGraph dependencies;
+    final List<String> formulaText;
+    // null unless in compact mode
+    final SharedFormulae shared;
+    // in sparse mode, the cells of the sheet in the graph, in row order;
+    // else null
+    private final long[] referenced;
+    private int nextReferenced;
+
+    /**
+     * @param sparse
+     *            leaves out the missing cells no formula refers to
+     */
+    SheetWriter(XMLOutput out, int sheet, DependencyGraph dependencies,
+            List<String> formulaText, SharedFormulae shared, boolean sparse) {
+        this.out = out;
+        this.sheet = sheet;
+        this.dependencies = dependencies;
+        this.formulaText = formulaText;
+        this.shared = shared;
+        referenced = sparse ? referencedCells(dependencies, sheet) : null;
+    }
+
+    /**
+     * @return the keys of the cells of a sheet in the graph, sorted, that
+     *         is by row and then by column
+     */
+    private static long[] referencedCells(DependencyGraph dependencies,
+            int sheet) {
+        if (dependencies == null)
+            return new long[0];
+        long[] keys = new long[dependencies.size()];
+        int n = 0;
+        for (int i = 0; i < keys.length; i++) {
+            long key = dependencies.cellAt(i);
+            if (DependencyGraph.sheet(key) == sheet)
+                keys[n++] = key;
+        }
+        keys = Arrays.copyOf(keys, n);
+        Arrays.sort(keys);
+        return keys;
+    }
+
+    /**
+     * Writes the missing cells of a row from a column up to another one
+     * excluded, or in sparse mode the referenced ones among them and the
+     * runs of the others as {@link #blank(int, int, int)}. Called in row
+     * and column order.
+     */
+    void missing(int row, int from, int to) {
+        if (from >= to)
+            return;
+        if (referenced == null) {
+            for (int i = from; i < to; i++)
+                cell(row, i, null, "0");
+            return;
+        }
+        long start = DependencyGraph.key(sheet, row, from);
+        long end = DependencyGraph.key(sheet, row, to);
+        while (nextReferenced < referenced.length
+                && referenced[nextReferenced] < start)
+            nextReferenced++;
+        int next = from;
+        while (nextReferenced < referenced.length
+                && referenced[nextReferenced] < end) {
+            int column = DependencyGraph.column(referenced[nextReferenced++]);
+            if (column > next)
+                blank(row, next, column - next);
+            cell(row, column, null, "0");
+            next = column + 1;
+        }
+        if (to > next)
+            blank(row, next, to - next);
+    }
+
+    /**
+     * @param endColumn
+     *            the column after the last one
+     */
+    abstract void startSheet(String name, int firstColumn, int endColumn);
+
+    /**
+     * @param row
+     *            the row index, from 0
+     */
+    abstract void startRow(int row);
+
+    /**
+     * Writes a cell, or a missing cell between the column bounds.
+     *
+     * @param cellFormula
+     *            the formula of a formula cell, null for the other cells
+     * @param content
+     *            the formatted value
+     */
+    abstract void cell(int row, int column, String cellFormula, String content);
+
+    /**
+     * Writes a run of missing cells left out in sparse mode.
+     *
+     * @param count
+     *            the number of cells, from the column given
+     */
+    abstract void blank(int row, int column, int count);
+
+    abstract void endRow();
+
+    abstract void endSheet();
+
+    /**
+     * Closes what the writer opened itself, after {@link #endSheet()} or
+     * after a failure; the output given to the constructor is left to the
+     * caller.
+     */
+    void close() throws IOException {
+    }
+
+    /**
+     * The &lt;spreadsheets&gt;/&lt;Table&gt;/&lt;TableRow&gt;/&lt;TableCell&gt;
+     * document, one per file. In sparse mode a run of cells left out is
+     * written in place as
+     *
+     * <pre>
+     * &lt;BlankCells cellID=".C1" count="3"/&gt;
+     * </pre>
+     *
+     * with the first cell of the run and its length, so that the cells of the
+     * row keep their column.
+     */
+    static class XML extends SheetWriter {
+
+        XML(XMLOutput out, int sheet, DependencyGraph dependencies,
+                List<String> formulaText, SharedFormulae shared,
+                boolean sparse) {
+            super(out, sheet, dependencies, formulaText, shared, sparse);
+        }
+
+        void startSheet(String name, int firstColumn, int endColumn) {
+            ToXML.startDocument(out, name, dependencies);
+            ToXML.printColumnHeads(out, firstColumn, endColumn);
+            if (shared != null)
+                ToXML.printSharedFormulae(out, shared);
+        }
+
+        void startRow(int row) {
+            ToXML.printRowStart(out, row + 1);
+        }
+
+        void cell(int row, int column, String cellFormula, String content) {
+            ToXML.printCell(out, dependencies, formulaText, shared, sheet,
+                    row, column, cellFormula, content);
+        }
+
+        void blank(int row, int column, int count) {
+            ToXML.printBlankCells(out, row, column, count);
+        }
+
+        void endRow() {
+            ToXML.printRowEnd(out);
+        }
+
+        void endSheet() {
+            ToXML.endDocument(out);
+        }
+    }
+
+    /**
+     * JSON lines: a header object for the sheet, then one object per row,
+     * each on a line of its own, written as the rows are traversed.
+     *
+     * <pre>
+     * {"sheet":"Sheet1","columnHeaders":["A","B"],"circularReferences":"A1 B1"}
+     * {"row":1,"cells":[{"cellID":".A1","formula":"[.B1]=[.A1]*2","value":"3"},
+     *   {"cellID":".B1","readOnly":true,"cellFormula":"A1*2","value":"6"}]}
+     * </pre>
+     *
+     * The fields have the names and the values of the XML attributes:
+     * circularReferences only if there is a cycle, and in compact mode a
+     * sharedFormulae array in the header, of objects with the id, range,
+     * cellFormula and formula attributes of the SharedFormula elements. The
+     * header of the next sheet follows the last row, so that the sheets of a
+     * workbook can be written to one stream. Every cell has its cellID, so
+     * the cells left out in sparse mode are simply not written.
+     */
+    static class JSON extends SheetWriter {
+        private boolean firstCell;
+
+        JSON(XMLOutput out, int sheet, DependencyGraph dependencies,
+                List<String> formulaText, SharedFormulae shared,
+                boolean sparse) {
+            super(out, sheet, dependencies, formulaText, shared, sparse);
+        }
+
+        void startSheet(String name, int firstColumn, int endColumn) {
+            out.write("{\"sheet\":").quoted(name);
+            out.write(",\"columnHeaders\":[");
+            for (int i = firstColumn; i < endColumn; i++) {
+                if (i > firstColumn)
+                    out.write(',');
+                out.quoted(CellReference.convertNumToColString(i));
+            }
+            out.write(']');
+            String cycles = ToXML.cycles(dependencies);
+            if (cycles != null)
+                out.write(",\"circularReferences\":").quoted(cycles);
+            if (shared != null && shared.size() > 0) {
+                out.write(",\"sharedFormulae\":[");
+                for (int i = 0; i < shared.size(); i++) {
+                    if (i > 0)
+                        out.write(',');
+                    out.write("{\"id\":").write(i).write(",\"range\":")
+                    .quoted(shared.getRange(i)).write(",\"cellFormula\":")
+                    .quoted(shared.getCellFormula(i)).write(",\"formula\":")
+                    .quoted(shared.getFormula(i)).write('}');
+                }
+                out.write(']');
+            }
+            out.write('}').write('\n');
+        }
+
+        void startRow(int row) {
+            out.write("{\"row\":").write(row + 1).write(",\"cells\":[");
+            firstCell = true;
+        }
+
+        void cell(int row, int column, String cellFormula, String content) {
+            if (!firstCell)
+                out.write(',');
+            firstCell = false;
+            out.write("{\"cellID\":\".").write(
+                    CellReference.convertNumToColString(column)).write(row + 1)
+                    .write('"');
+            long key = DependencyGraph.key(sheet, row, column);
+            int id = shared == null || cellFormula == null ? -1 : shared
+                    .idOf(dependencies.indexOf(key));
+            if (id >= 0) {
+                out.write(",\"readOnly\":true,\"sharedFormula\":").write(id);
+            } else if (cellFormula != null) {
+                out.write(",\"readOnly\":true,\"cellFormula\":").quoted(
+                        cellFormula);
+            } else {
+                ToXML.printDependentFormulae(out, dependencies, key,
+                        formulaText, shared, true);
+            }
+            out.write(",\"value\":").quoted(content).write('}');
+        }
+
+        void blank(int row, int column, int count) {
+        }
+
+        void endRow() {
+            out.write("]}").write('\n');
+        }
+
+        void endSheet() {
+        }
+    }
+
+    /**
+     * Splits a sheet into blocks of a fixed number of rows, each written by
+     * the XML or JSON writer as a document of its own and compressed with
+     * gzip. Block b holds the rows from b * rowsPerBlock to (b + 1) *
+     * rowsPerBlock - 1, numbered from 0, and is only written if one of them
+     * is. Every block starts with the header of the sheet, so that it can be
+     * read or transformed alone, and one block can be written again without
+     * the others.
+     *
+     * {@link #close()} then writes the index of the blocks:
+     *
+     * <pre>
+     * &lt;SheetBlocks name="Sheet1" rowsPerBlock="1000"&gt;
+     *   &lt;Block firstRow="1" lastRow="1000" rows="998" file="in0.0.xml.gz" size="48211"/&gt;
+     * &lt;/SheetBlocks&gt;
+     * </pre>
+     *
+     * with the rows of each block numbered from 1, the number of rows
+     * written, the name of the file, in the directory of the index, and its
+     * size in bytes.
+     */
+    static class Blocks extends SheetWriter {
+        private final String indexFilename;
+        private final String blockPrefix;
+        private final boolean json;
+        private final int rowsPerBlock;
+        private String name;
+        private int firstColumn;
+        private int endColumn;
+        // the block being written, null if it could not be opened
+        private int blockNumber = -1;
+        private SheetWriter block;
+        private OutputStream blockFile;
+        private XMLOutput blockOut;
+        private int blockRows;
+        // block number, rows and size of each block written
+        private final List<long[]> written = new ArrayList<long[]>();
+        private boolean ended;
+        // the first I/O error, thrown by close()
+        private IOException error;
+
+        /**
+         * @param indexFilename
+         *            the index of the blocks
+         * @param blockPrefix
+         *            the name of the block files, before the block number
+         */
+        Blocks(String indexFilename, String blockPrefix, boolean json,
+                int rowsPerBlock, int sheet, DependencyGraph dependencies,
+                List<String> formulaText, SharedFormulae shared,
+                boolean sparse) {
+            super(null, sheet, dependencies, formulaText, shared, sparse);
+            this.indexFilename = indexFilename;
+            this.blockPrefix = blockPrefix;
+            this.json = json;
+            this.rowsPerBlock = rowsPerBlock;
+        }
+
+        void startSheet(String name, int firstColumn, int endColumn) {
+            this.name = name;
+            this.firstColumn = firstColumn;
+            this.endColumn = endColumn;
+        }
+
+        void startRow(int row) {
+            int b = row / rowsPerBlock;
+            if (b != blockNumber) {
+                endBlock();
+                startBlock(b);
+            }
+            blockRows++;
+            if (block != null)
+                block.startRow(row);
+        }
+
+        void cell(int row, int column, String cellFormula, String content) {
+            if (block != null)
+                block.cell(row, column, cellFormula, content);
+        }
+
+        void blank(int row, int column, int count) {
+            if (block != null)
+                block.blank(row, column, count);
+        }
+
+        void endRow() {
+            if (block != null)
+                block.endRow();
+        }
+
+        void endSheet() {
+            endBlock();
+            ended = true;
+        }
+
+        /** @return the blocks written */
+        List<File> getFiles() {
+            List<File> files = new ArrayList<File>();
+            for (long[] b : written)
+                files.add(new File(blockFilename((int) b[0])));
+            return files;
+        }
+
+        private String blockFilename(int b) {
+            return blockPrefix + "." + b + (json ? ToXML.JSON_SUFFIX : ".xml")
+            + ".gz";
+        }
+
+        private void startBlock(int b) {
+            blockNumber = b;
+            blockRows = 0;
+            try {
+                blockFile = new GZIPOutputStream(new FileOutputStream(
+                        blockFilename(b)));
+            } catch (IOException x) {
+                if (error == null)
+                    error = x;
+                return;
+            }
+            blockOut = new XMLOutput(blockFile);
+            if (json)
+                block = new JSON(blockOut, sheet, dependencies, formulaText,
+                        shared, false);
+            else
+                block = new XML(blockOut, sheet, dependencies, formulaText,
+                        shared, false);
+            block.startSheet(name, firstColumn, endColumn);
+        }
+
+        private void endBlock() {
+            if (block == null)
+                return;
+            block.endSheet();
+            block = null;
+            try {
+                try {
+                    blockOut.close();
+                } finally {
+                    blockFile.close();
+                }
+                written.add(new long[] { blockNumber, blockRows,
+                        new File(blockFilename(blockNumber)).length() });
+            } catch (IOException x) {
+                if (error == null)
+                    error = x;
+            }
+        }
+
+        /**
+         * Closes the last block and, if the sheet was written without error,
+         * writes the index.
+         */
+        void close() throws IOException {
+            endBlock();
+            if (error != null)
+                throw error;
+            if (!ended)
+                return;
+            XMLOutput index = new XMLOutput(indexFilename);
+            try {
+                index.write("<?xml version='1.0' encoding='UTF-8'?>")
+                .newLine();
+                index.write("<SheetBlocks name=\"").escaped(name).write(
+                        "\" rowsPerBlock=\"").write(rowsPerBlock).write(
+                        "\">").newLine();
+                for (long[] b : written) {
+                    int first = (int) b[0] * rowsPerBlock;
+                    index.write("  <Block firstRow=\"").write(first + 1)
+                    .write("\" lastRow=\"").write(first + rowsPerBlock)
+                    .write("\" rows=\"").write((int) b[1])
+                    .write("\" file=\"").escaped(
+                            new File(blockFilename((int) b[0])).getName())
+                    .write("\" size=\"").write(String.valueOf(b[2]))
+                    .write("\"/>").newLine();
+                }
+                index.write("</SheetBlocks>").newLine();
+            } finally {
+                index.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,200 @@
+/* ====================================================================
+   Licensed to the Apache Software Foundation (ASF) under one or more
+   contributor license agreements.  See the NOTICE file distributed with
+   this work for additional information regarding copyright ownership.
+   The ASF licenses this file to You under the Apache License, Version 2.0
+   (the "License"); you may not use this file except in compliance with
+   the License.  You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+==================================================================== */
+package uk.ac.liverpool.spreadsheet;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.apache.poi.ss.SpreadsheetVersion;
+import org.apache.poi.ss.formula.EvaluationName;
+import org.apache.poi.ss.formula.EvaluationWorkbook.ExternalSheet;
+import org.apache.poi.ss.formula.FormulaParser;
+import org.apache.poi.ss.formula.FormulaParsingWorkbook;
+import org.apache.poi.ss.formula.FormulaRenderingWorkbook;
+import org.apache.poi.ss.formula.FormulaType;
+import org.apache.poi.ss.formula.ptg.NamePtg;
+import org.apache.poi.ss.formula.ptg.NameXPtg;
+import org.apache.poi.ss.formula.ptg.Ptg;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Minimal parsing and rendering workbook for formulae read with the XSSF event
+ * model. It only knows the sheet names and the defined names found in
+ * workbook.xml, which is all the formula parser needs to resolve the
+ * references used by the dependency analysis.
+ *
+ * Mirrors the behaviour of XSSFEvaluationWorkbook for the parts it supports.
+ */
+class StreamingEvaluationWorkbook implements FormulaParsingWorkbook,
+FormulaRenderingWorkbook {
+
+    private final List<String> sheetNames = new ArrayList<String>();
+    private final List<DefinedName> names = new ArrayList<DefinedName>();
+
+    /**
+     * Reads the sheet and defined names from the workbook part.
+     *
+     * @param workbookData the workbook.xml stream, closed on return
+     */
+    static StreamingEvaluationWorkbook read(InputStream workbookData)
+    throws IOException, SAXException {
+        final StreamingEvaluationWorkbook wb = new StreamingEvaluationWorkbook();
+        try {
+            SAXParserFactory f = SAXParserFactory.newInstance();
+            f.setNamespaceAware(true);
+            f.newSAXParser().parse(workbookData, new DefaultHandler() {
+                private DefinedName current;
+                private StringBuilder text = new StringBuilder();
+
+                public void startElement(String uri, String localName,
+                        String qName, Attributes a) {
+                    if ("sheet".equals(localName)) {
+                        wb.sheetNames.add(a.getValue("name"));
+                    } else if ("definedName".equals(localName)) {
+                        String scope = a.getValue("localSheetId");
+                        current = new DefinedName(wb, wb.names.size(),
+                                a.getValue("name"), scope == null ? -1
+                                        : Integer.parseInt(scope));
+                        text.setLength(0);
+                    }
+                }
+
+                public void characters(char[] ch, int start, int length) {
+                    if (current != null)
+                        text.append(ch, start, length);
+                }
+
+                public void endElement(String uri, String localName,
+                        String qName) {
+                    if ("definedName".equals(localName) && current != null) {
+                        current.definition = text.toString();
+                        wb.names.add(current);
+                        current = null;
+                    }
+                }
+            });
+        } catch (ParserConfigurationException e) {
+            throw new IOException(e.getMessage());
+        } finally {
+            workbookData.close();
+        }
+        return wb;
+    }
+
+    private StreamingEvaluationWorkbook() {
+    }
+
+    /** @return the sheet names in workbook order */
+    List<String> getSheetNames() {
+        return sheetNames;
+    }
+
+    public EvaluationName getName(String name, int sheetIndex) {
+        // sheet scoped names take precedence over the workbook wide ones
+        DefinedName global = null;
+        for (DefinedName n : names) {
+            if (n.name.equalsIgnoreCase(name)) {
+                if (n.sheetIndex == sheetIndex)
+                    return n;
+                if (n.sheetIndex == -1)
+                    global = n;
+            }
+        }
+        return global;
+    }
+
+    public NameXPtg getNameXPtg(String name) {
+        // add-in and external names are not resolved, as in XSSF
+        return null;
+    }
+
+    public int getExternalSheetIndex(String sheetName) {
+        return sheetNames.indexOf(sheetName);
+    }
+
+    public int getExternalSheetIndex(String workbookName, String sheetName) {
+        throw new RuntimeException("not implemented yet");
+    }
+
+    public SpreadsheetVersion getSpreadsheetVersion() {
+        return SpreadsheetVersion.EXCEL2007;
+    }
+
+    public ExternalSheet getExternalSheet(int externSheetIndex) {
+        return null;
+    }
+
+    public String getSheetNameByExternSheet(int externSheetIndex) {
+        return sheetNames.get(externSheetIndex);
+    }
+
+    public String resolveNameXText(NameXPtg ptg) {
+        return null;
+    }
+
+    public String getNameText(NamePtg namePtg) {
+        return names.get(namePtg.getIndex()).name;
+    }
+
+    private static class DefinedName implements EvaluationName {
+        private final StreamingEvaluationWorkbook book;
+        private final int index;
+        private final String name;
+        private final int sheetIndex;
+        private String definition;
+
+        DefinedName(StreamingEvaluationWorkbook book, int index, String name,
+                int sheetIndex) {
+            this.book = book;
+            this.index = index;
+            this.name = name;
+            this.sheetIndex = sheetIndex;
+        }
+
+        public String getNameText() {
+            return name;
+        }
+
+        public boolean isFunctionName() {
+            return false;
+        }
+
+        public boolean hasFormula() {
+            return definition != null && definition.length() > 0;
+        }
+
+        public Ptg[] getNameDefinition() {
+            return FormulaParser.parse(definition, book, FormulaType.NAMEDRANGE,
+                    sheetIndex);
+        }
+
+        public boolean isRange() {
+            return hasFormula();
+        }
+
+        public NamePtg createPtg() {
+            return new NamePtg(index);
+        }
+    }
+}
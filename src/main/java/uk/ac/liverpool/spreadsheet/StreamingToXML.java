@@ -0,0 +1,639 @@
+/* ====================================================================
+   Licensed to the Apache Software Foundation (ASF) under one or more
+   contributor license agreements.  See the NOTICE file distributed with
+   this work for additional information regarding copyright ownership.
+   The ASF licenses this file to You under the Apache License, Version 2.0
+   (the "License"); you may not use this file except in compliance with
+   the License.  You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+==================================================================== */
+package uk.ac.liverpool.spreadsheet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.apache.poi.openxml4j.exceptions.InvalidFormatException;
+import org.apache.poi.openxml4j.exceptions.OpenXML4JException;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.apache.poi.openxml4j.opc.PackagePart;
+import org.apache.poi.ss.SpreadsheetVersion;
+import org.apache.poi.ss.format.CellFormat;
+import org.apache.poi.ss.formula.FormulaParser;
+import org.apache.poi.ss.formula.FormulaType;
+import org.apache.poi.ss.formula.SharedFormula;
+import org.apache.poi.ss.formula.ptg.Ptg;
+import org.apache.poi.ss.util.CellReference;
+import org.apache.poi.xssf.eventusermodel.ReadOnlySharedStringsTable;
+import org.apache.poi.xssf.eventusermodel.XSSFReader;
+import org.apache.poi.xssf.model.StylesTable;
+import org.apache.poi.xssf.usermodel.XSSFCellStyle;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Streaming version of {@link ToXML} for the XML based (.xlsx) format. The
+ * sheets are read with the XSSF event model (XSSFReader and a SAX handler over
+ * the sheet XML, plus the shared strings and styles tables) instead of building
+ * an XSSFWorkbook, and the output is the same
+ * &lt;spreadsheets&gt;/&lt;Table&gt;/&lt;TableRow&gt;/&lt;TableCell&gt;
+ * document written by {@link ToXML}.
+ *
+ * Every sheet is read twice: the first pass collects the column bounds and the
+ * formula dependencies, the second writes the rows as they are parsed. Memory
+ * use depends on the number of formulae and on the width of a row, not on the
+ * number of rows. Formula text and cached values are taken straight from the
+ * &lt;f&gt; and &lt;v&gt; elements; formulae are never evaluated.
+ */
+public class StreamingToXML {
+
+    private final OPCPackage pkg;
+    private final XSSFReader reader;
+    private final ReadOnlySharedStringsTable strings;
+    private final StylesTable styles;
+    private final StreamingEvaluationWorkbook book;
+    private final SAXParserFactory saxFactory;
+    private boolean compactFormulae = false;
+    private boolean columnarOutput = false;
+    private boolean sparseOutput = false;
+    private boolean jsonOutput = false;
+    private int blockRows = 0;
+
+    /**
+     * Opens the package read only; call {@link #convert(String)} and then
+     * {@link #close()}.
+     *
+     * @param in the .xlsx file
+     */
+    public static StreamingToXML create(File in) throws IOException,
+    InvalidFormatException {
+        OPCPackage pkg = OPCPackage.open(in.getPath(), PackageAccess.READ);
+        try {
+            return new StreamingToXML(pkg);
+        } catch (IOException e) {
+            pkg.revert();
+            throw e;
+        } catch (RuntimeException e) {
+            pkg.revert();
+            throw e;
+        }
+    }
+
+    private StreamingToXML(OPCPackage pkg) throws IOException,
+    InvalidFormatException {
+        this.pkg = pkg;
+        try {
+            reader = new XSSFReader(pkg);
+            strings = new ReadOnlySharedStringsTable(pkg);
+            styles = reader.getStylesTable();
+            book = StreamingEvaluationWorkbook.read(reader.getWorkbookData());
+        } catch (SAXException e) {
+            throw new InvalidFormatException(e.getMessage());
+        } catch (OpenXML4JException e) {
+            throw new InvalidFormatException(e.getMessage());
+        }
+        saxFactory = SAXParserFactory.newInstance();
+        saxFactory.setNamespaceAware(true);
+    }
+
+    /**
+     * Run this class as a program
+     *
+     * the Output file will be named inputWorkbook.[sheetNumber].xml
+     *
+     * @param args
+     *            The command line arguments.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err
+            .println("usage: StreamingToXML inputWorkbook.xlsx\n the Output file will be named inputWorkbook.[sheetNumber].xml");
+            return;
+        }
+        StreamingToXML toXml = create(new File(args[0]));
+        try {
+            toXml.convert(args[0] + ".xml");
+        } finally {
+            toXml.close();
+        }
+    }
+
+    public boolean isCompactFormulae() {
+        return compactFormulae;
+    }
+
+    /**
+     * Writes repeated formulae once per sheet, see
+     * {@link ToXML#setCompactFormulae(boolean)}.
+     */
+    public void setCompactFormulae(boolean compactFormulae) {
+        this.compactFormulae = compactFormulae;
+    }
+
+    public boolean isColumnarOutput() {
+        return columnarOutput;
+    }
+
+    /**
+     * Also writes each sheet in the columnar binary format, see
+     * {@link ToXML#setColumnarOutput(boolean)}.
+     */
+    public void setColumnarOutput(boolean columnarOutput) {
+        this.columnarOutput = columnarOutput;
+    }
+
+    public boolean isSparseOutput() {
+        return sparseOutput;
+    }
+
+    /**
+     * Leaves out the missing cells no formula refers to, see
+     * {@link ToXML#setSparseOutput(boolean)}.
+     */
+    public void setSparseOutput(boolean sparseOutput) {
+        this.sparseOutput = sparseOutput;
+    }
+
+    public boolean isJsonOutput() {
+        return jsonOutput;
+    }
+
+    /**
+     * Writes each sheet as JSON lines instead of XML, see
+     * {@link ToXML#setJsonOutput(boolean)}.
+     */
+    public void setJsonOutput(boolean jsonOutput) {
+        this.jsonOutput = jsonOutput;
+    }
+
+    public int getBlockRows() {
+        return blockRows;
+    }
+
+    /**
+     * Splits each sheet into compressed blocks of the given number of rows,
+     * see {@link ToXML#setBlockRows(int)}.
+     */
+    public void setBlockRows(int blockRows) {
+        if (blockRows < 0)
+            throw new IllegalArgumentException("negative block size: "
+                    + blockRows);
+        this.blockRows = blockRows;
+    }
+
+    /**
+     * Releases the package without saving it.
+     */
+    public void close() {
+        pkg.revert();
+    }
+
+    /**
+     * Spread sheet level conversion, the Output file will be named
+     * filename.[sheetNumber].xml
+     *
+     * @param filename
+     *            to convert
+     * @throws IOException
+     */
+    public void convert(String filename) throws IOException {
+        String start = filename.substring(0, filename.lastIndexOf('.'));
+        String end = filename.substring(filename.lastIndexOf('.'));
+        if (jsonOutput)
+            end = ToXML.JSON_SUFFIX;
+
+        List<PackagePart> parts = sheetParts();
+        List<String> names = book.getSheetNames();
+        for (int c = 0; c < parts.size(); c++)
+            convertSheet(parts.get(c), c, sheetName(names, c), start + c,
+                    end, null, columnarOutput ? start + c
+                            + ToXML.COLUMNAR_SUFFIX : null);
+    }
+
+    /**
+     * Writes all the sheets to a stream as JSON lines, see
+     * {@link ToXML#convertToJSON(OutputStream, SheetVisitor...)}. The stream
+     * is flushed but not closed.
+     */
+    public void convertToJSON(OutputStream stream) throws IOException {
+        List<PackagePart> parts = sheetParts();
+        List<String> names = book.getSheetNames();
+        XMLOutput out = new XMLOutput(stream);
+        try {
+            for (int c = 0; c < parts.size(); c++)
+                convertSheet(parts.get(c), c, sheetName(names, c), null,
+                        null, out, null);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static String sheetName(List<String> names, int c) {
+        return c < names.size() ? names.get(c) : "Sheet" + (c + 1);
+    }
+
+    private List<PackagePart> sheetParts() throws IOException {
+        List<PackagePart> parts = new ArrayList<PackagePart>();
+        try {
+            XSSFReader.SheetIterator it = (XSSFReader.SheetIterator) reader
+            .getSheetsData();
+            while (it.hasNext()) {
+                it.next().close();
+                parts.add(it.getSheetPart());
+            }
+        } catch (InvalidFormatException e) {
+            throw new IOException(e.getMessage());
+        }
+        return parts;
+    }
+
+    /**
+     * Writes a sheet to its own file, or to blocks, or else as JSON lines to
+     * a stream.
+     *
+     * @param prefix
+     *            the name of the output before its extension
+     */
+    private void convertSheet(PackagePart part, int sheetIndex, String name,
+            String prefix, String extension, XMLOutput stream,
+            String columnarName) throws IOException {
+        DependencyPass deps = new DependencyPass(sheetIndex);
+        parse(part, deps);
+        if (deps.rows == 0)
+            return;
+        if (deps.shared != null)
+            deps.shared.close();
+
+        ColumnarOutput columns = columnarName == null ? null
+                : new ColumnarOutput(name, deps.firstColumn, deps.endColumn);
+        if (stream == null && blockRows > 0) {
+            SheetWriter writer = new SheetWriter.Blocks(prefix
+                    + ToXML.BLOCK_INDEX_SUFFIX, prefix, jsonOutput, blockRows,
+                    sheetIndex, deps.dependencies, deps.formulaText,
+                    deps.shared, sparseOutput);
+            try {
+                printSheet(part, sheetIndex, name, writer, columns, deps);
+            } finally {
+                writer.close();
+            }
+        } else {
+            XMLOutput out = stream != null ? stream : new XMLOutput(prefix
+                    + extension);
+            try {
+                SheetWriter writer;
+                if (stream != null || jsonOutput)
+                    writer = new SheetWriter.JSON(out, sheetIndex,
+                            deps.dependencies, deps.formulaText, deps.shared,
+                            sparseOutput);
+                else
+                    writer = new SheetWriter.XML(out, sheetIndex,
+                            deps.dependencies, deps.formulaText, deps.shared,
+                            sparseOutput);
+                printSheet(part, sheetIndex, name, writer, columns, deps);
+            } finally {
+                if (stream == null)
+                    out.close();
+            }
+        }
+        if (columns != null)
+            columns.write(columnarName);
+    }
+
+    private void printSheet(PackagePart part, int sheetIndex, String name,
+            SheetWriter writer, ColumnarOutput columns, DependencyPass deps)
+    throws IOException {
+        writer.startSheet(name, deps.firstColumn, deps.endColumn);
+        parse(part, new PrintPass(sheetIndex, writer, columns, deps));
+        writer.endSheet();
+    }
+
+    private void parse(PackagePart part, SheetHandler handler)
+    throws IOException {
+        InputStream in = part.getInputStream();
+        try {
+            SAXParser parser = saxFactory.newSAXParser();
+            parser.parse(in, handler);
+        } catch (SAXException e) {
+            throw new IOException(e.getMessage());
+        } catch (ParserConfigurationException e) {
+            throw new IOException(e.getMessage());
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * The cells of one row, as read from the sheet XML. The arrays are reused
+     * from one row to the next.
+     */
+    static class RowCells {
+        int size;
+        int[] column = new int[16];
+        String[] type = new String[16];
+        int[] style = new int[16];
+        String[] value = new String[16];
+        String[] formula = new String[16];
+
+        void clear() {
+            for (int i = 0; i < size; i++) {
+                type[i] = null;
+                value[i] = null;
+                formula[i] = null;
+            }
+            size = 0;
+        }
+
+        int add(int col) {
+            if (size == column.length) {
+                int n = size * 2;
+                int[] c = new int[n];
+                System.arraycopy(column, 0, c, 0, size);
+                column = c;
+                int[] s = new int[n];
+                System.arraycopy(style, 0, s, 0, size);
+                style = s;
+                String[] t = new String[n];
+                System.arraycopy(type, 0, t, 0, size);
+                type = t;
+                String[] v = new String[n];
+                System.arraycopy(value, 0, v, 0, size);
+                value = v;
+                String[] f = new String[n];
+                System.arraycopy(formula, 0, f, 0, size);
+                formula = f;
+            }
+            column[size] = col;
+            return size++;
+        }
+    }
+
+    /**
+     * SAX handler for the sheet XML: collects the cells of each row, resolves
+     * shared formulae and hands the row to {@link #row(int, RowCells)}.
+     */
+    private abstract class SheetHandler extends DefaultHandler {
+        final int sheetIndex;
+        private final RowCells cells = new RowCells();
+        private final Map<String, SharedMaster> sharedFormulae = new HashMap<String, SharedMaster>();
+        private final StringBuilder text = new StringBuilder();
+        private boolean inRow;
+        private boolean collect;
+        private int rowNum = -1;
+        private int colNum;
+        private int current = -1;
+        private String sharedIndex;
+        private String sharedRef;
+
+        SheetHandler(int sheetIndex) {
+            this.sheetIndex = sheetIndex;
+        }
+
+        abstract void row(int rowNum, RowCells cells);
+
+        public void startElement(String uri, String localName, String qName,
+                Attributes a) {
+            if ("row".equals(localName)) {
+                String r = a.getValue("r");
+                rowNum = r != null ? Integer.parseInt(r) - 1 : rowNum + 1;
+                colNum = -1;
+                inRow = true;
+                cells.clear();
+            } else if (inRow && "c".equals(localName)) {
+                String r = a.getValue("r");
+                colNum = r != null ? new CellReference(r).getCol() : colNum + 1;
+                current = cells.add(colNum);
+                cells.type[current] = a.getValue("t");
+                String s = a.getValue("s");
+                cells.style[current] = s != null ? Integer.parseInt(s) : 0;
+            } else if (current >= 0
+                    && ("v".equals(localName) || "t".equals(localName))) {
+                collect = true;
+                text.setLength(0);
+            } else if (current >= 0 && "f".equals(localName)) {
+                collect = true;
+                text.setLength(0);
+                sharedIndex = "shared".equals(a.getValue("t")) ? a
+                        .getValue("si") : null;
+                sharedRef = a.getValue("ref");
+            }
+        }
+
+        public void characters(char[] ch, int start, int length) {
+            if (collect)
+                text.append(ch, start, length);
+        }
+
+        public void endElement(String uri, String localName, String qName) {
+            if ("row".equals(localName)) {
+                row(rowNum, cells);
+                inRow = false;
+            } else if ("c".equals(localName)) {
+                current = -1;
+            } else if (current >= 0
+                    && ("v".equals(localName) || "t".equals(localName))) {
+                collect = false;
+                // inline strings may be split in several runs
+                String v = cells.value[current];
+                cells.value[current] = v == null ? text.toString() : v + text;
+            } else if (current >= 0 && "f".equals(localName)) {
+                collect = false;
+                cells.formula[current] = formulaText(text.toString());
+            }
+        }
+
+        private String formulaText(String f) {
+            if (sharedIndex == null)
+                return f;
+            if (f.length() > 0 && sharedRef != null) {
+                sharedFormulae.put(sharedIndex, new SharedMaster(f, rowNum,
+                        colNum));
+                return f;
+            }
+            SharedMaster master = sharedFormulae.get(sharedIndex);
+            if (master == null)
+                return f;
+            try {
+                Ptg[] ptgs = FormulaParser.parse(master.formula, book,
+                        FormulaType.CELL, sheetIndex);
+                ptgs = new SharedFormula(SpreadsheetVersion.EXCEL2007)
+                .convertSharedFormulas(ptgs, rowNum - master.row, colNum
+                        - master.column);
+                return org.apache.poi.ss.formula.FormulaRenderer
+                .toFormulaString(book, ptgs);
+            } catch (Exception x) {
+                return "FORMULA ERROR";
+            }
+        }
+    }
+
+    private static class SharedMaster {
+        final String formula;
+        final int row;
+        final int column;
+
+        SharedMaster(String formula, int row, int column) {
+            this.formula = formula;
+            this.row = row;
+            this.column = column;
+        }
+    }
+
+    /**
+     * First pass: column bounds and formula dependencies.
+     */
+    private class DependencyPass extends SheetHandler {
+        int rows;
+        int firstColumn = Integer.MAX_VALUE;
+        int endColumn = 0;
+
+        final DependencyGraph dependencies = new DependencyGraph();
+        final List<String> formulaText = new ArrayList<String>();
+        final SharedFormulae shared = compactFormulae ? new SharedFormulae()
+                : null;
+        private final FormulaRenderer renderer = new FormulaRenderer(book);
+
+        DependencyPass(int sheetIndex) {
+            super(sheetIndex);
+        }
+
+        void row(int rowNum, RowCells cells) {
+            rows++;
+            if (cells.size > 0) {
+                firstColumn = Math.min(firstColumn, cells.column[0]);
+                endColumn = Math.max(endColumn, cells.column[cells.size - 1] + 1);
+            }
+            for (int i = 0; i < cells.size; i++) {
+                if (cells.formula[i] != null)
+                    try {
+                        parseFormula(rowNum, cells.column[i], cells.formula[i]);
+                    } catch (Exception x) {
+
+                    }
+            }
+        }
+
+        private void parseFormula(int row, int col, String formula) {
+            long key = DependencyGraph.key(sheetIndex, row, col);
+            Ptg[] pp = FormulaParser.parse(formula, book, FormulaType.CELL,
+                    sheetIndex);
+            ToXML.addDependencies(dependencies, key, sheetIndex, pp);
+            int node = dependencies.indexOf(key);
+            String text = "[." + new CellReference(row, col).formatAsString()
+            + "]=" + renderer.toFormulaString(pp, row, col);
+            ToXML.putFormulaText(formulaText, node, text);
+            if (shared != null)
+                shared.add(node, row, col, formula, text);
+        }
+    }
+
+    /**
+     * Second pass: writes each row as soon as it has been read.
+     */
+    private class PrintPass extends SheetHandler {
+        private final SheetWriter writer;
+        private final ColumnarOutput columns;
+        private final DependencyPass deps;
+
+        PrintPass(int sheetIndex, SheetWriter writer, ColumnarOutput columns,
+                DependencyPass deps) {
+            super(sheetIndex);
+            this.writer = writer;
+            this.columns = columns;
+            this.deps = deps;
+        }
+
+        void row(int rowNum, RowCells cells) {
+            writer.startRow(rowNum);
+            int next = deps.firstColumn;
+            for (int cell = 0; cell < cells.size; cell++) {
+                int i = cells.column[cell];
+                if (i < next)
+                    continue;
+                writer.missing(rowNum, next, i);
+                String content;
+                String cellFormula = cells.formula[cell];
+                try {
+                    content = format(cells, cell);
+                } catch (Exception x) {
+                    content = "DATA FORMULA ERROR ";
+                }
+                writer.cell(rowNum, i, cellFormula, content);
+                if (columns != null)
+                    columns.cell(rowNum, i, number(cells, cell), content,
+                            cellFormula);
+                next = i + 1;
+            }
+            writer.missing(rowNum, next, deps.endColumn);
+            writer.endRow();
+        }
+
+        /**
+         * @return the value of a numeric cell or formula result, null for
+         *         the other cells
+         */
+        private Double number(RowCells cells, int cell) {
+            String type = cells.type[cell];
+            String value = cells.value[cell];
+            // a formula without a cached result reads as 0, like in format
+            if (value == null && cells.formula[cell] != null)
+                return Double.valueOf(0);
+            if (value == null || (type != null && !"n".equals(type)))
+                return null;
+            try {
+                return Double.valueOf(value);
+            } catch (NumberFormatException x) {
+                return null;
+            }
+        }
+
+        /**
+         * Applies the cell number format to the cached value, following the
+         * same type rules as {@link CellFormat#apply(org.apache.poi.ss.usermodel.Cell)}.
+         */
+        private String format(RowCells cells, int cell) {
+            String format = "General";
+            if (styles != null && styles._getXfsSize() > 0) {
+                XSSFCellStyle style = styles.getStyleAt(cells.style[cell]);
+                if (style != null)
+                    format = style.getDataFormatString();
+            }
+            CellFormat cf = CellFormat.getInstance(format);
+            String type = cells.type[cell];
+            String value = cells.value[cell];
+            if (value == null) {
+                // a formula without a cached result reads as 0, an empty cell
+                // as blank
+                if (cells.formula[cell] != null)
+                    return cf.apply(Double.valueOf(0)).text;
+                return cf.apply("").text;
+            }
+            if (type == null || "n".equals(type))
+                return cf.apply(Double.valueOf(value)).text;
+            if ("s".equals(type))
+                return cf.apply(strings.getEntryAt(Integer.parseInt(value))).text;
+            if ("inlineStr".equals(type) || "str".equals(type))
+                return cf.apply(value).text;
+            if ("b".equals(type))
+                return cf.apply(Boolean.toString("1".equals(value))).text;
+            return cf.apply("?").text;
+        }
+    }
+}
@@ -16,21 +16,20 @@
 ==================================================================== */
 package uk.ac.liverpool.spreadsheet;
 
-import java.io.Closeable;
-import java.io.FileInputStream;
-import java.io.FileWriter;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.PrintWriter;
-import java.util.Formatter;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
-import org.apache.commons.lang3.StringEscapeUtils;
 import org.apache.poi.hssf.usermodel.HSSFEvaluationWorkbook;
 import org.apache.poi.hssf.usermodel.HSSFWorkbook;
 import org.apache.poi.openxml4j.exceptions.InvalidFormatException;
@@ -64,15 +63,18 @@ import org.apache.poi.xssf.usermodel.XSSFWorkbook;
 
 
 public class ToXML {
+    /** Name of the columnar output of a sheet, after the sheet number */
+    static final String COLUMNAR_SUFFIX = ".columns";
+    /** Name of the JSON output of a sheet, after the sheet number */
+    static final String JSON_SUFFIX = ".ndjson";
+    /** Name of the index of the blocks of a sheet, after the sheet number */
+    static final String BLOCK_INDEX_SUFFIX = ".blocks.xml";
+
     private final Workbook wb;
-    private Appendable output;
-    private Formatter out;
-    private boolean gotBounds;
-    private int firstColumn;
-    private int endColumn;
-    private int currentSheet;
     private HSSFWorkbook hswb;
     private XSSFWorkbook xswb;
+    // the file the workbook was opened from, null for a stream
+    private WorkbookFile file;
 
     private boolean evaluateFormulae = false;
 
@@ -84,15 +86,105 @@ public class ToXML {
         this.evaluateFormulae = evaluateFormulae;
     }
 
-    private Map<Integer, String> colNumbers;
+    private boolean compactFormulae = false;
+
+    public boolean isCompactFormulae() {
+        return compactFormulae;
+    }
+
+    /**
+     * Writes the formulae repeated down a column or along a row once per
+     * sheet, as SharedFormula definitions the cells refer to, instead of once
+     * per cell and once per cell depending on them; see
+     * {@link SharedFormulae} for the format.
+     */
+    public void setCompactFormulae(boolean compactFormulae) {
+        this.compactFormulae = compactFormulae;
+    }
+
+    private boolean columnarOutput = false;
+
+    public boolean isColumnarOutput() {
+        return columnarOutput;
+    }
+
+    /**
+     * Also writes each sheet in the columnar binary format read by
+     * {@link ColumnarSheet}, to a .columns file named like the XML file of
+     * the sheet. The values and formulae are those of the XML output.
+     */
+    public void setColumnarOutput(boolean columnarOutput) {
+        this.columnarOutput = columnarOutput;
+    }
+
+    private boolean sparseOutput = false;
+
+    public boolean isSparseOutput() {
+        return sparseOutput;
+    }
+
+    /**
+     * Leaves out the missing cells of each row that no formula refers to,
+     * instead of writing every column between the bounds of the sheet: runs
+     * of them are written as BlankCells elements, see {@link SheetWriter.XML}.
+     * The cells that a formula refers to one by one are still written, so
+     * that they can be edited in the browser.
+     */
+    public void setSparseOutput(boolean sparseOutput) {
+        this.sparseOutput = sparseOutput;
+    }
+
+    private int blockRows = 0;
+
+    public int getBlockRows() {
+        return blockRows;
+    }
+
+    /**
+     * Splits each sheet into gzip compressed blocks of the given number of
+     * rows, listed in a .blocks.xml index named like the XML file would be,
+     * instead of writing one file; see {@link SheetWriter.Blocks} for the
+     * names and the index. 0, the default, writes one file per sheet.
+     */
+    public void setBlockRows(int blockRows) {
+        if (blockRows < 0)
+            throw new IllegalArgumentException("negative block size: "
+                    + blockRows);
+        this.blockRows = blockRows;
+    }
+
+    private boolean jsonOutput = false;
 
-    // every cell (value) can be referred to by multiple formulas
-    private Map<String, List<String>> cellsToFormula;
-    // every cell (formula) can be referred to by multiple formulas
-    private Map<String,List<String>> crToParent;
+    public boolean isJsonOutput() {
+        return jsonOutput;
+    }
 
-    private Map<String, String> cellToFormulaConverted;
+    /**
+     * Writes each sheet as JSON lines instead of XML, to a .ndjson file named
+     * like the XML file would be; see {@link #convertToJSON(OutputStream,
+     * SheetVisitor...)} for the format.
+     */
+    public void setJsonOutput(boolean jsonOutput) {
+        this.jsonOutput = jsonOutput;
+    }
 
+    private ExecutorService executor;
+
+    public ExecutorService getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Sets the executor converting the sheets, each sheet being a separate
+     * task; null, the default, converts the sheets one after another in the
+     * calling thread. The output is the same in both cases.
+     * 
+     * With an executor, the formulae to evaluate are first evaluated in
+     * parallel for the whole workbook, see {@link ParallelEvaluation}.
+     */
+    public void setExecutor(ExecutorService executor) {
+        this.executor = executor;
+    }
 
     public static ToXML create(InputStream in)
     throws IOException, InvalidFormatException {
@@ -102,7 +194,30 @@ public class ToXML {
 
     }
 
-    private ToXML(Workbook wb) {
+    /**
+     * Opens a workbook in place, without reading the whole file first, see
+     * {@link WorkbookFile}; the file stays open until {@link #close()}.
+     */
+    public static ToXML create(File in)
+    throws IOException, InvalidFormatException {
+
+        WorkbookFile file = WorkbookFile.open(in);
+        ToXML toXml = new ToXML(file.getWorkbook());
+        toXml.file = file;
+        return toXml;
+
+    }
+
+    /**
+     * Releases the file of a workbook opened with {@link #create(File)}; does
+     * nothing for a workbook read from a stream.
+     */
+    public void close() throws IOException {
+        if (file != null)
+            file.close();
+    }
+
+    ToXML(Workbook wb) {
         if (wb == null)
             throw new NullPointerException("wb");
         this.wb = wb;
@@ -127,44 +242,131 @@ public class ToXML {
     public static void main(String[] args) throws Exception {
         if (args.length < 1) {
             System.err
-            .println("usage: ToXml inputWorkbook [-evaluate]/n the Output file will be named inputWorkbook.[sheetNumber].xml");
+            .println("usage: ToXml inputWorkbook [-evaluate] [-stream] [-compact] [-columnar] [-sparse] [-json] [-stdout] [-blocks rows] [-threads n]\n the Output file will be named inputWorkbook.[sheetNumber].xml\n -stream converts .xlsx files with the streaming (event model) reader\n -compact writes repeated formulae once, as shared formulae\n -columnar also writes each sheet as columns, to inputWorkbook[sheetNumber].columns\n -sparse leaves out the blank cells no formula refers to\n -json writes JSON lines instead, to inputWorkbook[sheetNumber].ndjson\n -stdout writes all the sheets as JSON lines to the standard output\n -blocks splits each sheet into gzip files of that many rows, listed in inputWorkbook[sheetNumber].blocks.xml\n -threads converts n sheets at a time");
+
+            return;
+        }
 
+        boolean evaluate = false;
+        boolean stream = false;
+        boolean compact = false;
+        boolean columnar = false;
+        boolean sparse = false;
+        boolean json = false;
+        boolean stdout = false;
+        int blocks = 0;
+        int threads = 1;
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].equals("-evaluate"))
+                evaluate = true;
+            else if (args[i].equals("-stream"))
+                stream = true;
+            else if (args[i].equals("-compact"))
+                compact = true;
+            else if (args[i].equals("-columnar"))
+                columnar = true;
+            else if (args[i].equals("-sparse"))
+                sparse = true;
+            else if (args[i].equals("-json"))
+                json = true;
+            else if (args[i].equals("-stdout"))
+                stdout = true;
+            else if (args[i].equals("-blocks") && i + 1 < args.length)
+                blocks = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-threads") && i + 1 < args.length)
+                threads = Integer.parseInt(args[++i]);
+        }
+        // formulae can only be evaluated on the full workbook
+        if (stream && !evaluate && args[0].toLowerCase().endsWith(".xlsx")) {
+            StreamingToXML toXml = StreamingToXML.create(new File(args[0]));
+            toXml.setCompactFormulae(compact);
+            toXml.setColumnarOutput(columnar);
+            toXml.setSparseOutput(sparse);
+            toXml.setJsonOutput(json);
+            toXml.setBlockRows(blocks);
+            try {
+                if (stdout)
+                    toXml.convertToJSON(System.out);
+                else
+                    toXml.convert(args[0] + ".xml");
+            } finally {
+                toXml.close();
+            }
             return;
         }
 
-        ToXML toHtml = create(new FileInputStream(args[0]));
-        if (args.length > 1 && args[1].equals("-evaluate"))
-            toHtml.evaluateFormulae = true;
-        toHtml.convert(args[1]);
+        ToXML toHtml = create(new File(args[0]));
+        toHtml.evaluateFormulae = evaluate;
+        toHtml.compactFormulae = compact;
+        toHtml.columnarOutput = columnar;
+        toHtml.sparseOutput = sparse;
+        toHtml.jsonOutput = json;
+        toHtml.setBlockRows(blocks);
+        if (threads > 1)
+            toHtml.executor = Executors.newFixedThreadPool(threads);
+        try {
+            if (stdout)
+                toHtml.convertToJSON(System.out);
+            else
+                toHtml.convert(args[0] + ".xml");
+        } finally {
+            if (toHtml.executor != null)
+                toHtml.executor.shutdown();
+            toHtml.close();
+        }
     }
 
     /** 
      * Spread sheet level conversion
      * the Output file will be named filename.[sheetNumber].xml
      * @param filename to convert 
+     * @return the files written
      * @throws IOException
      */
     
-    public void convert(String filename) throws IOException {
-        if (evaluateFormulae) {
-            FormulaEvaluator evaluator = wb.getCreationHelper()
-            .createFormulaEvaluator();
-            for (int sheetNum = 0; sheetNum < wb.getNumberOfSheets(); sheetNum++) {
-                Sheet sheet = wb.getSheetAt(sheetNum);
-                for (Row r : sheet) {
-                    for (Cell c : r) {
-                        if (c.getCellType() == Cell.CELL_TYPE_FORMULA) {
-                            evaluator.evaluateFormulaCell(c);
-                        }
-                    }
-                }
-            }
-        }
-
-
-        convertSheets(filename);
+    public List<File> convert(String filename) throws IOException {
+        return convert(filename, new SheetVisitor[0]);
+    }
 
+    /**
+     * Spread sheet level conversion, feeding other visitors (for instance a
+     * feature analysis) from the same traversal of each converted sheet.
+     * 
+     * @param filename to convert
+     * @param visitors called during the first pass over every sheet written;
+     *            with an executor, different sheets are visited concurrently
+     * @return the files written
+     * @throws IOException
+     */
+    public List<File> convert(String filename, SheetVisitor... visitors)
+    throws IOException {
+        return convertSheets(filename, visitors);
+    }
 
+    /**
+     * Writes all the sheets to a stream, one after the other, as JSON lines:
+     * for each sheet a header line, then one line per row, written as the
+     * rows are traversed. The fields are named like the XML attributes; see
+     * {@link SheetWriter.JSON}. The stream is flushed but not closed, and the
+     * sheets are converted in the calling thread, the executor being only
+     * used to evaluate the formulae.
+     * 
+     * @param visitors called during the first pass over every sheet written
+     * @throws IOException
+     */
+    public void convertToJSON(OutputStream stream, SheetVisitor... visitors)
+    throws IOException {
+        XMLOutput out = new XMLOutput(stream);
+        try {
+            evaluate();
+            for (int c = 0; c < wb.getNumberOfSheets(); c++) {
+                Sheet sheet = wb.getSheetAt(c);
+                if (sheet.rowIterator().hasNext())
+                    new SheetConversion(sheet, c, out, visitors).call();
+            }
+        } finally {
+            out.close();
+        }
     }
 
     /** 
@@ -173,298 +375,602 @@ public class ToXML {
      * @param File to convert
      * @throws IOException
      */
-    private void convertSheets(String filename) throws IOException {
+    private List<File> convertSheets(String filename, SheetVisitor[] visitors)
+    throws IOException {
         int total = wb.getNumberOfSheets();
         
         String start = filename.substring(0,filename.lastIndexOf('.'));
         String end = filename.substring(filename.lastIndexOf('.'));
+        if (jsonOutput)
+            end = JSON_SUFFIX;
 
+        List<SheetConversion> sheets = new ArrayList<SheetConversion>();
         for (int c = 0; c < total; c++) {
+            Sheet sheet = wb.getSheetAt(c);
+            if (!sheet.rowIterator().hasNext())
+                continue;
+            String output = blockRows > 0 ? start + c + BLOCK_INDEX_SUFFIX
+                    : start + c + end;
+            sheets.add(new SheetConversion(sheet, c, output,
+                    blockRows > 0 ? start + c : null,
+                    columnarOutput ? start + c + COLUMNAR_SUFFIX : null,
+                    visitors));
+        }
+
+        evaluate();
+
+        List<File> written = new ArrayList<File>();
+        if (executor == null) {
+            for (SheetConversion sheet : sheets)
+                sheet.addFiles(written, sheet.call());
+            return written;
+        }
+        List<Future<File>> results = new ArrayList<Future<File>>();
+        for (SheetConversion sheet : sheets)
+            results.add(executor.submit(sheet));
+        // waits for every sheet, and reports the failure of the first one
+        Throwable failure = null;
+        for (int i = 0; i < results.size(); i++) {
             try {
-                Sheet sheet = wb.getSheetAt(c);
-                if (!sheet.rowIterator().hasNext())
-                    continue;
+                sheets.get(i).addFiles(written, results.get(i).get());
+            } catch (ExecutionException x) {
+                if (failure == null)
+                    failure = x.getCause();
+            } catch (InterruptedException x) {
+                for (Future<File> f : results)
+                    f.cancel(true);
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("conversion interrupted");
+            }
+        }
+        if (failure instanceof IOException)
+            throw (IOException) failure;
+        if (failure instanceof RuntimeException)
+            throw (RuntimeException) failure;
+        if (failure instanceof Error)
+            throw (Error) failure;
+        if (failure != null)
+            throw new IOException(failure);
+        return written;
+    }
+
+    /**
+     * With an executor, evaluates the whole workbook in parallel before the
+     * sheets are converted.
+     */
+    private void evaluate() throws InterruptedIOException {
+        if (evaluateFormulae && executor != null) {
+            try {
+                new ParallelEvaluation(wb).evaluate(executor);
+            } catch (InterruptedException x) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("evaluation interrupted");
+            }
+        }
+    }
 
-                output = new PrintWriter(new FileWriter(start+c+end));
+    /**
+     * The conversion of one sheet to its own file, with all its state, so
+     * that sheets can be converted in parallel.
+     */
+    private class SheetConversion implements Callable<File> {
+        private final Sheet sheet;
+        private final int currentSheet;
+        private final String filename;
+        // the name of the block files before the block number, null unless
+        // the sheet is split into blocks
+        private final String blockPrefix;
+        private final String columnarFilename;
+        private final SheetVisitor[] visitors;
+        private final boolean json;
+        private XMLOutput out;
+        private SheetWriter writer;
+        // the writer of the blocks, if the sheet is split
+        private SheetWriter.Blocks blocks;
+        private ColumnarOutput columns;
+        private int firstColumn;
+        private int endColumn;
+        // formula cells and the cells they refer to
+        private DependencyGraph dependencies;
+        // converted formula text, by node number of the formula cell
+        private List<String> formulaText;
+        // runs of equivalent formulae, in compact mode
+        private SharedFormulae shared;
+
+        /**
+         * @param filename
+         *            the output, or the index of the blocks
+         * @param blockPrefix
+         *            the name of the blocks before the block number, null to
+         *            write one file
+         * @param columnarFilename
+         *            the columnar output, null for none
+         */
+        SheetConversion(Sheet sheet, int sheetIndex, String filename,
+                String blockPrefix, String columnarFilename,
+                SheetVisitor[] visitors) {
+            this.sheet = sheet;
+            this.currentSheet = sheetIndex;
+            this.filename = filename;
+            this.blockPrefix = blockPrefix;
+            this.columnarFilename = columnarFilename;
+            this.visitors = visitors;
+            json = jsonOutput;
+        }
 
-                out = new Formatter(output);
-                out.format("<?xml version='1.0' encoding='iso-8859-1'?>\n"
-                        + "<?xml-stylesheet type=\"text/xsl\" href=\"spreadsheet.xsl\"?>\n");
-                out.format("<spreadsheets>");
-                currentSheet = c;
+        /**
+         * Writes the sheet as JSON lines to a stream shared with the other
+         * sheets.
+         */
+        SheetConversion(Sheet sheet, int sheetIndex, XMLOutput stream,
+                SheetVisitor[] visitors) {
+            this.sheet = sheet;
+            this.currentSheet = sheetIndex;
+            this.filename = null;
+            this.blockPrefix = null;
+            this.columnarFilename = null;
+            this.visitors = visitors;
+            json = true;
+            out = stream;
+        }
 
-                printSheet(sheet);
-                out.format("%n");
-                out.format("</spreadsheets>");
-            } finally {
-                if (out != null)
+        /**
+         * @return the file written, null when writing to a stream
+         */
+        public File call() throws IOException {
+            boolean parsed = firstPass(sheet, visitors);
+            if (columnarFilename != null)
+                columns = new ColumnarOutput(sheet.getSheetName(),
+                        firstColumn, endColumn);
+            if (filename == null) {
+                printSheet(sheet, parsed);
+                return null;
+            }
+            if (blockPrefix != null) {
+                blocks = new SheetWriter.Blocks(filename, blockPrefix, json,
+                        blockRows, currentSheet, dependencies, formulaText,
+                        shared, sparseOutput);
+                try {
+                    printSheet(sheet, parsed);
+                } finally {
+                    blocks.close();
+                }
+            } else {
+                out = new XMLOutput(filename);
+                try {
+                    printSheet(sheet, parsed);
+                } finally {
                     out.close();
-                if (output instanceof Closeable) {
-                    Closeable closeable = (Closeable) output;
-                    closeable.close();
                 }
             }
+            if (columns != null) {
+                columns.write(columnarFilename);
+                columns = null;
+            }
+            return new File(filename);
         }
 
-    }
+        /**
+         * Adds the XML file written, or the index and the blocks, and the
+         * columnar file if any.
+         */
+        void addFiles(List<File> written, File xml) {
+            written.add(xml);
+            if (blocks != null)
+                written.addAll(blocks.getFiles());
+            if (columnarFilename != null)
+                written.add(new File(columnarFilename));
+        }
 
-    private void printSheet(Sheet sheet) {
-        out.format("<Table name=\"%s\">%n", sheet.getSheetName());
-        printSheetContent(sheet);
-        out.format("</Table>%n");
-    }
+        /**
+         * First pass over the sheet: finds the column bounds and the dependencies
+         * of each formula, evaluating the formulae if needed.
+         * 
+         * @return false if the workbook type is not supported
+         */
+        private boolean firstPass(Sheet sheet, SheetVisitor[] visitors) {
+            SheetTraversal.ColumnBounds bounds = new SheetTraversal.ColumnBounds();
+            FormulaVisitor formulae = formulaVisitor();
+            List<SheetVisitor> first = new ArrayList<SheetVisitor>();
+            first.add(bounds);
+            // with an executor, the whole workbook is evaluated beforehand
+            if (evaluateFormulae && executor == null)
+                first.add(new EvaluatingVisitor());
+            if (formulae != null)
+                first.add(formulae);
+            first.addAll(Arrays.asList(visitors));
+            SheetTraversal.traverse(sheet, currentSheet,
+                    first.toArray(new SheetVisitor[first.size()]));
+            firstColumn = bounds.getFirstColumn();
+            endColumn = bounds.getEndColumn();
+            if (shared != null)
+                shared.close();
+            return formulae != null;
+        }
 
-    private void ensureColumnBounds(Sheet sheet) {
-        if (gotBounds)
-            return;
+        /**
+         * Second pass over the sheet: writes the rows.
+         */
+        private void printSheet(Sheet sheet, boolean parsed) {
+            if (blocks != null)
+                writer = blocks;
+            else if (json)
+                writer = new SheetWriter.JSON(out, currentSheet, dependencies,
+                        formulaText, shared, sparseOutput);
+            else
+                writer = new SheetWriter.XML(out, currentSheet, dependencies,
+                        formulaText, shared, sparseOutput);
+            writer.startSheet(sheet.getSheetName(), firstColumn, endColumn);
+            if (parsed)
+                SheetTraversal.traverse(sheet, currentSheet, new PrintVisitor());
+            writer.endSheet();
+        }
+
+        /**
+         * Creates the first pass visitor determining the dependencies of each
+         * formula.
+         * 
+         * @return null if the workbook type is not supported
+         */
+        private FormulaVisitor formulaVisitor() {
+            dependencies = new DependencyGraph();
+            formulaText = new ArrayList<String>();
+            shared = compactFormulae ? new SharedFormulae() : null;
+            if (xswb != null) {
+                XSSFEvaluationWorkbook w = XSSFEvaluationWorkbook.create(xswb);
+                return new FormulaVisitor(w, w);
+            } else if (hswb != null) {
+                HSSFEvaluationWorkbook w = HSSFEvaluationWorkbook.create(hswb);
+                return new FormulaVisitor(w, w);
+            }
+            return null;
+        }
+
+        private class FormulaVisitor extends SheetVisitor {
+            private final FormulaParsingWorkbook fpwb;
+            private final FormulaRenderer renderer;
+
+            FormulaVisitor(FormulaParsingWorkbook fpwb,
+                    FormulaRenderingWorkbook frwb) {
+                this.fpwb = fpwb;
+                this.renderer = new FormulaRenderer(frwb);
+            }
+
+            public void cell(Cell cell) {
+                if (cell.getCellType() == Cell.CELL_TYPE_FORMULA)
+                    try {
+                        parseFormula(cell, fpwb, renderer);
+                    } catch (Exception x) {
+
+                    }
+            }
+        }
+
+        private class EvaluatingVisitor extends SheetVisitor {
+            private final FormulaEvaluator evaluator = wb.getCreationHelper()
+            .createFormulaEvaluator();
+
+            public void cell(Cell cell) {
+                if (cell.getCellType() == Cell.CELL_TYPE_FORMULA)
+                    evaluator.evaluateFormulaCell(cell);
+            }
+        }
+
+        /**
+         * Second pass: writes every column between the bounds, the missing cells
+         * included unless in sparse mode.
+         */
+        private class PrintVisitor extends SheetVisitor {
+            private int next;
+
+            public void startRow(Row row) {
+                writer.startRow(row.getRowNum());
+                next = firstColumn;
+            }
 
-        Iterator<Row> iter = sheet.rowIterator();
-        firstColumn = (iter.hasNext() ? Integer.MAX_VALUE : 0);
-        endColumn = 0;
-        while (iter.hasNext()) {
-            Row row = iter.next();
-            short firstCell = row.getFirstCellNum();
-            if (firstCell >= 0) {
-                firstColumn = Math.min(firstColumn, firstCell);
-                endColumn = Math.max(endColumn, row.getLastCellNum());
+            public void cell(Cell cell) {
+                int column = cell.getColumnIndex();
+                writer.missing(cell.getRowIndex(), next, column);
+                printCell(cell.getRowIndex(), column, cell);
+                next = column + 1;
             }
+
+            public void endRow(Row row) {
+                writer.missing(row.getRowNum(), next, endColumn);
+                writer.endRow();
+            }
+        }
+
+        private void printCell(int rowIndex, int i, Cell cell) {
+            String content = "0";
+            String cellFormula = null;
+
+            if (cell != null
+                    && cell.getCellType() == Cell.CELL_TYPE_FORMULA) {
+                try {
+                    cellFormula = cell.getCellFormula();
+                } catch (Exception x) {
+                    cellFormula = "FORMULA ERROR";
+                }
+            }
+            if (cell != null) {
+                CellStyle style = cell.getCellStyle();
+                // Set the value that is rendered for the cell
+                // also applies the format
+
+                try {
+                    CellFormat cf = CellFormat.getInstance(style
+                            .getDataFormatString());
+                    CellFormatResult result = cf.apply(cell);
+                    content = result.text;
+                } catch (Exception x) {
+                    content = "DATA FORMULA ERROR ";
+                }
+
+            }
+            writer.cell(rowIndex, i, cellFormula, content);
+            if (columns != null && cell != null)
+                columns.cell(rowIndex, i, number(cell), content, cellFormula);
+        }
+
+        private void parseFormula(Cell cell, FormulaParsingWorkbook fpwb,
+                FormulaRenderer renderer) {
+            long key = DependencyGraph.key(currentSheet, cell.getRowIndex(),
+                    cell.getColumnIndex());
+            String formula = cell.getCellFormula();
+            Ptg[] pp;
+            // parsing a reference to another sheet can add to the workbook
+            synchronized (wb) {
+                pp = FormulaParser.parse(formula, fpwb, FormulaType.CELL,
+                        currentSheet);
+            }
+            addDependencies(dependencies, key, currentSheet, pp);
+
+            String cellF = "[." + new CellReference(cell).formatAsString() + "]="
+            + renderer.toFormulaString(pp, cell.getRowIndex(),
+                    cell.getColumnIndex());
+            int node = dependencies.indexOf(key);
+            putFormulaText(formulaText, node, cellF);
+            if (shared != null)
+                shared.add(node, cell.getRowIndex(), cell.getColumnIndex(),
+                        formula, cellF);
         }
-        gotBounds = true;
     }
 
-    private void printColumnHeads() {
+    /**
+     * @return the numeric value of a cell, or the numeric result of a
+     *         formula, null for the other cells
+     */
+    static Double number(Cell cell) {
+        int type = cell.getCellType();
+        if (type == Cell.CELL_TYPE_FORMULA)
+            type = cell.getCachedFormulaResultType();
+        if (type != Cell.CELL_TYPE_NUMERIC)
+            return null;
+        return Double.valueOf(cell.getNumericCellValue());
+    }
+
+    /**
+     * Writes the prolog and the start of the Table element of a sheet.
+     */
+    static void startDocument(XMLOutput out, String sheetName,
+            DependencyGraph dependencies) {
+        out.write("<?xml version='1.0' encoding='UTF-8'?>\n"
+                + "<?xml-stylesheet type=\"text/xsl\" href=\"spreadsheet.xsl\"?>\n");
+        out.write("<spreadsheets>");
+        out.write("<Table name=\"").escaped(sheetName).write('"')
+        .write(circularReferences(dependencies)).write('>').newLine();
+    }
 
-        out.format("<ColumnHeaders>%n");
-        colNumbers = new HashMap<Integer, String>(endColumn);
-        StringBuilder colName = new StringBuilder();
-        out.format("    <ColumnHeader>%s</ColumnHeader>%n", "RowID\\ColID");
+    static void endDocument(XMLOutput out) {
+        out.write("</Table>").newLine();
+        out.newLine();
+        out.write("</spreadsheets>");
+    }
+
+    static void printColumnHeads(XMLOutput out, int firstColumn, int endColumn) {
+
+        out.write("<ColumnHeaders>").newLine();
+        char[] colName = new char[8];
+        out.write("    <ColumnHeader>RowID\\ColID</ColumnHeader>").newLine();
         for (int i = firstColumn; i < endColumn; i++) {
-            colName.setLength(0);
+            int p = colName.length;
             int cnum = i;
             do {
-                colName.insert(0, (char) ('A' + cnum % 26));
+                colName[--p] = (char) ('A' + cnum % 26);
                 cnum /= 26;
             } while (cnum > 0);
-            colNumbers.put(cnum, colName.toString());
 
-            out.format("    <ColumnHeader>%s</ColumnHeader>%n", colName);
+            out.write("    <ColumnHeader>");
+            for (; p < colName.length; p++)
+                out.write(colName[p]);
+            out.write("</ColumnHeader>").newLine();
         }
 
-        out.format("</ColumnHeaders>%n");
-    }
-
-    private void printSheetContent(Sheet sheet) {
-        ensureColumnBounds(sheet);
-        printColumnHeads();
-
-        cellsToFormula = new HashMap<String, List<String>>();
-        cellToFormulaConverted = new HashMap<String, String>();
-        crToParent = new HashMap<String, List<String>>();
-        FormulaParsingWorkbook fpwb;
-        FormulaRenderingWorkbook frwb;
-        if (xswb != null) {
-            XSSFEvaluationWorkbook w = XSSFEvaluationWorkbook.create(xswb);
-            frwb = w;
-            fpwb = w;
-        } else if (hswb != null) {
-            HSSFEvaluationWorkbook w = HSSFEvaluationWorkbook.create(hswb);
-            frwb = w;
-            fpwb = w;
-        }
+        out.write("</ColumnHeaders>").newLine();
+    }
 
-        else
+    /**
+     * Writes the SharedFormulae element of a sheet in compact mode, nothing if
+     * no formula is repeated.
+     */
+    static void printSharedFormulae(XMLOutput out, SharedFormulae shared) {
+        if (shared.size() == 0)
             return;
-        // first we need to determine all the dependencies ofr each formula
-        Iterator<Row> rows = sheet.rowIterator();
-        while (rows.hasNext()) {
-            Row row = rows.next();
-            for (int i = firstColumn; i < endColumn; i++) {
-                if (i >= row.getFirstCellNum() && i < row.getLastCellNum()) {
-                    Cell cell = row.getCell(i);
-                    if (cell != null) {
-                        if (cell.getCellType() == Cell.CELL_TYPE_FORMULA)
-                            try {
-                                parseFormula(cell, fpwb, frwb);
-
-                            } catch (Exception x) {
-
-                            }
-                    }
-                }
-            }
+        out.write("<SharedFormulae>").newLine();
+        for (int i = 0; i < shared.size(); i++) {
+            out.write("    <SharedFormula id=\"").write(i).write("\" range=\"")
+            .write(shared.getRange(i)).write("\" cellFormula=\"")
+            .escaped(shared.getCellFormula(i)).write("\" formula=\"")
+            .escaped(shared.getFormula(i)).write("\"/>").newLine();
         }
-        rows = sheet.rowIterator();
-
-        while (rows.hasNext()) {
-            Row row = rows.next();
-            int rowNumber = row.getRowNum() + 1;
-            out.format("  <TableRow>%n");
-            out.format("    <RowHeader>%d</RowHeader>%n", rowNumber);
-            out.format("  <TableCells>%n");
-            for (int i = firstColumn; i < endColumn; i++) {
-                String content = "0";
-                String attrs = "";
-                CellStyle style = null;
-                String valueType = "float";
-                Cell cell = row.getCell(i);
-                CellReference c = new CellReference(rowNumber - 1, i);
-                attrs += " cellID=\"." + c.formatAsString() + "\"";
-
-                String cr = c.formatAsString();
-                // if (i >= row.getFirstCellNum() && i < row.getLastCellNum()) {
-
-                if (cell != null
-                        && cell.getCellType() == Cell.CELL_TYPE_FORMULA) {
-                    attrs += " readOnly=\"readOnly\""; 
-                    try {
-                        attrs += " cellFormula=\"" + StringEscapeUtils.escapeXml(cell.getCellFormula())
-                        + "\"";
-                    } catch (Exception x) {
-                        attrs += " cellFormula=\"FORMULA ERROR\"";
-                    }
-                } else {
-                    List<String> cfrl = cellsToFormula.get(cr);
-                    StringBuffer formula = new StringBuffer("");
-
-                    if (cfrl != null) {
-                        List<String>refs = new LinkedList<String>();
-                        visit(cfrl, refs);
-                        System.out.println(refs);
-                        cleanup(refs);
-                        for (String s:refs) {
-                            formula.append( StringEscapeUtils.escapeXml(cellToFormulaConverted.get(s)));
-                            formula .append(" || ");
-                        }
-                    }
-                    if (formula.length() > 0)
-                        attrs += " formula=\"" + formula.substring(0,formula.length()-4) + "\"";
-                }
-                if (cell != null) {
-                    style = cell.getCellStyle();
-                    // Set the value that is rendered for the cell
-                    // also applies the format
+        out.write("</SharedFormulae>").newLine();
+    }
 
-                    try {
-                        CellFormat cf = CellFormat.getInstance(style
-                                .getDataFormatString());
-                        CellFormatResult result = cf.apply(cell);
-                        content = result.text;
-                    } catch (Exception x) {
-                        content = "DATA FORMULA ERROR ";
-                    }
+    static void printRowStart(XMLOutput out, int rowNumber) {
+        out.write("  <TableRow>").newLine();
+        out.write("    <RowHeader>").write(rowNumber).write("</RowHeader>")
+        .newLine();
+        out.write("  <TableCells>").newLine();
+    }
 
-                }
-                // }
-                attrs += " value_type=\"" + valueType + "\"";
-                attrs += " value=\"" +StringEscapeUtils.escapeXml( content )+ "\"";
-                out.format("    <TableCell  %s>%s</TableCell>%n", // class=%s
-                        // styleName(style),
-                        attrs,StringEscapeUtils.escapeXml( content));
-            }
-            out.format(" </TableCells> </TableRow>%n%n");
-        }
+    /**
+     * Writes a BlankCells element, a run of missing cells left out in sparse
+     * mode.
+     */
+    static void printBlankCells(XMLOutput out, int row, int column, int count) {
+        out.write("    <BlankCells cellID=\".");
+        printColumnName(out, column);
+        out.write(row + 1).write("\" count=\"").write(count).write("\"/>")
+        .newLine();
+    }
+
+    static void printRowEnd(XMLOutput out) {
+        out.write(" </TableCells> </TableRow>").newLine().newLine();
     }
 
     /**
-     * This method will remove all duplicates starting from the right of the list
+     * Writes a TableCell element.
      * 
-     * @param refs
+     * @param shared
+     *            the shared formulae of the sheet in compact mode, else null:
+     *            the formula of a cell in a run is replaced by a sharedFormula
+     *            attribute, and in the formula attribute of the cells it
+     *            depends on by [.cell]=#id
+     * @param cellFormula
+     *            the formula of a formula cell, null for the other cells
+     * @param content
+     *            the formatted value
      */
-    private void cleanup(List<String> refs) {
-        HashSet<String> visited = new HashSet<String>();
-        for (int i=refs.size()-1;i>=0;i--) {
-            String h = refs.get(i);
-            if (!visited.add(h))
-                refs.remove(i);
+    static void printCell(XMLOutput out, DependencyGraph dependencies,
+            List<String> formulaText, SharedFormulae shared, int sheet,
+            int row, int column, String cellFormula, String content) {
+        out.write("    <TableCell   cellID=\".");
+        printColumnName(out, column);
+        out.write(row + 1).write('"');
+        long key = DependencyGraph.key(sheet, row, column);
+        int id = shared == null || cellFormula == null ? -1 : shared
+                .idOf(dependencies.indexOf(key));
+        if (id >= 0) {
+            out.write(" readOnly=\"readOnly\" sharedFormula=\"").write(id)
+            .write('"');
+        } else if (cellFormula != null) {
+            out.write(" readOnly=\"readOnly\" cellFormula=\"")
+            .escaped(cellFormula).write('"');
+        } else {
+            printDependentFormulae(out, dependencies, key, formulaText,
+                    shared, false);
         }
+        out.write(" value_type=\"float\" value=\"").escaped(content)
+        .write("\">").escaped(content).write("</TableCell>").newLine();
+    }
+
+    // same letters as CellReference.convertNumToColString
+    private static void printColumnName(XMLOutput out, int column) {
+        if (column >= 26)
+            printColumnName(out, column / 26 - 1);
+        out.write((char) ('A' + column % 26));
+    }
 
+    /**
+     * Lists the circular references of a sheet as a circularReferences
+     * attribute: the cells of each cycle, cycles separated by ";".
+     * 
+     * @return the attribute with a leading space, or "" if there is no cycle
+     */
+    static String circularReferences(DependencyGraph dependencies) {
+        String cycles = cycles(dependencies);
+        return cycles == null ? "" : " circularReferences=\"" + cycles + "\"";
     }
 
-    private void visit(List<String> cfrl,List<String> refs) {
-        List<String> parents = new LinkedList<String>();
+    /**
+     * @return the cells of each cycle, cycles separated by ";", or null if
+     *         there is no cycle
+     */
+    static String cycles(DependencyGraph dependencies) {
+        if (!dependencies.hasCycles())
+            return null;
+        StringBuilder cycles = new StringBuilder();
+        for (long[] cycle : dependencies.cycles()) {
+            if (cycles.length() > 0)
+                cycles.append("; ");
+            for (int i = 0; i < cycle.length; i++) {
+                if (i > 0)
+                    cycles.append(' ');
+                cycles.append(new CellReference(DependencyGraph.row(cycle[i]),
+                        DependencyGraph.column(cycle[i])).formatAsString());
+            }
+        }
+        return cycles.toString();
+    }
 
-        for (String cfr : cfrl) {
-            if (cfr == null)
+    /**
+     * Writes the formula attribute of a cell: all the formulae that depend on
+     * it, directly or through other formulae, in evaluation order, escaped and
+     * separated by " || ". Nothing is written if no formula depends on the
+     * cell.
+     * 
+     * @param formulaText the converted formulae, by node number
+     * @param shared the shared formulae in compact mode, else null
+     * @param json writes a JSON field instead of an XML attribute
+     */
+    static void printDependentFormulae(XMLOutput out,
+            DependencyGraph dependencies, long cell, List<String> formulaText,
+            SharedFormulae shared, boolean json) {
+        long[] refs = dependencies.transitiveDependents(cell);
+        boolean first = true;
+        for (long r : refs) {
+            int n = dependencies.indexOf(r);
+            String f = n < formulaText.size() ? formulaText.get(n) : null;
+            if (f == null)
                 continue;
-            List<String> list = crToParent.get(cfr);
-            if (list!=null)
-                parents.addAll(list);
-            refs.add(cfr);
+            if (first)
+                out.write(json ? ",\"formula\":\"" : " formula=\"");
+            else
+                out.write(" || ");
+            int id = shared == null ? -1 : shared.idOf(n);
+            if (id >= 0) {
+                out.write("[.");
+                printColumnName(out, DependencyGraph.column(r));
+                out.write(DependencyGraph.row(r) + 1).write("]=#").write(id);
+            } else if (json) {
+                out.jsonEscaped(f);
+            } else {
+                out.escaped(f);
+            }
+            first = false;
         }
-        if (parents.size()>0)
-            visit(parents, refs);
-        return ;
+        if (!first)
+            out.write('"');
     }
 
-    private void parseFormula(Cell cell, FormulaParsingWorkbook fpwb,
-            FormulaRenderingWorkbook frwb) {
-        CellReference c = new CellReference(cell);
-        String cr = c.formatAsString();
-
-        Ptg[] pp = FormulaParser.parse(cell.getCellFormula(), fpwb,
-                FormulaType.CELL, currentSheet);
-
+    /**
+     * Adds to the graph the cells referred to by a parsed formula.
+     */
+    static void addDependencies(DependencyGraph dependencies, long cell,
+            int sheet, Ptg[] pp) {
+        dependencies.addFormula(cell);
         for (Ptg p : pp) {
             if (p instanceof RefPtg) {
                 RefPtg a = (RefPtg) p;
-                Cell dest = cell.getSheet().getRow(a.getRow())
-                .getCell(a.getColumn());
-                if (dest != null
-                        && dest.getCellType() == Cell.CELL_TYPE_FORMULA) {
-                    String cr2 = new CellReference(dest).formatAsString();
-                    List<String> ls = crToParent.get(cr2);
-                    if (ls == null) {
-                        ls = new LinkedList<String>();
-                        crToParent.put(cr2, ls);
-                    }
-                    ls.add(cr);
-                }
-                List<String> ls = cellsToFormula.get(a.toFormulaString());
-                if (ls == null) {
-                    ls = new LinkedList<String>();
-                    ls.add(cr);
-                    cellsToFormula.put(a.toFormulaString(), ls);
-                } else
-                    ls.add(cr);
-
-            }
-            if (p instanceof AreaPtg) {
+                dependencies.addPrecedent(cell,
+                        DependencyGraph.key(sheet, a.getRow(), a.getColumn()));
+            } else if (p instanceof AreaPtg) {
                 AreaPtg a = (AreaPtg) p;
-
-                for (int i = a.getFirstColumn(); i <= a.getLastColumn(); i++) {
-                    for (int k = a.getFirstRow(); k <= a.getLastRow(); k++) {
-                        String cc = new CellReference(k, i).formatAsString();
-
-                        Cell dest = cell.getSheet().getRow(k).getCell(i);
-                        if (dest != null
-                                && dest.getCellType() == Cell.CELL_TYPE_FORMULA) {
-                            String cr2 = new CellReference(dest)
-                            .formatAsString();
-                            List<String> ls = crToParent.get(cr2);
-                            if (ls == null) {
-                                ls = new LinkedList<String>();
-                                crToParent.put(cr2, ls);
-                            }
-                            ls.add(cr);
-                        }
-
-                        List<String> ls = cellsToFormula.get(cc);
-                        if (ls == null) {
-                            ls = new LinkedList<String>();
-                            ls.add(cr);
-                            cellsToFormula.put(cc, ls);
-                        } else
-                            ls.add(cr);
-                    }
-                }
+                dependencies.addPrecedents(cell, sheet, a.getFirstRow(),
+                        a.getFirstColumn(), a.getLastRow(), a.getLastColumn());
             }
         }
+    }
 
-        String cellF = "[." + cr + "]="
-        + FormulaRenderer.toFormulaString(frwb, pp);
-        System.out.println(cellF);
-        cellToFormulaConverted.put(cr, cellF);
-
+    /**
+     * Stores the converted text of a formula, by node number.
+     */
+    static void putFormulaText(List<String> formulaText, int node, String text) {
+        while (formulaText.size() <= node)
+            formulaText.add(null);
+        formulaText.set(node, text);
     }
 
-}
\ No newline at end of file
+
+}
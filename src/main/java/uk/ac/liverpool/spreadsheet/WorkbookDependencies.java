@@ -0,0 +1,188 @@
+/* ====================================================================
+   Licensed to the Apache Software Foundation (ASF) under one or more
+   contributor license agreements.  See the NOTICE file distributed with
+   this work for additional information regarding copyright ownership.
+   The ASF licenses this file to You under the Apache License, Version 2.0
+   (the "License"); you may not use this file except in compliance with
+   the License.  You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+==================================================================== */
+package uk.ac.liverpool.spreadsheet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.poi.hssf.usermodel.HSSFEvaluationWorkbook;
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.apache.poi.ss.formula.EvaluationName;
+import org.apache.poi.ss.formula.EvaluationSheet;
+import org.apache.poi.ss.formula.EvaluationWorkbook;
+import org.apache.poi.ss.formula.ptg.AbstractFunctionPtg;
+import org.apache.poi.ss.formula.ptg.Area3DPtg;
+import org.apache.poi.ss.formula.ptg.AreaPtg;
+import org.apache.poi.ss.formula.ptg.NamePtg;
+import org.apache.poi.ss.formula.ptg.Ptg;
+import org.apache.poi.ss.formula.ptg.Ref3DPtg;
+import org.apache.poi.ss.formula.ptg.RefPtg;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.xssf.usermodel.XSSFEvaluationWorkbook;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+
+/**
+ * The dependency graph of all the formulae of a workbook, across sheets: the
+ * cells and areas each formula refers to, directly, in another sheet or
+ * through a defined name.
+ *
+ * Some references are only known when evaluating: the targets of INDIRECT and
+ * OFFSET, names defined by other names, formulae that cannot be parsed.
+ * Those formulae, and the volatile ones, are listed as dynamic: their
+ * precedents in the graph may be incomplete.
+ */
+class WorkbookDependencies {
+
+    // functions whose result does not only depend on the cells in the graph
+    private static final Set<String> DYNAMIC_FUNCTIONS = new HashSet<String>(
+            Arrays.asList("INDIRECT", "OFFSET", "CELL", "INFO", "NOW",
+                    "TODAY", "RAND"));
+
+    private final DependencyGraph graph = new DependencyGraph();
+    // formula cells, in sheet, row and column order, and their keys
+    private final List<Cell> cells = new ArrayList<Cell>();
+    private long[] keys = new long[16];
+    private long[] dynamic = new long[16];
+    private int dynamicCount;
+
+    WorkbookDependencies(Workbook wb) {
+        EvaluationWorkbook book = null;
+        if (wb instanceof HSSFWorkbook)
+            book = HSSFEvaluationWorkbook.create((HSSFWorkbook) wb);
+        else if (wb instanceof XSSFWorkbook)
+            book = XSSFEvaluationWorkbook.create((XSSFWorkbook) wb);
+
+        for (int s = 0; s < wb.getNumberOfSheets(); s++) {
+            EvaluationSheet evaluationSheet = book == null ? null : book
+                    .getSheet(s);
+            for (Row row : wb.getSheetAt(s)) {
+                for (Cell cell : row) {
+                    if (cell.getCellType() != Cell.CELL_TYPE_FORMULA)
+                        continue;
+                    long key = DependencyGraph.key(s, cell.getRowIndex(),
+                            cell.getColumnIndex());
+                    graph.addFormula(key);
+                    if (cells.size() == keys.length)
+                        keys = Arrays.copyOf(keys, keys.length * 2);
+                    keys[cells.size()] = key;
+                    cells.add(cell);
+                    boolean complete = false;
+                    if (book != null) {
+                        try {
+                            complete = addPrecedents(book, key, s, book
+                                    .getFormulaTokens(evaluationSheet.getCell(
+                                            cell.getRowIndex(), cell
+                                            .getColumnIndex())), true);
+                        } catch (RuntimeException x) {
+                            // unparsable
+                        }
+                    }
+                    if (!complete) {
+                        if (dynamicCount == dynamic.length)
+                            dynamic = Arrays.copyOf(dynamic, dynamicCount * 2);
+                        dynamic[dynamicCount++] = key;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Records the cells and areas a formula refers to, in its own sheet or in
+     * others, and those of the names it uses.
+     *
+     * @return false if the formula can refer to other cells as well
+     */
+    private boolean addPrecedents(EvaluationWorkbook book, long cell,
+            int sheet, Ptg[] ptgs, boolean followNames) {
+        boolean complete = true;
+        for (Ptg p : ptgs) {
+            if (p instanceof RefPtg) {
+                RefPtg r = (RefPtg) p;
+                graph.addPrecedent(cell, DependencyGraph.key(sheet, r
+                        .getRow(), r.getColumn()));
+            } else if (p instanceof Ref3DPtg) {
+                Ref3DPtg r = (Ref3DPtg) p;
+                int s = sheetIndex(book, r.getExternSheetIndex());
+                if (s >= 0)
+                    graph.addPrecedent(cell, DependencyGraph.key(s, r.getRow(),
+                            r.getColumn()));
+            } else if (p instanceof AreaPtg) {
+                AreaPtg a = (AreaPtg) p;
+                graph.addPrecedents(cell, sheet, a.getFirstRow(), a
+                        .getFirstColumn(), a.getLastRow(), a.getLastColumn());
+            } else if (p instanceof Area3DPtg) {
+                Area3DPtg a = (Area3DPtg) p;
+                int s = sheetIndex(book, a.getExternSheetIndex());
+                if (s >= 0)
+                    graph.addPrecedents(cell, s, a.getFirstRow(), a
+                            .getFirstColumn(), a.getLastRow(), a
+                            .getLastColumn());
+            } else if (p instanceof NamePtg) {
+                EvaluationName n = book.getName((NamePtg) p);
+                if (n == null || !n.hasFormula() || n.isFunctionName())
+                    continue;
+                // a name defined by another name is left to the evaluator
+                if (followNames)
+                    complete &= addPrecedents(book, cell, sheet, n
+                            .getNameDefinition(), false);
+                else
+                    complete = false;
+            } else if (p instanceof AbstractFunctionPtg) {
+                if (DYNAMIC_FUNCTIONS.contains(((AbstractFunctionPtg) p)
+                        .getName()))
+                    complete = false;
+            }
+        }
+        return complete;
+    }
+
+    /** @return the sheet index, -1 for a sheet of another workbook */
+    private static int sheetIndex(EvaluationWorkbook book, int externSheet) {
+        if (book.getExternalSheet(externSheet) != null)
+            return -1;
+        return book.convertFromExternSheetIndex(externSheet);
+    }
+
+    DependencyGraph getGraph() {
+        return graph;
+    }
+
+    /** @return the formula cells, in sheet, row and column order */
+    List<Cell> getFormulaCells() {
+        return Collections.unmodifiableList(cells);
+    }
+
+    /** @return the key of the i-th formula cell */
+    long getFormulaKey(int i) {
+        return keys[i];
+    }
+
+    /**
+     * @return the keys of the formulae whose precedents may be incomplete, in
+     *         cell order
+     */
+    long[] getDynamicFormulae() {
+        return Arrays.copyOf(dynamic, dynamicCount);
+    }
+}
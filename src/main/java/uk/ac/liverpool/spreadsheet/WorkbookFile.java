@@ -0,0 +1,137 @@
+/* ====================================================================
+   Licensed to the Apache Software Foundation (ASF) under one or more
+   contributor license agreements.  See the NOTICE file distributed with
+   this work for additional information regarding copyright ownership.
+   The ASF licenses this file to You under the Apache License, Version 2.0
+   (the "License"); you may not use this file except in compliance with
+   the License.  You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+==================================================================== */
+package uk.ac.liverpool.spreadsheet;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.apache.poi.openxml4j.exceptions.InvalidFormatException;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.apache.poi.poifs.filesystem.NPOIFSFileSystem;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+
+/**
+ * A workbook read in place from its file, instead of through
+ * WorkbookFactory.create(InputStream), which copies the whole file to the
+ * heap first and leaves the stream open.
+ *
+ * A binary (.xls) file is opened as an NPOIFSFileSystem over a read only
+ * FileChannel, whose blocks are read as they are needed; an OOXML (.xlsx) file
+ * as an OPCPackage over a ZipFile, whose parts are inflated when they are
+ * read. The format is found from the first bytes of the file, not from its
+ * name.
+ *
+ * The file stays open as long as the workbook is in use, for the parts read
+ * late like the pictures or the embedded objects; {@link #close()} releases
+ * it, without writing anything back.
+ */
+public class WorkbookFile implements Closeable {
+
+    private final Workbook workbook;
+    // the file system of a binary workbook, else null
+    private final NPOIFSFileSystem fs;
+    // the package of an OOXML workbook, else null
+    private final OPCPackage pkg;
+
+    private WorkbookFile(Workbook workbook, NPOIFSFileSystem fs,
+            OPCPackage pkg) {
+        this.workbook = workbook;
+        this.fs = fs;
+        this.pkg = pkg;
+    }
+
+    /**
+     * Opens a workbook; the caller must {@link #close()} it.
+     *
+     * @throws InvalidFormatException
+     *             if the file is neither an OLE2 nor an OOXML file
+     */
+    public static WorkbookFile open(File f) throws IOException,
+    InvalidFormatException {
+        byte[] header = new byte[4];
+        InputStream in = new FileInputStream(f);
+        try {
+            int n = 0;
+            while (n < header.length) {
+                int r = in.read(header, n, header.length - n);
+                if (r < 0)
+                    break;
+                n += r;
+            }
+        } finally {
+            in.close();
+        }
+        if ((header[0] & 0xFF) == 0xD0 && (header[1] & 0xFF) == 0xCF
+                && header[2] == 0x11 && (header[3] & 0xFF) == 0xE0)
+            return openOLE2(f);
+        if (header[0] == 'P' && header[1] == 'K' && header[2] == 3
+                && header[3] == 4)
+            return openOOXML(f);
+        throw new InvalidFormatException(f
+                + " is neither an OLE2 nor an OOXML file");
+    }
+
+    private static WorkbookFile openOLE2(File f) throws IOException {
+        NPOIFSFileSystem fs = new NPOIFSFileSystem(f, true);
+        try {
+            // keeps the other entries, for the embedded objects and the
+            // document summary
+            HSSFWorkbook wb = new HSSFWorkbook(fs.getRoot(), true);
+            return new WorkbookFile(wb, fs, null);
+        } catch (IOException x) {
+            fs.close();
+            throw x;
+        } catch (RuntimeException x) {
+            fs.close();
+            throw x;
+        }
+    }
+
+    private static WorkbookFile openOOXML(File f) throws IOException,
+    InvalidFormatException {
+        OPCPackage pkg = OPCPackage.open(f.getPath(), PackageAccess.READ);
+        try {
+            return new WorkbookFile(new XSSFWorkbook(pkg), null, pkg);
+        } catch (IOException x) {
+            pkg.revert();
+            throw x;
+        } catch (RuntimeException x) {
+            pkg.revert();
+            throw x;
+        }
+    }
+
+    public Workbook getWorkbook() {
+        return workbook;
+    }
+
+    /**
+     * Releases the file; the workbook must not be used any more.
+     */
+    public void close() throws IOException {
+        if (fs != null)
+            fs.close();
+        if (pkg != null)
+            pkg.revert();
+    }
+}
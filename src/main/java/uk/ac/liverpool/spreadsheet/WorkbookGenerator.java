@@ -0,0 +1,466 @@
+/* ====================================================================
+   Licensed to the Apache Software Foundation (ASF) under one or more
+   contributor license agreements.  See the NOTICE file distributed with
+   this work for additional information regarding copyright ownership.
+   The ASF licenses this file to You under the Apache License, Version 2.0
+   (the "License"); you may not use this file except in compliance with
+   the License.  You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+==================================================================== */
+package uk.ac.liverpool.spreadsheet;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Date;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.apache.poi.openxml4j.util.Nullable;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.ClientAnchor;
+import org.apache.poi.ss.usermodel.Comment;
+import org.apache.poi.ss.usermodel.CreationHelper;
+import org.apache.poi.ss.usermodel.Drawing;
+import org.apache.poi.ss.usermodel.Font;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.ss.util.CellReference;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
+
+/**
+ * Writes synthetic workbooks, for scale and stress testing. The content is
+ * drawn from a pseudo random generator, so the same parameters and seed always
+ * give the same workbook: the same bytes for .xls, the same parts for .xlsx,
+ * whose zip entries still carry the time they were written.
+ *
+ * .xlsx files are written with the streaming SXSSF model, so that millions of
+ * rows fit in a small heap. .xls files are built in memory, and the rows go
+ * over several sheets of at most 65536 rows, the format limit; for the same
+ * reason, there are at most 256 columns.
+ *
+ * A formula only refers to the rows above it, or to the sheets before its
+ * own, so that there are no circular references.
+ *
+ * The parameters:
+ * <ul>
+ * <li>rows and columns of each sheet, and the number of sheets;</li>
+ * <li>density: the fraction of the cells that are written, the others are
+ * left missing;</li>
+ * <li>formulaDensity: the fraction of the written cells that are formulae;</li>
+ * <li>chainDepth: the length of the dependency chains. A formula refers to the
+ * cell above it, so formulae down a column depend on each other, and every
+ * chainDepth rows a chain restarts;</li>
+ * <li>areaSize: the number of rows of the SUM area references, which end
+ * on the row above the formula, 0 for none;</li>
+ * <li>crossSheetDensity: the fraction of the formulae referring to an
+ * earlier sheet, the first sheet has none;</li>
+ * <li>commentDensity: the fraction of the written cells with a comment;</li>
+ * <li>styles: the number of distinct cell styles, 0 to keep the default one;
+ * each style has one of the numberFormats;</li>
+ * <li>images: the number of pictures on each sheet.</li>
+ * </ul>
+ */
+public class WorkbookGenerator {
+
+    private static final int XLS_MAX_ROWS = 65536;
+    private static final int XLS_MAX_COLUMNS = 256;
+
+    private long seed = 1;
+    private int rows = 1000;
+    private int columns = 10;
+    private int sheets = 1;
+    private double density = 1;
+    private double formulaDensity = 0.2;
+    private int chainDepth = 10;
+    private int areaSize = 100;
+    private double crossSheetDensity = 0;
+    private double commentDensity = 0;
+    private int styles = 0;
+    private String[] numberFormats = { "0.00", "#,##0", "0.00%", "m/d/yy",
+            "0.000E+00", "[Red]#,##0.00;[Blue](#,##0.00)" };
+    private int images = 0;
+
+    public long getSeed() {
+        return seed;
+    }
+
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    public void setRows(int rows) {
+        if (rows < 1)
+            throw new IllegalArgumentException("rows must be positive");
+        this.rows = rows;
+    }
+
+    public int getColumns() {
+        return columns;
+    }
+
+    public void setColumns(int columns) {
+        if (columns < 1)
+            throw new IllegalArgumentException("columns must be positive");
+        this.columns = columns;
+    }
+
+    public int getSheets() {
+        return sheets;
+    }
+
+    public void setSheets(int sheets) {
+        if (sheets < 1)
+            throw new IllegalArgumentException("sheets must be positive");
+        this.sheets = sheets;
+    }
+
+    public double getDensity() {
+        return density;
+    }
+
+    public void setDensity(double density) {
+        this.density = fraction(density);
+    }
+
+    public double getFormulaDensity() {
+        return formulaDensity;
+    }
+
+    public void setFormulaDensity(double formulaDensity) {
+        this.formulaDensity = fraction(formulaDensity);
+    }
+
+    public int getChainDepth() {
+        return chainDepth;
+    }
+
+    public void setChainDepth(int chainDepth) {
+        if (chainDepth < 1)
+            throw new IllegalArgumentException("chainDepth must be positive");
+        this.chainDepth = chainDepth;
+    }
+
+    public int getAreaSize() {
+        return areaSize;
+    }
+
+    public void setAreaSize(int areaSize) {
+        if (areaSize < 0)
+            throw new IllegalArgumentException("areaSize cannot be negative");
+        this.areaSize = areaSize;
+    }
+
+    public double getCrossSheetDensity() {
+        return crossSheetDensity;
+    }
+
+    public void setCrossSheetDensity(double crossSheetDensity) {
+        this.crossSheetDensity = fraction(crossSheetDensity);
+    }
+
+    public double getCommentDensity() {
+        return commentDensity;
+    }
+
+    public void setCommentDensity(double commentDensity) {
+        this.commentDensity = fraction(commentDensity);
+    }
+
+    public int getStyles() {
+        return styles;
+    }
+
+    public void setStyles(int styles) {
+        if (styles < 0)
+            throw new IllegalArgumentException("styles cannot be negative");
+        this.styles = styles;
+    }
+
+    public String[] getNumberFormats() {
+        return numberFormats.clone();
+    }
+
+    public void setNumberFormats(String... numberFormats) {
+        if (numberFormats.length == 0)
+            throw new IllegalArgumentException("no number format");
+        this.numberFormats = numberFormats.clone();
+    }
+
+    public int getImages() {
+        return images;
+    }
+
+    public void setImages(int images) {
+        if (images < 0)
+            throw new IllegalArgumentException("images cannot be negative");
+        this.images = images;
+    }
+
+    private static double fraction(double d) {
+        if (!(d >= 0 && d <= 1))
+            throw new IllegalArgumentException("not between 0 and 1: " + d);
+        return d;
+    }
+
+    /**
+     * Writes the workbook, in the binary format if the file name ends with
+     * .xls, in the XML based format otherwise.
+     */
+    public void write(File f) throws IOException {
+        OutputStream out = new FileOutputStream(f);
+        try {
+            write(out, f.getName().toLowerCase().endsWith(".xls"));
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Writes the workbook to a stream.
+     *
+     * @param binary
+     *            true for the .xls format, false for .xlsx
+     */
+    public void write(OutputStream out, boolean binary) throws IOException {
+        Workbook wb;
+        if (binary) {
+            wb = new HSSFWorkbook();
+        } else {
+            SXSSFWorkbook sx = new SXSSFWorkbook();
+            // a fixed creation date, so that the file only depends on the seed
+            sx.getXSSFWorkbook().getProperties().getCoreProperties()
+            .setCreated(new Nullable<Date>(new Date(0)));
+            wb = sx;
+        }
+        new Generation(wb, binary).run();
+        wb.write(out);
+    }
+
+    /** The state of one generation. */
+    private class Generation {
+        private final Workbook wb;
+        private final Random random = new Random(seed);
+        private final int sheetRows;
+        private final int sheetColumns;
+        private final String[] sheetNames;
+        private final CellStyle[] cellStyles;
+        private final int picture;
+
+        Generation(Workbook wb, boolean binary) {
+            this.wb = wb;
+            int parts = 1;
+            if (binary) {
+                parts = (rows + XLS_MAX_ROWS - 1) / XLS_MAX_ROWS;
+                sheetRows = Math.min(rows, XLS_MAX_ROWS);
+                sheetColumns = Math.min(columns, XLS_MAX_COLUMNS);
+            } else {
+                sheetRows = rows;
+                sheetColumns = columns;
+            }
+            sheetNames = new String[sheets * parts];
+            for (int s = 0; s < sheets; s++)
+                for (int p = 0; p < parts; p++)
+                    sheetNames[s * parts + p] = "Sheet" + (s + 1)
+                    + (parts > 1 ? "." + (p + 1) : "");
+            cellStyles = new CellStyle[styles];
+            for (int i = 0; i < styles; i++)
+                cellStyles[i] = style(i);
+            picture = images > 0 ? wb.addPicture(image(),
+                    Workbook.PICTURE_TYPE_PNG) : -1;
+        }
+
+        void run() {
+            for (String name : sheetNames)
+                wb.createSheet(name);
+            int parts = sheetNames.length / sheets;
+            for (int s = 0; s < sheetNames.length; s++) {
+                // the last part of a split sheet gets the remaining rows
+                int n = sheetRows;
+                if (parts > 1 && s % parts == parts - 1)
+                    n = rows - (parts - 1) * sheetRows;
+                sheet(s, n);
+            }
+        }
+
+        private void sheet(int index, int n) {
+            Sheet sheet = wb.getSheetAt(index);
+            CreationHelper helper = wb.getCreationHelper();
+            Drawing drawing = images > 0 || commentDensity > 0 ? sheet
+                    .createDrawingPatriarch() : null;
+            for (int r = 0; r < n; r++) {
+                Row row = sheet.createRow(r);
+                for (int c = 0; c < sheetColumns; c++) {
+                    if (random.nextDouble() >= density)
+                        continue;
+                    Cell cell = row.createCell(c);
+                    if (random.nextDouble() < formulaDensity)
+                        cell.setCellFormula(formula(index, r, c));
+                    else if (random.nextInt(5) == 0)
+                        cell.setCellValue("text " + random.nextInt(1000));
+                    else
+                        cell.setCellValue(Math.round(random.nextDouble() * 1e6) / 100.0);
+                    if (cellStyles.length > 0)
+                        cell.setCellStyle(cellStyles[random
+                                                     .nextInt(cellStyles.length)]);
+                    if (commentDensity > 0
+                            && random.nextDouble() < commentDensity)
+                        comment(drawing, helper, cell);
+                }
+            }
+            for (int i = 0; i < images; i++) {
+                ClientAnchor anchor = helper.createClientAnchor();
+                anchor.setCol1(random.nextInt(sheetColumns));
+                anchor.setCol2(anchor.getCol1() + 2);
+                anchor.setRow1(random.nextInt(n));
+                anchor.setRow2(anchor.getRow1() + 5);
+                drawing.createPicture(anchor, picture);
+            }
+        }
+
+        private String formula(int sheet, int r, int c) {
+            String column = CellReference.convertNumToColString(c);
+            if (sheet > 0 && random.nextDouble() < crossSheetDensity) {
+                int other = random.nextInt(sheet);
+                return "'" + sheetNames[other] + "'!"
+                + CellReference.convertNumToColString(random
+                        .nextInt(sheetColumns)) + (random.nextInt(sheetRows) + 1)
+                        + "*2";
+            }
+            if (areaSize > 0 && r > 0 && random.nextBoolean()) {
+                // a column area ending on the row above, 1 based rows
+                int last = r;
+                int first = Math.max(1, last - areaSize + 1);
+                String other = CellReference.convertNumToColString(random
+                        .nextInt(sheetColumns));
+                return "SUM(" + other + first + ":" + other + last + ")";
+            }
+            // refers to the cell above, unless a new chain starts here
+            if (r % chainDepth != 0)
+                return column + r + "+1";
+            return String.valueOf(random.nextInt(100));
+        }
+
+        private void comment(Drawing drawing, CreationHelper helper, Cell cell) {
+            ClientAnchor anchor = helper.createClientAnchor();
+            anchor.setCol1(cell.getColumnIndex());
+            anchor.setCol2(cell.getColumnIndex() + 2);
+            anchor.setRow1(cell.getRowIndex());
+            anchor.setRow2(cell.getRowIndex() + 3);
+            Comment comment = drawing.createCellComment(anchor);
+            comment.setString(helper.createRichTextString("comment "
+                    + random.nextInt(1000)));
+            comment.setAuthor("generator");
+            cell.setCellComment(comment);
+        }
+
+        private CellStyle style(int i) {
+            CellStyle style = wb.createCellStyle();
+            style.setDataFormat(wb.createDataFormat().getFormat(
+                    numberFormats[i % numberFormats.length]));
+            Font font = wb.createFont();
+            font.setBoldweight(i % 2 == 0 ? Font.BOLDWEIGHT_NORMAL
+                    : Font.BOLDWEIGHT_BOLD);
+            font.setFontHeightInPoints((short) (8 + i % 8));
+            style.setFont(font);
+            style.setAlignment((short) (i % 4));
+            return style;
+        }
+
+        private byte[] image() {
+            BufferedImage image = new BufferedImage(32, 32,
+                    BufferedImage.TYPE_INT_RGB);
+            for (int x = 0; x < 32; x++)
+                for (int y = 0; y < 32; y++)
+                    image.setRGB(x, y, random.nextInt(0x1000000));
+            ByteArrayOutputStream png = new ByteArrayOutputStream();
+            try {
+                ImageIO.write(image, "png", png);
+            } catch (IOException x) {
+                // cannot happen, in memory
+                throw new IllegalStateException(x);
+            }
+            return png.toByteArray();
+        }
+    }
+
+    /**
+     * Run this class as a program
+     *
+     * @param args
+     *            [-seed n] [-rows n] [-columns n] [-sheets n] [-density d]
+     *            [-formulaDensity d] [-chainDepth n] [-areaSize n]
+     *            [-crossSheetDensity d] [-commentDensity d] [-styles n]
+     *            [-numberFormats format|format...] [-images n] output.xls or
+     *            output.xlsx
+     */
+    public static void main(String[] args) throws IOException {
+        WorkbookGenerator g = new WorkbookGenerator();
+        File output = null;
+        boolean usage = false;
+        for (int i = 0; i < args.length; i++) {
+            String a = args[i];
+            if (!a.startsWith("-")) {
+                output = new File(a);
+                continue;
+            }
+            if (i + 1 == args.length) {
+                usage = true;
+                break;
+            }
+            String v = args[++i];
+            if (a.equals("-seed"))
+                g.setSeed(Long.parseLong(v));
+            else if (a.equals("-rows"))
+                g.setRows(Integer.parseInt(v));
+            else if (a.equals("-columns"))
+                g.setColumns(Integer.parseInt(v));
+            else if (a.equals("-sheets"))
+                g.setSheets(Integer.parseInt(v));
+            else if (a.equals("-density"))
+                g.setDensity(Double.parseDouble(v));
+            else if (a.equals("-formulaDensity"))
+                g.setFormulaDensity(Double.parseDouble(v));
+            else if (a.equals("-chainDepth"))
+                g.setChainDepth(Integer.parseInt(v));
+            else if (a.equals("-areaSize"))
+                g.setAreaSize(Integer.parseInt(v));
+            else if (a.equals("-crossSheetDensity"))
+                g.setCrossSheetDensity(Double.parseDouble(v));
+            else if (a.equals("-commentDensity"))
+                g.setCommentDensity(Double.parseDouble(v));
+            else if (a.equals("-styles"))
+                g.setStyles(Integer.parseInt(v));
+            else if (a.equals("-numberFormats"))
+                g.setNumberFormats(v.split("\\|"));
+            else if (a.equals("-images"))
+                g.setImages(Integer.parseInt(v));
+            else
+                usage = true;
+        }
+        if (usage || output == null) {
+            System.err
+            .println("usage: WorkbookGenerator [-seed n] [-rows n] [-columns n] [-sheets n] [-density d] [-formulaDensity d] [-chainDepth n] [-areaSize n] [-crossSheetDensity d] [-commentDensity d] [-styles n] [-numberFormats f|f...] [-images n] output.xls|output.xlsx");
+            return;
+        }
+        g.write(output);
+    }
+}
@@ -0,0 +1,109 @@
+/* ====================================================================
+   Licensed to the Apache Software Foundation (ASF) under one or more
+   contributor license agreements.  See the NOTICE file distributed with
+   this work for additional information regarding copyright ownership.
+   The ASF licenses this file to You under the Apache License, Version 2.0
+   (the "License"); you may not use this file except in compliance with
+   the License.  You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+==================================================================== */
+package uk.ac.liverpool.spreadsheet;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.poi.openxml4j.exceptions.InvalidFormatException;
+
+/**
+ * The conversion and the feature analysis of a workbook, from one opening of
+ * the file. Running {@link ExcelFeatureAnalysis#analyse(File)} then
+ * {@link ToXML#convert(String)} reads the workbook twice and traverses every
+ * sheet twice; here the cell features are collected during the first pass of
+ * the conversion, and only the workbook wide features are read afterwards.
+ *
+ * <pre>
+ * WorkbookPipeline p = WorkbookPipeline.open(file);
+ * try {
+ *     p.getConverter().setEvaluateFormulae(true);
+ *     List&lt;File&gt; sheets = p.convert(file.getPath() + &quot;.xml&quot;);
+ *     String features = p.analyse();
+ * } finally {
+ *     p.close();
+ * }
+ * </pre>
+ *
+ * The outputs are the same as the ones of the two separate calls. An
+ * encrypted workbook cannot be opened; {@link ExcelFeatureAnalysis} reports it
+ * as such.
+ */
+public class WorkbookPipeline implements Closeable {
+
+    private final File in;
+    private final WorkbookFile file;
+    private final ToXML converter;
+    private final ExcelFeatureAnalysis analysis;
+    // the cell features of the sheets converted, null before the conversion
+    private ExcelFeatureAnalysis.SheetFeatures features;
+
+    private WorkbookPipeline(File in, WorkbookFile file) {
+        this.in = in;
+        this.file = file;
+        converter = new ToXML(file.getWorkbook());
+        analysis = new ExcelFeatureAnalysis(file.getWorkbook(), in);
+    }
+
+    /**
+     * Opens a workbook in place, see {@link WorkbookFile}; the caller must
+     * {@link #close()} it.
+     */
+    public static WorkbookPipeline open(File in) throws IOException,
+    InvalidFormatException {
+        return new WorkbookPipeline(in, WorkbookFile.open(in));
+    }
+
+    /**
+     * @return the converter, whose options (formula evaluation, output
+     *         formats, executor) are set before {@link #convert(String)}
+     */
+    public ToXML getConverter() {
+        return converter;
+    }
+
+    /**
+     * Converts the workbook like {@link ToXML#convert(String)}, collecting the
+     * cell features of each sheet on the way.
+     *
+     * @return the files written
+     */
+    public List<File> convert(String filename) throws IOException {
+        features = new ExcelFeatureAnalysis.SheetFeatures(file.getWorkbook()
+                .getNumberOfSheets());
+        return converter.convert(filename, features);
+    }
+
+    /**
+     * @return the feature analysis, as written by
+     *         {@link ExcelFeatureAnalysis#analyse(File)}; only the sheets not
+     *         converted (the empty ones, or all of them before
+     *         {@link #convert(String)}) are traversed
+     */
+    public String analyse() {
+        return ExcelFeatureAnalysis.analyse(in, analysis, features);
+    }
+
+    /**
+     * Releases the file; neither method can be called any more.
+     */
+    public void close() throws IOException {
+        file.close();
+    }
+}
@@ -0,0 +1,251 @@
+/* ====================================================================
+   Licensed to the Apache Software Foundation (ASF) under one or more
+   contributor license agreements.  See the NOTICE file distributed with
+   this work for additional information regarding copyright ownership.
+   The ASF licenses this file to You under the Apache License, Version 2.0
+   (the "License"); you may not use this file except in compliance with
+   the License.  You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+==================================================================== */
+package uk.ac.liverpool.spreadsheet;
+
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Writer for the XML and JSON output of the converters. Characters are
+ * encoded to UTF-8 straight into a byte buffer, which is written to a file
+ * channel, or to a stream, when full; text is escaped while it is copied, and
+ * numbers are written digit by digit, so that writing a cell allocates
+ * nothing.
+ *
+ * Like {@link java.util.Formatter}, the write methods do not throw: the first
+ * I/O error stops the output, and is thrown by {@link #close()}.
+ */
+class XMLOutput implements Closeable {
+
+    static final String NEWLINE = System.getProperty("line.separator");
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final WritableByteChannel channel;
+    // a stream owned by the caller, like System.out, else null
+    private final OutputStream stream;
+    private final byte[] bytes = new byte[BUFFER_SIZE];
+    private final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+    private int position;
+    private IOException error;
+
+    XMLOutput(String filename) throws IOException {
+        channel = new FileOutputStream(filename).getChannel();
+        stream = null;
+    }
+
+    /**
+     * Writes to a stream, which {@link #close()} flushes but leaves open.
+     */
+    XMLOutput(OutputStream stream) {
+        channel = Channels.newChannel(stream);
+        this.stream = stream;
+    }
+
+    /** Writes the text as it is. */
+    XMLOutput write(CharSequence s) {
+        for (int i = 0, n = s.length(); i < n; i++)
+            i = put(s, i);
+        return this;
+    }
+
+    XMLOutput write(char c) {
+        ensure(3);
+        if (c < 0x80)
+            bytes[position++] = (byte) c;
+        else
+            encode(c);
+        return this;
+    }
+
+    /**
+     * Writes the text escaped for use in attributes and in element content,
+     * the way StringEscapeUtils.escapeXml does.
+     */
+    XMLOutput escaped(CharSequence s) {
+        for (int i = 0, n = s.length(); i < n; i++) {
+            char c = s.charAt(i);
+            switch (c) {
+            case '&':
+                write("&amp;");
+                break;
+            case '<':
+                write("&lt;");
+                break;
+            case '>':
+                write("&gt;");
+                break;
+            case '"':
+                write("&quot;");
+                break;
+            case '\'':
+                write("&apos;");
+                break;
+            default:
+                i = put(s, i);
+            }
+        }
+        return this;
+    }
+
+    /** Writes the text as a JSON string, quotes included. */
+    XMLOutput quoted(CharSequence s) {
+        return write('"').jsonEscaped(s).write('"');
+    }
+
+    /**
+     * Writes the text escaped for use in a JSON string. Line and paragraph
+     * separators are escaped as well, for JavaScript.
+     */
+    XMLOutput jsonEscaped(CharSequence s) {
+        for (int i = 0, n = s.length(); i < n; i++) {
+            char c = s.charAt(i);
+            switch (c) {
+            case '"':
+                write("\\\"");
+                break;
+            case '\\':
+                write("\\\\");
+                break;
+            case '\n':
+                write("\\n");
+                break;
+            case '\r':
+                write("\\r");
+                break;
+            case '\t':
+                write("\\t");
+                break;
+            default:
+                if (c < 0x20 || c == '\u2028' || c == '\u2029') {
+                    write("\\u");
+                    for (int shift = 12; shift >= 0; shift -= 4)
+                        write(Character.forDigit((c >> shift) & 0xf, 16));
+                } else {
+                    i = put(s, i);
+                }
+            }
+        }
+        return this;
+    }
+
+    /** Writes a number in decimal. */
+    XMLOutput write(int value) {
+        ensure(11);
+        long v = value;
+        if (v < 0) {
+            bytes[position++] = '-';
+            v = -v;
+        }
+        int digits = 1;
+        for (long t = v; t >= 10; t /= 10)
+            digits++;
+        position += digits;
+        for (int p = position - 1; p >= position - digits; p--) {
+            bytes[p] = (byte) ('0' + v % 10);
+            v /= 10;
+        }
+        return this;
+    }
+
+    XMLOutput newLine() {
+        return write(NEWLINE);
+    }
+
+    /**
+     * Writes the character at index i, or the surrogate pair starting there.
+     *
+     * @return the index of the last character written
+     */
+    private int put(CharSequence s, int i) {
+        ensure(4);
+        char c = s.charAt(i);
+        if (c < 0x80) {
+            bytes[position++] = (byte) c;
+        } else if (!Character.isSurrogate(c)) {
+            encode(c);
+        } else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+                && Character.isLowSurrogate(s.charAt(i + 1))) {
+            int cp = Character.toCodePoint(c, s.charAt(++i));
+            bytes[position++] = (byte) (0xf0 | (cp >> 18));
+            bytes[position++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+            bytes[position++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+            bytes[position++] = (byte) (0x80 | (cp & 0x3f));
+        } else {
+            // unpaired surrogate, replaced as the JDK encoders do
+            bytes[position++] = '?';
+        }
+        return i;
+    }
+
+    // two or three bytes, for a char that is not a surrogate
+    private void encode(char c) {
+        if (Character.isSurrogate(c)) {
+            bytes[position++] = '?';
+        } else if (c < 0x800) {
+            bytes[position++] = (byte) (0xc0 | (c >> 6));
+            bytes[position++] = (byte) (0x80 | (c & 0x3f));
+        } else {
+            bytes[position++] = (byte) (0xe0 | (c >> 12));
+            bytes[position++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+            bytes[position++] = (byte) (0x80 | (c & 0x3f));
+        }
+    }
+
+    private void ensure(int n) {
+        if (position + n > bytes.length)
+            flush();
+    }
+
+    private void flush() {
+        if (error == null) {
+            try {
+                buffer.clear().limit(position);
+                while (buffer.hasRemaining())
+                    channel.write(buffer);
+            } catch (IOException x) {
+                error = x;
+            }
+        }
+        position = 0;
+    }
+
+    /**
+     * Writes what is left in the buffer and closes the file, or flushes the
+     * stream.
+     *
+     * @throws IOException
+     *             the first error met while writing
+     */
+    public void close() throws IOException {
+        try {
+            flush();
+            if (stream != null && error == null)
+                stream.flush();
+        } finally {
+            if (stream == null)
+                channel.close();
+        }
+        if (error != null)
+            throw error;
+    }
+}
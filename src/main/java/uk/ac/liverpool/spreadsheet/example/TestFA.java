@@ -23,9 +23,8 @@
 package uk.ac.liverpool.spreadsheet.example;
 
 import java.io.File;
-import java.io.FileWriter;
 
-import uk.ac.liverpool.spreadsheet.ExcelFeatureAnalysis;
+import uk.ac.liverpool.spreadsheet.CorpusRunner;
 
 
 
@@ -71,54 +70,19 @@ public class TestFA {
     }
 
     public static void listFiles(File d, boolean recurse, int type) {
-
-        if (d.isDirectory() && d.canRead() && d.exists()) {
-
-            File[] dirList = d.listFiles();
-            for (File element : dirList) {
-                System.gc();
-                if (!element.canRead()) {
-                    System.out.println("Can't read " + element);
-                }
-                if (!element.exists()) {
-                    System.out.println("Does not exist: " + element);
-                }
-                if (element.isDirectory()) {
-                    if (recurse)
-                        listFiles(element, recurse, type);
-                    // loop again
-                    continue;
-                }
-                try {
-                    if (!element.getAbsolutePath().toLowerCase()
-                            .endsWith("xls")
-                            && !element.getAbsolutePath().toLowerCase()
-                                    .endsWith("xlsx")) {
-                         //System.out.println("Refused file: " + element);
-                        continue;
-                    }
-                    try {
-                        System.out.println("Analising  file: " + element);
-                        String s = ExcelFeatureAnalysis.analyse(element); 
-                       // System.out.println(s);
-                        FileWriter fileWriter = new FileWriter(element.getAbsolutePath() + "_feature.xml");
-                        fileWriter.write(s);
-                        fileWriter.close();
-
-                    } catch (Exception e) {
-                        System.err.println("On file: " + element);
-                        e.printStackTrace();
-                    }
-
-                } catch (Exception e) {
-                    System.err.println("* On file: " + element);
-                    e.printStackTrace();
-
-                }
+        CorpusRunner runner = new CorpusRunner();
+        runner.setRecurse(recurse);
+        runner.setAnalyse(true);
+        runner.setListener(new CorpusRunner.Listener() {
+            public void finished(CorpusRunner.Result result) {
+                System.out.println(result);
             }
-
+        });
+        try {
+            runner.run(d);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
-
     }
 
 }
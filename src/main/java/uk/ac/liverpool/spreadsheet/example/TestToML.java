@@ -22,9 +22,8 @@
 package uk.ac.liverpool.spreadsheet.example;
 
 import java.io.File;
-import java.io.FileInputStream;
 
-import uk.ac.liverpool.spreadsheet.ToXML;
+import uk.ac.liverpool.spreadsheet.CorpusRunner;
 
 
 
@@ -61,54 +60,20 @@ public class TestToML {
     }
 
     public static void listFiles(File d, boolean recurse, int type) {
-
-        if (d.isDirectory() && d.canRead() && d.exists()) {
-
-            File[] dirList = d.listFiles();
-            for (File element : dirList) {
-                System.gc();
-                if (!element.canRead()) {
-                    System.out.println("Can't read " + element);
-                }
-                if (!element.exists()) {
-                    System.out.println("Does not exist: " + element);
-                }
-                if (element.isDirectory()) {
-                    if (recurse)
-                        listFiles(element, recurse, type);
-                    // loop again
-                    continue;
-                }
-                try {
-                    if (!element.getAbsolutePath().toLowerCase()
-                            .endsWith("xls")
-                            && !element.getAbsolutePath().toLowerCase()
-                                    .endsWith("xlsx")) {
-                         //System.out.println("Refused file: " + element);
-                        continue;
-                    }
-                    try {
-                        System.out.println("converting file: " + element);
-                        ToXML toMl = ToXML.create(new FileInputStream(
-                                element));
-                        toMl.setEvaluateFormulae(false);
-                        toMl.convert(element.getAbsolutePath() + ".xml");
-
-
-                    } catch (Exception e) {
-                        System.err.println("On file: " + element);
-                        e.printStackTrace();
-                    }
-
-                } catch (Exception e) {
-                    System.err.println("* On file: " + element);
-                    e.printStackTrace();
-
-                }
+        CorpusRunner runner = new CorpusRunner();
+        runner.setRecurse(recurse);
+        runner.setAnalyse(false);
+        runner.setConvert(true);
+        runner.setListener(new CorpusRunner.Listener() {
+            public void finished(CorpusRunner.Result result) {
+                System.out.println(result);
             }
-
+        });
+        try {
+            runner.run(d);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
-
     }
 
 }
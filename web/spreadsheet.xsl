@@ -66,6 +66,22 @@
 }
 </style>
 	<xsl:for-each select="spreadsheets/Table">
+				<xsl:if test="SharedFormulae">
+					<div style="display: none">
+						<xsl:for-each select="SharedFormulae/SharedFormula">
+							<span>
+								<xsl:attribute name="id">sharedFormula<xsl:value-of
+									select="@id"/></xsl:attribute>
+								<xsl:attribute name="data-range"><xsl:value-of
+									select="@range"/></xsl:attribute>
+								<xsl:attribute name="data-formula"><xsl:value-of
+									select="@formula"/></xsl:attribute>
+								<xsl:attribute name="data-cell-formula"><xsl:value-of
+									select="@cellFormula"/></xsl:attribute>
+							</span>
+						</xsl:for-each>
+					</div>
+				</xsl:if>
 		
 				<table  class="excelDefaults">
 					<tr class="colHeader">
@@ -82,7 +98,12 @@
 											<xsl:value-of select="RowHeader"/>
 										</td>
 
-							<xsl:for-each select="TableCells/TableCell">								
+							<xsl:for-each select="TableCells/*">
+										<!-- a run of blank cells left out by ToXML -sparse -->
+										<xsl:if test="self::BlankCells">
+											<td colspan="{@count}"></td>
+										</xsl:if>
+										<xsl:if test="self::TableCell">
 										<td>
 											<xsl:element name="input">
 												<xsl:attribute name="type">
@@ -99,13 +120,21 @@
                           </xsl:attribute>
 												</xsl:if>
 												
-						<xsl:if test="@cellFormula">
+						<xsl:if test="@cellFormula or @sharedFormula">
 													<xsl:attribute name="class">
 	                            formula
                           </xsl:attribute>
                           	<xsl:attribute name="onmouseover">
+                          	<xsl:choose>
+                          	<xsl:when test="@sharedFormula">
+                            javascript:document.getElementById('formulaShow').innerHTML= sharedCellFormula(this.id, '<xsl:value-of
+														select="@sharedFormula"></xsl:value-of>')
+                          	</xsl:when>
+                          	<xsl:otherwise>
                             javascript:document.getElementById('formulaShow').innerHTML= '<xsl:value-of
 														select="@cellFormula"></xsl:value-of>'
+                          	</xsl:otherwise>
+                          	</xsl:choose>
                             
                           </xsl:attribute>
                           	<xsl:attribute name="onmouseout">
@@ -123,6 +152,7 @@
 												</xsl:if>
 											</xsl:element>
 										</td>
+										</xsl:if>
 
 							</xsl:for-each>
 						</tr>